@@ -0,0 +1,183 @@
+package org.my;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// evaluates an expression for every row of columns of variables, a numeric one a node at a time over all the rows,
+// any other a row at a time in a scope of its own
+class BatchEvaluator {
+    private final String[] names;
+    private final Object[] columns;
+    private final int rows;
+
+    BatchEvaluator(Map<String, ?> columns) {
+        if (columns.isEmpty())
+            throw new IllegalArgumentException("no columns to evaluate over");
+        this.names = new String[columns.size()];
+        this.columns = new Object[columns.size()];
+        int rows = -1;
+        int i = 0;
+        for (Map.Entry<String, ?> e : columns.entrySet()) {
+            Object column = e.getValue();
+            int n = column instanceof long[] ? ((long[]) column).length
+                    : column instanceof double[] ? ((double[]) column).length
+                    : column instanceof Value[] ? ((Value[]) column).length
+                    : -1;
+            if (n < 0)
+                throw new IllegalArgumentException(String.format("column %s must be a long[], double[] or Value[]", e.getKey()));
+            if (rows >= 0 && n != rows)
+                throw new IllegalArgumentException(String.format("column %s has %d rows, not %d", e.getKey(), n, rows));
+            rows = n;
+            names[i] = e.getKey();
+            this.columns[i++] = column;
+        }
+        this.rows = rows;
+    }
+
+    Value evaluate(IExpression expression, IExpressionContext context) {
+        JExpParser.Node node = expression instanceof JExpParser.SimpleExpression ? ((JExpParser.SimpleExpression) expression).node
+                : expression instanceof JExpCompiler.CompiledExpression ? ((JExpCompiler.CompiledExpression) expression).node
+                : null;
+        Value results = node != null ? evaluateNumeric(node, context) : null;
+        return results != null ? results : evaluateRows(expression, context);
+    }
+
+    // null unless the tree is numeric and each of its variables a number of the same type in all the rows
+    private Value evaluateNumeric(JExpParser.Node node, IExpressionContext context) {
+        if (node instanceof JExpParser.NumericNode)
+            node = ((JExpParser.NumericNode) node).node;
+        Map<String, Integer> variables = new LinkedHashMap<>();
+        if (!JExpParser.collectNumeric(node, variables))
+            return null;
+
+        JExpParser.NumericType[] types = new JExpParser.NumericType[variables.size()];
+        Object[] cs = new Object[types.length];
+        for (Map.Entry<String, Integer> v : variables.entrySet()) {
+            int i = v.getValue();
+            Object column = column(v.getKey());
+            // a variable of the context is the same in every row
+            cs[i] = column != null ? numeric(column) : filled(context.getVariable(v.getKey()));
+            if (cs[i] == null)
+                return null;
+            types[i] = cs[i] instanceof long[] ? JExpParser.NumericType.Long
+                    : cs[i] instanceof double[] ? JExpParser.NumericType.Double
+                    : JExpParser.NumericType.Boolean;
+        }
+
+        // whatever fails to specialize, at the type check or in a typed node, runs a row at a time and fails as it does
+        Object results;
+        try {
+            JExpParser.NumericType type = JExpParser.numericTypeOf(node, name -> types[variables.get(name)]);
+            JExpParser.TypedNode root = JExpParser.TypedNode.of(node, type, types, variables);
+            switch (type) {
+                case Long:
+                    results = root.evalLongs(cs, rows);
+                    break;
+                case Double:
+                    results = root.evalDoubles(cs, rows);
+                    break;
+                default: {
+                    boolean[] bs = root.evalBooleans(cs, rows);
+                    Value[] vs = new Value[rows];
+                    for (int i = 0; i < rows; i++)
+                        vs[i] = bs[i] ? Value.TRUE : Value.FALSE;
+                    return Value.of(vs);
+                }
+            }
+        } catch (JExpParser.NotSpecializable e) {
+            return null;
+        }
+        // a lone variable gives its column back, the caller's array is not handed out to be sorted in place
+        for (Object c : columns) {
+            if (c == results)
+                results = results instanceof long[] ? ((long[]) results).clone() : ((double[]) results).clone();
+        }
+        return Value.of(results);
+    }
+
+    private Value evaluateRows(IExpression expression, IExpressionContext context) {
+        int[] slots = SimpleContext.slots(names);
+        Value[] results = new Value[rows];
+        for (int r = 0; r < rows; r++) {
+            IExpressionContext row = context.makeScope();
+            for (int i = 0; i < names.length; i++) {
+                Value v = cell(columns[i], r);
+                if (row instanceof SimpleContext)
+                    ((SimpleContext) row).setVariable(slots[i], v);
+                else
+                    row.updateVariable(names[i], v);
+            }
+            results[r] = expression.evaluate(row);
+        }
+        return Value.of(results);
+    }
+
+    private Object column(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name))
+                return columns[i];
+        }
+        return null;
+    }
+
+    private static Value cell(Object column, int row) {
+        if (column instanceof long[])
+            return Value.of(((long[]) column)[row]);
+        if (column instanceof double[])
+            return Value.of(((double[]) column)[row]);
+        Value v = ((Value[]) column)[row];
+        return v != null ? v : Value.NULL;
+    }
+
+    // the column as a long[], double[] or boolean[], null if its values are not all numbers or booleans of one type
+    private Object numeric(Object column) {
+        if (!(column instanceof Value[]))
+            return column;
+        Value[] vs = (Value[]) column;
+        Value.Type type = vs.length > 0 && vs[0] != null ? vs[0].getType() : null;
+        for (Value v : vs) {
+            if (v == null || v.getType() != type)
+                return null;
+        }
+        if (type == Value.Type.IntegerT) {
+            long[] ls = new long[rows];
+            for (int i = 0; i < rows; i++)
+                ls[i] = vs[i].asLong();
+            return ls;
+        } else if (type == Value.Type.DecimalT) {
+            double[] ds = new double[rows];
+            for (int i = 0; i < rows; i++)
+                ds[i] = vs[i].asDouble();
+            return ds;
+        } else if (type == Value.Type.BooleanT) {
+            boolean[] bs = new boolean[rows];
+            for (int i = 0; i < rows; i++)
+                bs[i] = vs[i].asBoolean();
+            return bs;
+        }
+        return null;
+    }
+
+    private Object filled(Value v) {
+        switch (v.getType()) {
+            case IntegerT: {
+                long[] ls = new long[rows];
+                Arrays.fill(ls, v.asLong());
+                return ls;
+            }
+            case DecimalT: {
+                double[] ds = new double[rows];
+                Arrays.fill(ds, v.asDouble());
+                return ds;
+            }
+            case BooleanT: {
+                boolean[] bs = new boolean[rows];
+                Arrays.fill(bs, v.asBoolean());
+                return bs;
+            }
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.my;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+// a few reset contexts kept per thread, no locking on acquire or release
+class ContextPool implements IContextPool {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final int capacity;
+    private final ThreadLocal<Local> locals = ThreadLocal.withInitial(Local::new);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // the free contexts of a thread and the buffer its documents are decoded into
+    private static class Local {
+        final ArrayDeque<SimpleContext> free = new ArrayDeque<>();
+        // malformed input is replaced as by Entry.buildContext(byte[])
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    }
+
+    ContextPool(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public IExpressionContext acquire() {
+        return acquire(locals.get());
+    }
+
+    private SimpleContext acquire(Local local) {
+        SimpleContext context = local.free.pollLast();
+        if (context == null) {
+            misses.increment();
+            return new SimpleContext();
+        }
+        hits.increment();
+        context.markAcquired();
+        return context;
+    }
+
+    @Override
+    public IExpressionContext acquire(byte[] json) {
+        Local local = locals.get();
+        // UTF-8 takes at least a byte for each char
+        if (local.chars.capacity() < json.length)
+            local.chars = CharBuffer.allocate(Math.max(json.length, local.chars.capacity() * 2));
+        CharBuffer chars = local.chars;
+        chars.clear();
+        local.decoder.reset();
+        local.decoder.decode(ByteBuffer.wrap(json), chars, true);
+        local.decoder.flush(chars);
+
+        // parsed first, a malformed document doesn't take a context out of the pool
+        Value current = new JsonReader(chars.array(), chars.position()).read();
+        SimpleContext context = acquire(local);
+        context.setVariable(SimpleContext.CUR_SLOT, current);
+        return context;
+    }
+
+    @Override
+    public void release(IExpressionContext context) {
+        if (!(context instanceof SimpleContext))
+            throw new IllegalArgumentException(context.getClass().getName() + " can't be pooled");
+        SimpleContext sc = (SimpleContext) context;
+        if (!sc.markReleased())
+            throw new IllegalStateException("the context is already released");
+        // reset even when the pool is full, nothing of the request is kept reachable through it
+        sc.reset();
+        ArrayDeque<SimpleContext> free = locals.get().free;
+        if (free.size() < capacity)
+            free.addLast(sc);
+    }
+
+    @Override
+    public long hits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long misses() {
+        return misses.sum();
+    }
+}
@@ -2,6 +2,14 @@ package org.my;
 
 import org.json.simple.parser.ParseException;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 public class Entry {
     public static IExpressionContext buildContext() {
         return new SimpleContext();
@@ -11,7 +19,81 @@ public class Entry {
         return new JExpParser.SimpleBuilder(expression);
     }
 
+    public static IExpressionBuilder buildExpressionBuilder(String expression, boolean optimize) {
+        return new JExpParser.SimpleBuilder(expression, optimize);
+    }
+
+    public static IExpression compileExpression(String expression) {
+        return JExpCompiler.compile(new JExpParser.SimpleBuilder(expression, true).build());
+    }
+
+    // the parsed sources shared by the builders made from strings, jsonGet included
+    public static IExpressionCache expressionCache() {
+        return ExpressionCache.INSTANCE;
+    }
+
+    public static IExpressionBuilder buildExpressionBuilder(Reader expression) {
+        return new JExpParser.SimpleBuilder(expression, false);
+    }
+
+    public static IExpressionScript buildExpressionScript(String script) {
+        return new JExpParser.IncrementalScript(script, false);
+    }
+
+    // contexts to reuse across requests, up to the given number kept by each thread
+    public static IContextPool buildContextPool(int perThread) {
+        return new ContextPool(perThread);
+    }
+
+    // a frozen copy of the context for many threads to read, each evaluation writes to an overlay of its own
+    public static ISharedContext buildSharedContext(IExpressionContext base) {
+        return new SharedContext(base);
+    }
+
     public static IExpressionContext buildContext(String json) throws ParseException {
         return new SimpleContext(json);
     }
+
+    public static IExpressionContext buildContext(Reader json) {
+        return new SimpleContext(new JsonReader(json).read());
+    }
+
+    public static IExpressionContext buildContext(char[] json) {
+        return new SimpleContext(new JsonReader(json).read());
+    }
+
+    public static IExpressionContext buildContext(byte[] json) {
+        return new SimpleContext(new JsonReader(json).read());
+    }
+
+    // keeps only the parts of the document the expressions read, the rest of it is skipped while parsing
+    public static IExpressionContext buildContext(char[] json, IExpression... expressions) {
+        return new SimpleContext(new JsonReader(json).read(jsonPaths(expressions)));
+    }
+
+    public static IExpressionContext buildContext(byte[] json, IExpression... expressions) {
+        return new SimpleContext(new JsonReader(json).read(jsonPaths(expressions)));
+    }
+
+    // the parsed expressions as a binary artifact, optimized and compiled ones keep their form
+    public static byte[] saveExpressions(List<IExpression> expressions) {
+        return JExpParser.NodeCodec.encode(expressions);
+    }
+
+    // the expressions of an artifact from saveExpressions, nothing is tokenized or parsed
+    public static List<IExpression> loadExpressions(ByteBuffer artifact) {
+        return JExpParser.NodeCodec.decode(artifact);
+    }
+
+    // evaluates the expressions over each line of a newline delimited JSON file, the file is split in regions run by the threads
+    public static long evaluateLines(Path file, List<IExpression> expressions, int threads, IResultSink sink) throws IOException {
+        return new NdjsonEvaluator(expressions, threads).evaluate(file, sink);
+    }
+
+    private static Set<List<String>> jsonPaths(IExpression... expressions) {
+        Set<List<String>> paths = new HashSet<>();
+        for (IExpression expression : expressions)
+            paths.addAll(expression.getJsonPaths());
+        return paths;
+    }
 }
@@ -0,0 +1,176 @@
+package org.my;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// the parsed statements of recently built sources, least recently used first out; the trees are shared by all threads,
+// what they fill in lazily is published safely: specializations, compiled patterns and boxed vector constants
+class ExpressionCache implements IExpressionCache {
+    static final int DEFAULT_CAPACITY = 4096;
+    // a long script is usually built once, keeping it would only pin its tree
+    static final int MAX_SOURCE_LENGTH = 4096;
+    // the entries are split by key hash in segments locked on their own, each holds at least this many
+    static final int MIN_SEGMENT_CAPACITY = 64;
+    static final int MAX_SEGMENTS = 16;
+
+    static final ExpressionCache INSTANCE = new ExpressionCache(DEFAULT_CAPACITY);
+
+    // replaced whole by resize, a lookup racing with it may miss or put into the old segments, that is only a miss
+    private volatile Segment[] segments;
+    private volatile int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // an LRU map of its own, the least recently used of a segment goes first
+    private class Segment {
+        private final int capacity;
+        private final Map<Key, List<IExpression>> entries;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<Key, List<IExpression>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, List<IExpression>> eldest) {
+                    if (size() <= Segment.this.capacity)
+                        return false;
+                    evictions.increment();
+                    return true;
+                }
+            };
+        }
+
+        synchronized List<IExpression> get(Key key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, List<IExpression> expressions) {
+            if (capacity > 0)
+                entries.put(key, expressions);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        synchronized void moveTo(ExpressionCache cache) {
+            for (Map.Entry<Key, List<IExpression>> e : entries.entrySet())
+                cache.segment(e.getKey()).put(e.getKey(), e.getValue());
+        }
+    }
+
+    ExpressionCache(int capacity) {
+        resize(capacity);
+    }
+
+    private Segment segment(Key key) {
+        Segment[] ss = segments;
+        int h = key.hashCode();
+        return ss[(h ^ (h >>> 16)) & (ss.length - 1)];
+    }
+
+    // parsing runs outside the lock, two threads missing on the same source both parse it and the last one is kept
+    List<IExpression> get(String source, boolean optimize, Supplier<List<IExpression>> parse) {
+        if (source.length() > MAX_SOURCE_LENGTH)
+            return parse.get();
+
+        Key key = new Key(source, optimize);
+        List<IExpression> expressions = segment(key).get(key);
+        if (expressions != null) {
+            hits.increment();
+            return expressions;
+        }
+        misses.increment();
+
+        expressions = Collections.unmodifiableList(new ArrayList<>(parse.get()));
+        segment(key).put(key, expressions);
+        return expressions;
+    }
+
+    @Override
+    public long hits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment s : segments)
+            size += s.size();
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    // the entries move to new segments sized for the capacity, those over a segment's share are evicted
+    @Override
+    public synchronized void resize(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        int n = 1;
+        while (n < MAX_SEGMENTS && capacity / (n * 2) >= MIN_SEGMENT_CAPACITY)
+            n *= 2;
+        Segment[] ss = new Segment[n];
+        for (int i = 0; i < n; i++)
+            ss[i] = new Segment(capacity / n + (i < capacity % n ? 1 : 0));
+
+        Segment[] old = segments;
+        this.capacity = capacity;
+        this.segments = ss;
+        if (old != null) {
+            for (Segment s : old)
+                s.moveTo(this);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment s : segments)
+            s.clear();
+    }
+
+    private static class Key {
+        final String source;
+        final boolean optimize;
+
+        Key(String source, boolean optimize) {
+            this.source = source;
+            this.optimize = optimize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return optimize == k.optimize && source.equals(k.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode() * 31 + (optimize ? 1 : 0);
+        }
+    }
+}
@@ -11,6 +11,8 @@ import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoField;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -30,7 +32,11 @@ public class Functions {
     }
 
     public static String replaceAll(Value[] v) {
-        return v[0].asString().replaceAll(v[1].asString(), v[2].asString());
+        return replaceAllRegex(v, regex(v[1].asString()));
+    }
+
+    static String replaceAllRegex(Value[] v, Pattern regex) {
+        return regex.matcher(v[0].asString()).replaceAll(v[2].asString());
     }
 
     public static Value uniq(IExpressionContext ctx, Value[] xs) {
@@ -45,7 +51,7 @@ public class Functions {
                     rs.add(v);
                     last = v;
                 } else {
-                    IExpressionContext context = ctx.makeCopy();
+                    IExpressionContext context = ctx.makeScope();
                     context.updateVariable("a", last);
                     context.updateVariable("b", v);
                     long r = evalExpression(xs[1], context).asLong();
@@ -71,16 +77,18 @@ public class Functions {
         if (!xs[0].isHomogeneousVector())
             throw new Exp4jException.EvaluationException("Homogeneous Vector required");
 
+        // a value settled by a freeze is read by other threads at the same time, it is sorted in a copy
+        boolean copy = xs[0].isSettled();
+        Comparator<Value> order = Value::compareTo;
         if (xs.length > 1 && xs[1] != null) {
-            return xs[0].sort((a, b) -> {
-                IExpressionContext context = ctx.makeCopy();
+            order = (a, b) -> {
+                IExpressionContext context = ctx.makeScope();
                 context.updateVariable("a", a);
                 context.updateVariable("b", b);
                 return (int) evalExpression(xs[1], context).asLong();
-            });
-        } else {
-            return xs[0].sort(Value::compareTo);
+            };
         }
+        return copy ? xs[0].sorted(order) : xs[0].sort(order);
     }
 
     public static Value round(Value[] v) {
@@ -106,7 +114,7 @@ public class Functions {
         Value id = xs[1];
         Value op = xs[2];
 
-        IExpressionContext context = ctx.makeCopy();
+        IExpressionContext context = ctx.makeScope();
         Value r = id;
         for (Value value : list) {
             context.updateVariable("_", value);
@@ -152,20 +160,46 @@ public class Functions {
             return false;
         }
 
-        String regex = v1.asString().replaceAll("\\\\\\\\", "\\\\");
+        String regex = matchRegex(v1.asString());
         try {
-            return v0.asString().matches(regex);
+            return regMatchRegex(v0, regex(regex));
         } catch (PatternSyntaxException e) {
             throw new Exp4jException.EvaluationException("invalid regex: " + regex);
         }
     }
 
+    static boolean regMatchRegex(Value v0, Pattern regex) {
+        return !v0.isNull() && regex.matcher(v0.asString()).matches();
+    }
+
+    // a doubled backslash in the argument of regMatch stands for a single one
+    static String matchRegex(String regex) {
+        return regex.indexOf("\\\\") < 0 ? regex : regex.replace("\\\\", "\\");
+    }
+
+    private static final int MAX_PATTERNS = 256;
+    // a pattern is shared by all threads, each use takes a matcher of its own
+    private static final Map<String, Pattern> patterns = new ConcurrentHashMap<>();
+
+    // patterns computed at run time, constant ones are bound to their FuncNode when it is built
+    static Pattern regex(String regex) {
+        Pattern r = patterns.get(regex);
+        if (r == null) {
+            r = Pattern.compile(regex);
+            // past the limit the patterns seen so far are dropped rather than compiling every new one for each use
+            if (patterns.size() >= MAX_PATTERNS)
+                patterns.clear();
+            patterns.putIfAbsent(regex, r);
+        }
+        return r;
+    }
+
     public static Value map(IExpressionContext ctx, Value[] args) {
         Value v0 = args[0];
         Value v1 = args[1];
         Value[] list = v0.asVector();
         Value[] r = new Value[list.length];
-        IExpressionContext context = ctx.makeCopy();
+        IExpressionContext context = ctx.makeScope();
         for (int i = 0; i < list.length; i++) {
             context.updateVariable(CUR_VAR_NAME, list[i]);
             r[i] = evalExpression(v1, context);
@@ -225,7 +259,7 @@ public class Functions {
     public static Value jsonGet(IExpressionContext ctx, Value[] args) {
         Value v0 = args[0];
         Value v1 = args[1];
-        IExpressionContext context = ctx.makeCopy();
+        IExpressionContext context = ctx.makeScope();
         context.updateVariable(CUR_VAR_NAME, v0);
         IExpression exp = Entry.buildExpressionBuilder(v1.asString()).build();
         return exp.evaluate(context);
@@ -235,7 +269,7 @@ public class Functions {
         Value v0 = args[0];
         Value v1 = args[1];
         Value[] orig = v0.asVector();
-        IExpressionContext context = ctx.makeCopy();
+        IExpressionContext context = ctx.makeScope();
         Value[] rest = Arrays.stream(orig).filter(v -> {
             context.updateVariable(CUR_VAR_NAME, v);
             Value r = evalExpression(v1, context);
@@ -246,6 +280,19 @@ public class Functions {
 
     public static Value sum(Value[] args) {
         Value v = args[0];
+        long[] ls = v.asLongs();
+        if (ls != null) {
+            long n = 0;
+            for (long l : ls) {
+                n += l;
+            }
+            return Value.of(n);
+        }
+
+        double[] ds = v.asDoubles();
+        if (ds != null && ds.length > 0)
+            return Value.of(Arrays.stream(ds).sum());
+
         if (v.asVector().length == 0)
             return Value.of(0);
 
@@ -263,15 +310,34 @@ public class Functions {
 
     public static double avg(Value[] args) {
         Value v = args[0];
-        if (v.asVector().length == 0) {
+        long[] ls = v.asLongs();
+        double[] ds = v.asDoubles();
+        int length = ls != null ? ls.length : ds != null ? ds.length : v.asVector().length;
+        if (length == 0) {
             throw new Exp4jException.EvaluationException("non-empty vector required");
         }
         double sum = sum(args).asDouble();
-        return sum / v.asVector().length;
+        return sum / length;
     }
 
     public static Value min(Value[] args) {
         Value v = args[0];
+        long[] ls = v.asLongs();
+        double[] ds = v.asDoubles();
+        if (ls != null && ls.length > 0) {
+            long r = ls[0];
+            for (long l : ls) {
+                r = Math.min(r, l);
+            }
+            return Value.of(r);
+        } else if (ds != null && ds.length > 0) {
+            double r = ds[0];
+            for (double d : ds) {
+                r = Math.min(r, d);
+            }
+            return Value.of(r);
+        }
+
         if (!v.isHomogeneousVector())
             throw new Exp4jException.EvaluationException("Homogeneous Vector required");
 
@@ -289,6 +355,22 @@ public class Functions {
 
     public static Value max(Value[] args) {
         Value v = args[0];
+        long[] ls = v.asLongs();
+        double[] ds = v.asDoubles();
+        if (ls != null && ls.length > 0) {
+            long r = ls[0];
+            for (long l : ls) {
+                r = Math.max(r, l);
+            }
+            return Value.of(r);
+        } else if (ds != null && ds.length > 0) {
+            double r = ds[0];
+            for (double d : ds) {
+                r = Math.max(r, d);
+            }
+            return Value.of(r);
+        }
+
         if (!v.isHomogeneousVector())
             throw new Exp4jException.EvaluationException("Homogeneous Vector required");
 
@@ -308,9 +390,10 @@ public class Functions {
         List<Value> result = new ArrayList<>();
         for (Value v1 : left) {
             Map<String, Value> lMap = v1.asMap();
+            Value lKey = lMap.get(leftKey);
             for (Value v2 : right) {
                 Map<String, Value> rMap = v2.asMap();
-                if (lMap.get(leftKey).equals(rMap.get(rightKey))) {
+                if (lKey.equals(rMap.get(rightKey))) {
                     Map<String, Value> joinedMap = new HashMap<>();
                     joinedMap.putAll(lMap);
                     joinedMap.putAll(rMap);
@@ -502,6 +585,10 @@ public class Functions {
     }
 
     private static Value evalExpression(Value value, IExpressionContext ctx) {
+        // a single lambda is the common case, evaluated without collecting it into a list first
+        if (!value.isVector())
+            return value.asExpression().evaluate(ctx);
+
         List<IExpression> exps = getExpList(value);
 
         Value r = null;
@@ -0,0 +1,18 @@
+package org.my;
+
+public interface IContextPool {
+    // a context with only the default variables, reused when one was released on this thread
+    IExpressionContext acquire();
+
+    // a context whose current value is read from the JSON document
+    IExpressionContext acquire(byte[] json);
+
+    // resets the context and keeps it for the next acquire, it must not be used after
+    void release(IExpressionContext context);
+
+    // acquires served from the pool
+    long hits();
+
+    // acquires that made a new context
+    long misses();
+}
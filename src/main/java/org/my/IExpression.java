@@ -1,5 +1,9 @@
 package org.my;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
@@ -9,4 +13,20 @@ public interface IExpression {
     Value evaluate(IExpressionContext context);
 
     Value evaluate();
+
+    // evaluates once for each row of the columns, a column is the long[], double[] or Value[] of a variable in all the rows,
+    // other variables are read from the context and what a row assigns is not seen by the next; a vector of the results
+    default Value evaluateBatch(IExpressionContext context, Map<String, ?> columns) {
+        return new BatchEvaluator(columns).evaluate(this, context);
+    }
+
+    default Value evaluateBatch(Map<String, ?> columns) {
+        return evaluateBatch(Entry.buildContext(), columns);
+    }
+
+    // the property paths from the root of the JSON document ($) the expression reads, each with everything below it,
+    // array elements are stepped through, the empty path means the whole document
+    default Set<List<String>> getJsonPaths() {
+        return Collections.singleton(Collections.emptyList());
+    }
 }
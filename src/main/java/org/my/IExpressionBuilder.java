@@ -1,9 +1,15 @@
 package org.my;
 
+import java.util.Iterator;
 import java.util.List;
 
 public interface IExpressionBuilder {
     IExpression build();
 
     List<IExpression> buildAll();
+
+    // the statements one at a time, each parsed only when it is asked for; a builder of its own may parse them all first
+    default Iterator<IExpression> buildIncrementally() {
+        return buildAll().iterator();
+    }
 }
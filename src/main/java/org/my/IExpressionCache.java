@@ -0,0 +1,21 @@
+package org.my;
+
+public interface IExpressionCache {
+    // lookups answered from the cache
+    long hits();
+
+    // lookups that parsed the source
+    long misses();
+
+    // entries dropped to stay within the capacity
+    long evictions();
+
+    int size();
+
+    int capacity();
+
+    // 0 turns the cache off, entries over the new capacity are evicted
+    void resize(int capacity);
+
+    void clear();
+}
@@ -1,9 +1,16 @@
 package org.my;
 
+// a context is written by one thread at a time and handed to others by a safe publication such as an executor,
+// a context read by many threads while it is replaced is shared through ISharedContext
 public interface IExpressionContext {
     void updateVariable(String name, Object value);
 
     Value getVariable(String name);
 
     IExpressionContext makeCopy();
+
+    // a context for a nested evaluation such as a lambda, writes to it must not reach this one
+    default IExpressionContext makeScope() {
+        return makeCopy();
+    }
 }
@@ -0,0 +1,11 @@
+package org.my;
+
+import java.util.List;
+
+public interface IExpressionScript {
+    String getScript();
+
+    List<IExpression> getExpressions();
+
+    IExpressionScript edit(int offset, int length, String replacement);
+}
@@ -0,0 +1,6 @@
+package org.my;
+
+public interface IResultSink {
+    // called once per record with the values of the expressions in order, from several threads when the batch runs in parallel
+    void accept(long offset, Value[] results);
+}
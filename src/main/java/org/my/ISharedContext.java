@@ -0,0 +1,12 @@
+package org.my;
+
+public interface ISharedContext {
+    // a context of its own for one evaluation, the variables it doesn't set are read from the base current now
+    IExpressionContext overlay();
+
+    // the frozen base, changing it throws
+    IExpressionContext base();
+
+    // freezes a copy of the context and makes it the base of the overlays made from now, the ones made before keep theirs
+    void reload(IExpressionContext context);
+}
@@ -0,0 +1,656 @@
+package org.my;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+import static org.my.JExpParser.NumericType;
+
+/**
+ * Compiles the numeric part of the expressions into JVM classes.
+ * <p>
+ * An expression made only of number/boolean literals, plain variables, the arithmetic, comparison and logic
+ * operators and the Math backed built-in functions is turned into a generated {@link ToLongFunction} over a
+ * {@code long[]} holding the variables (doubles as raw bits). The variables' types are only known when evaluating,
+ * so a class is generated per combination of variable types met and the values are computed on primitive longs and
+ * doubles with the same promotion rules as {@link Operators}. Anything else runs on the tree-walking interpreter.
+ */
+class JExpCompiler {
+    // generated per type combination of the variables at most, other combinations run on the interpreter
+    static final int MAX_SPECIALIZATIONS = 8;
+    static final int MAX_VARIABLES = JExpParser.NumericNode.MAX_VARIABLES;
+
+    private static final AtomicInteger counter = new AtomicInteger();
+    private static final Method defineHiddenClass = findDefineHiddenClass();
+
+    private static final Map<String, String> mathFunctions = new HashMap<>();
+
+    static {
+        for (String name : new String[] {"sin", "cos", "tan", "log", "log10", "log1p", "acos", "asin", "atan", "cbrt",
+                "floor", "sinh", "sqrt", "tanh", "cosh", "ceil", "exp", "expm1", "signum"}) {
+            mathFunctions.put(name, name);
+        }
+        mathFunctions.put("toRadian", "toRadians");
+        mathFunctions.put("toDegree", "toDegrees");
+    }
+
+    static IExpression compile(IExpression expression) {
+        if (!(expression instanceof JExpParser.SimpleExpression))
+            return expression;
+
+        JExpParser.SimpleExpression simple = (JExpParser.SimpleExpression) expression;
+        Map<String, Integer> variables = new LinkedHashMap<>();
+        if (!JExpParser.collectNumeric(simple.node, variables) || variables.size() > MAX_VARIABLES)
+            return expression;
+
+        // an optimized tree has the numeric root specialized already, which the generated class takes over
+        JExpParser.Node node = simple.node instanceof JExpParser.NumericNode ?
+                ((JExpParser.NumericNode) simple.node).node : simple.node;
+        return new CompiledExpression(simple, node, variables.keySet().toArray(new String[0]));
+    }
+
+    static class CompiledExpression implements IExpression {
+        // marks a type combination which the interpreter has to take, e.g. adding two booleans
+        private static final Program INTERPRET = new Program(null, null);
+
+        final JExpParser.SimpleExpression interpreter;
+        final JExpParser.Node node;
+        final String[] names;
+        private final int[] slots;
+        private final Map<Long, Program> programs = new ConcurrentHashMap<>();
+
+        CompiledExpression(JExpParser.SimpleExpression interpreter, JExpParser.Node node, String[] names) {
+            this.interpreter = interpreter;
+            this.node = node;
+            this.names = names;
+            this.slots = SimpleContext.slots(names);
+        }
+
+        @Override
+        public Future<Value> evaluateAsync(ExecutorService executor, IExpressionContext context) {
+            return executor.submit(() -> evaluate(context));
+        }
+
+        @Override
+        public Value evaluate(IExpressionContext context) {
+            long[] args = new long[names.length];
+            long signature = JExpParser.readNumeric(context, names, slots, args);
+            if (signature < 0)
+                return interpreter.evaluate(context);
+
+            Program program = programs.get(signature);
+            if (program == null)
+                program = specialize(signature);
+            return program == INTERPRET ? interpreter.evaluate(context) : program.apply(args);
+        }
+
+        @Override
+        public Value evaluate() {
+            return evaluate(new SimpleContext());
+        }
+
+        @Override
+        public Set<List<String>> getJsonPaths() {
+            return interpreter.getJsonPaths();
+        }
+
+        public String dump() {
+            return interpreter.dump();
+        }
+
+        // number of the generated classes, for tests
+        int specializations() {
+            return (int) programs.values().stream().filter(p -> p != INTERPRET).count();
+        }
+
+        private synchronized Program specialize(long signature) {
+            Program program = programs.get(signature);
+            if (program != null)
+                return program;
+            if (programs.size() >= MAX_SPECIALIZATIONS)
+                return INTERPRET;
+
+            try {
+                program = new CodeGenerator(names, JExpParser.numericTypes(signature, names.length)).generate(node);
+            } catch (JExpParser.NotSpecializable e) {
+                program = INTERPRET;
+            }
+            programs.put(signature, program);
+            return program;
+        }
+    }
+
+    static class Program {
+        final ToLongFunction<long[]> function;
+        final NumericType result;
+
+        Program(ToLongFunction<long[]> function, NumericType result) {
+            this.function = function;
+            this.result = result;
+        }
+
+        Value apply(long[] args) {
+            long r = function.applyAsLong(args);
+            switch (result) {
+                case Long:
+                    return Value.of(r);
+                case Double:
+                    return Value.of(Double.longBitsToDouble(r));
+                default:
+                    return r != 0 ? Value.TRUE : Value.FALSE;
+            }
+        }
+    }
+
+    // emits applyAsLong(Object) of a ToLongFunction<long[]>, throws NotSpecializable on type errors
+    static class CodeGenerator {
+        private static final int ARGS_SLOT = 2;
+
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final NumericType[] kinds;
+        private final ClassFile cf;
+        private final ClassFile.Code code;
+
+        CodeGenerator(String[] names, NumericType[] kinds) {
+            for (int i = 0; i < names.length; i++) {
+                slots.put(names[i], i);
+            }
+            this.kinds = kinds;
+            this.cf = new ClassFile("org/my/JExpCompiled$" + counter.incrementAndGet());
+            this.code = new ClassFile.Code(ARGS_SLOT + 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        Program generate(JExpParser.Node node) {
+            NumericType result = kindOf(node);
+
+            code.op(0x2b, 1);                                                   // aload_1
+            code.op(0xc0, 0).u2(cf.classRef("[J"));                           // checkcast long[]
+            code.op(0x4d, -1);                                                  // astore_2
+            emit(node, result);
+            switch (result) {
+                case Double:
+                    invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J", 0);
+                    break;
+                case Boolean:
+                    code.op(0x85, 1);                                           // i2l
+                    break;
+            }
+            code.op(0xad, -2);                                                  // lreturn
+
+            // a class the JVM refuses, e.g. a VerifyError or ClassFormatError on a generator bug, runs on the interpreter
+            try {
+                Class<?> c = define(cf.name, cf.toBytes(code));
+                return new Program((ToLongFunction<long[]>) c.getConstructor().newInstance(), result);
+            } catch (ReflectiveOperationException | IOException | RuntimeException | LinkageError e) {
+                throw new JExpParser.NotSpecializable("fail to generate class: " + e.getMessage(), e);
+            }
+        }
+
+        private NumericType kindOf(JExpParser.Node node) {
+            return JExpParser.numericTypeOf(node, name -> kinds[slots.get(name)]);
+        }
+
+        // leaves the value of node on the stack as the kind wanted
+        private void emit(JExpParser.Node node, NumericType wanted) {
+            NumericType kind = kindOf(node);
+            if (node instanceof JExpParser.SimpleValueNode) {
+                Value v = ((JExpParser.SimpleValueNode) node).value;
+                switch (kind) {
+                    case Long:
+                        code.op(0x14, 2).u2(cf.longConst(v.asLong()));         // ldc2_w
+                        break;
+                    case Double:
+                        code.op(0x14, 2).u2(cf.doubleConst(v.asDouble()));     // ldc2_w
+                        break;
+                    default:
+                        code.op(v.asBoolean() ? 0x04 : 0x03, 1);                // iconst_1 / iconst_0
+                        break;
+                }
+            } else if (node instanceof JExpParser.NameNode) {
+                code.op(0x2c, 1);                                               // aload_2
+                pushInt(slots.get(((JExpParser.NameNode) node).name));
+                code.op(0x2f, 0);                                               // laload
+                if (kind == NumericType.Double)
+                    invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D", 0);
+                else if (kind == NumericType.Boolean)
+                    code.op(0x88, -1);                                          // l2i
+            } else if (node instanceof JExpParser.OpNode) {
+                emitOp((JExpParser.OpNode) node, kind);
+            } else {
+                emitFunc((JExpParser.FuncNode) node, kind);
+            }
+
+            if (kind == NumericType.Long && wanted == NumericType.Double)
+                code.op(0x8a, 0);                                               // l2d
+        }
+
+        private void emitOp(JExpParser.OpNode on, NumericType kind) {
+            String op = on.operator.op;
+            if (on.nodes.length == 1) {
+                emit(on.nodes[0], kind);
+                if (op.equals("!")) {
+                    code.op(0x04, 1);                                           // iconst_1
+                    code.op(0x82, -1);                                          // ixor
+                } else if (op.equals("-")) {
+                    code.op(kind == NumericType.Long ? 0x75 : 0x77, 0);                // lneg / dneg
+                }
+                return;
+            }
+
+            switch (op) {
+                case "+":
+                    arithmetic(on, kind, 0x61, 0x63);                           // ladd / dadd
+                    return;
+                case "-":
+                    arithmetic(on, kind, 0x65, 0x67);                           // lsub / dsub
+                    return;
+                case "*":
+                    arithmetic(on, kind, 0x69, 0x6b);                           // lmul / dmul
+                    return;
+                case "/":
+                    arithmetic(on, kind, 0, 0x6f);                              // ddiv
+                    return;
+                case "%":
+                    arithmetic(on, kind, 0, 0x73);                              // drem
+                    return;
+                case "^":
+                    emit(on.nodes[0], NumericType.Double);
+                    emit(on.nodes[1], NumericType.Double);
+                    invokeStatic("java/lang/Math", "pow", "(DD)D", -2);
+                    return;
+                case "&&":
+                    emit(on.nodes[0], NumericType.Boolean);
+                    emit(on.nodes[1], NumericType.Boolean);
+                    code.op(0x7e, -1);                                          // iand
+                    return;
+                case "||":
+                    emit(on.nodes[0], NumericType.Boolean);
+                    emit(on.nodes[1], NumericType.Boolean);
+                    code.op(0x80, -1);                                          // ior
+                    return;
+            }
+
+            NumericType x = kindOf(on.nodes[0]);
+            NumericType y = kindOf(on.nodes[1]);
+            if ((op.equals("==") || op.equals("!=")) && x != y) {
+                // Value.equals compares the types first
+                code.op(op.equals("==") ? 0x03 : 0x04, 1);                     // iconst_0 / iconst_1
+                return;
+            }
+
+            compare(on.nodes[0], on.nodes[1], x, y);
+            switch (op) {
+                case "<=>":
+                    code.op(0x85, 1);                                           // i2l
+                    return;
+                case ">":
+                    condition(0x9e);                                            // ifle
+                    return;
+                case ">=":
+                    condition(0x9b);                                            // iflt
+                    return;
+                case "<":
+                    condition(0x9c);                                            // ifge
+                    return;
+                case "<=":
+                    condition(0x9d);                                            // ifgt
+                    return;
+                case "==":
+                    condition(0x9a);                                            // ifne
+                    return;
+                default:
+                    condition(0x99);                                            // ifeq
+            }
+        }
+
+        private void arithmetic(JExpParser.OpNode on, NumericType kind, int longOp, int doubleOp) {
+            emit(on.nodes[0], kind);
+            emit(on.nodes[1], kind);
+            code.op(kind == NumericType.Long ? longOp : doubleOp, -2);
+        }
+
+        // leaves -1, 0 or 1 as Value.compareTo does
+        private void compare(JExpParser.Node lhs, JExpParser.Node rhs, NumericType x, NumericType y) {
+            if (x == NumericType.Boolean) {
+                emit(lhs, NumericType.Boolean);
+                emit(rhs, NumericType.Boolean);
+                code.op(0x64, -1);                                              // isub
+            } else if (x == NumericType.Long && y == NumericType.Long) {
+                emit(lhs, NumericType.Long);
+                emit(rhs, NumericType.Long);
+                code.op(0x94, -3);                                              // lcmp
+            } else {
+                emit(lhs, NumericType.Double);
+                emit(rhs, NumericType.Double);
+                invokeStatic("java/lang/Double", "compare", "(DD)I", -3);
+            }
+        }
+
+        // turns the int on the stack into a boolean, jumping to false with the given branch opcode
+        private void condition(int branch) {
+            int onFalse = code.jump(branch, -1);
+            code.op(0x04, 1);                                                   // iconst_1
+            int toEnd = code.jump(0xa7, 0);                                     // goto
+            code.label(onFalse);
+            code.op(0x03, 1);                                                   // iconst_0
+            code.label(toEnd);
+        }
+
+        private void emitFunc(JExpParser.FuncNode fn, NumericType kind) {
+            String name = fn.func.name;
+            if (mathFunctions.containsKey(name)) {
+                emit(fn.nodes[0], NumericType.Double);
+                invokeStatic("java/lang/Math", mathFunctions.get(name), "(D)D", 0);
+                return;
+            }
+
+            switch (name) {
+                case "abs":
+                    emit(fn.nodes[0], kind);
+                    invokeStatic("java/lang/Math", "abs", kind == NumericType.Long ? "(J)J" : "(D)D", 0);
+                    return;
+                case "pow":
+                    emit(fn.nodes[0], NumericType.Double);
+                    emit(fn.nodes[1], NumericType.Double);
+                    invokeStatic("java/lang/Math", "pow", "(DD)D", -2);
+                    return;
+                case "cot":
+                    reciprocal(fn.nodes[0], "tan");
+                    return;
+                case "csc":
+                    reciprocal(fn.nodes[0], "sin");
+                    return;
+                case "sec":
+                    reciprocal(fn.nodes[0], "cos");
+                    return;
+                case "csch":
+                    reciprocal(fn.nodes[0], "sinh");
+                    return;
+                case "sech":
+                    reciprocal(fn.nodes[0], "cosh");
+                    return;
+                case "coth": {
+                    int temp = code.local(2);
+                    emit(fn.nodes[0], NumericType.Double);
+                    code.op(0x39, -2).u1(temp);                                 // dstore
+                    code.op(0x18, 2).u1(temp);                                  // dload
+                    invokeStatic("java/lang/Math", "cosh", "(D)D", 0);
+                    code.op(0x18, 2).u1(temp);                                  // dload
+                    invokeStatic("java/lang/Math", "sinh", "(D)D", 0);
+                    code.op(0x6f, -2);                                          // ddiv
+                    return;
+                }
+                case "log2":
+                    emit(fn.nodes[0], NumericType.Double);
+                    invokeStatic("java/lang/Math", "log", "(D)D", 0);
+                    code.op(0x14, 2).u2(cf.doubleConst(2d));                    // ldc2_w
+                    invokeStatic("java/lang/Math", "log", "(D)D", 0);
+                    code.op(0x6f, -2);                                          // ddiv
+                    return;
+                default:
+                    // logb(base, x)
+                    emit(fn.nodes[1], NumericType.Double);
+                    invokeStatic("java/lang/Math", "log", "(D)D", 0);
+                    emit(fn.nodes[0], NumericType.Double);
+                    invokeStatic("java/lang/Math", "log", "(D)D", 0);
+                    code.op(0x6f, -2);                                          // ddiv
+            }
+        }
+
+        private void reciprocal(JExpParser.Node node, String func) {
+            code.op(0x0f, 2);                                                   // dconst_1
+            emit(node, NumericType.Double);
+            invokeStatic("java/lang/Math", func, "(D)D", 0);
+            code.op(0x6f, -2);                                                  // ddiv
+        }
+
+        private void invokeStatic(String owner, String name, String descriptor, int delta) {
+            code.op(0xb8, delta).u2(cf.methodRef(owner, name, descriptor));
+        }
+
+        private void pushInt(int n) {
+            if (n <= 5) {
+                code.op(0x03 + n, 1);                                           // iconst_n
+            } else if (n < 128) {
+                code.op(0x10, 1).u1(n);                                         // bipush
+            } else {
+                code.op(0x11, 1).u2(n);                                         // sipush
+            }
+        }
+    }
+
+    /**
+     * A minimal class file writer, just enough for a final class with a default constructor and one method.
+     * Written as version 49 so that the branches need no stack map frames.
+     */
+    static class ClassFile {
+        final String name;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(pool);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        ClassFile(String name) {
+            this.name = name;
+        }
+
+        private int entry(String key, int slots, IOAction write) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+
+            try {
+                write.run();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, count);
+            count += slots;
+            return count - slots;
+        }
+
+        int utf8(String s) {
+            return entry("U" + s, 1, () -> {
+                out.writeByte(1);
+                out.writeUTF(s);
+            });
+        }
+
+        int classRef(String internalName) {
+            int n = utf8(internalName);
+            return entry("C" + internalName, 1, () -> {
+                out.writeByte(7);
+                out.writeShort(n);
+            });
+        }
+
+        int methodRef(String owner, String method, String descriptor) {
+            int c = classRef(owner);
+            int m = utf8(method);
+            int d = utf8(descriptor);
+            int nt = entry("N" + method + descriptor, 1, () -> {
+                out.writeByte(12);
+                out.writeShort(m);
+                out.writeShort(d);
+            });
+            return entry("M" + owner + "." + method + descriptor, 1, () -> {
+                out.writeByte(10);
+                out.writeShort(c);
+                out.writeShort(nt);
+            });
+        }
+
+        int longConst(long v) {
+            return entry("J" + v, 2, () -> {
+                out.writeByte(5);
+                out.writeLong(v);
+            });
+        }
+
+        int doubleConst(double v) {
+            return entry("D" + Double.doubleToRawLongBits(v), 2, () -> {
+                out.writeByte(6);
+                out.writeDouble(v);
+            });
+        }
+
+        byte[] toBytes(Code method) throws IOException {
+            int thisClass = classRef(name);
+            int superClass = classRef("java/lang/Object");
+            int function = classRef("java/util/function/ToLongFunction");
+            int init = utf8("<init>");
+            int voidDesc = utf8("()V");
+            int superInit = methodRef("java/lang/Object", "<init>", "()V");
+            int apply = utf8("applyAsLong");
+            int applyDesc = utf8("(Ljava/lang/Object;)J");
+            int codeAttr = utf8("Code");
+            if (count > 0xffff || method.bytes.size() > 0xffff)
+                throw new IllegalStateException("expression too large");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream cf = new DataOutputStream(bytes);
+            cf.writeInt(0xcafebabe);
+            cf.writeShort(0);
+            cf.writeShort(49);
+            cf.writeShort(count);
+            pool.writeTo(bytes);
+            cf.writeShort(0x0031);                                              // public final super
+            cf.writeShort(thisClass);
+            cf.writeShort(superClass);
+            cf.writeShort(1);
+            cf.writeShort(function);
+            cf.writeShort(0);                                                   // fields
+            cf.writeShort(2);                                                   // methods
+
+            cf.writeShort(0x0001);
+            cf.writeShort(init);
+            cf.writeShort(voidDesc);
+            cf.writeShort(1);
+            byte[] ctor = {0x2a, (byte) 0xb7, (byte) (superInit >> 8), (byte) superInit, (byte) 0xb1};
+            writeCode(cf, codeAttr, 1, 1, ctor);                                // aload_0, invokespecial, return
+
+            cf.writeShort(0x0001);
+            cf.writeShort(apply);
+            cf.writeShort(applyDesc);
+            cf.writeShort(1);
+            writeCode(cf, codeAttr, method.maxStack, method.maxLocals, method.bytes.toByteArray());
+
+            cf.writeShort(0);                                                   // attributes
+            return bytes.toByteArray();
+        }
+
+        private static void writeCode(DataOutputStream cf, int codeAttr, int maxStack, int maxLocals, byte[] code) throws IOException {
+            cf.writeShort(codeAttr);
+            cf.writeInt(12 + code.length);
+            cf.writeShort(maxStack);
+            cf.writeShort(maxLocals);
+            cf.writeInt(code.length);
+            cf.write(code);
+            cf.writeShort(0);                                                   // exception table
+            cf.writeShort(0);                                                   // attributes
+        }
+
+        interface IOAction {
+            void run() throws IOException;
+        }
+
+        // the body of a method, tracking the depth of the operand stack
+        static class Code {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            private int depth = 0;
+            private int maxStack = 0;
+            private int maxLocals;
+            private final List<int[]> jumps = new ArrayList<>();
+
+            Code(int locals) {
+                this.maxLocals = locals;
+            }
+
+            Code op(int opcode, int delta) {
+                bytes.write(opcode);
+                depth += delta;
+                maxStack = Math.max(maxStack, depth);
+                return this;
+            }
+
+            Code u1(int v) {
+                bytes.write(v);
+                return this;
+            }
+
+            Code u2(int v) {
+                bytes.write(v >> 8);
+                bytes.write(v);
+                return this;
+            }
+
+            int local(int size) {
+                maxLocals += size;
+                return maxLocals - size;
+            }
+
+            // a forward jump, returns the handle for label()
+            int jump(int opcode, int delta) {
+                jumps.add(new int[] {bytes.size(), depth + delta});
+                op(opcode, delta);
+                u2(0);
+                return jumps.size() - 1;
+            }
+
+            // binds the jump to the current position, the stack is as it was after the jump
+            void label(int jump) {
+                int[] from = jumps.get(jump);
+                patch(from[0], bytes.size() - from[0]);
+                depth = from[1];
+            }
+
+            private void patch(int at, int offset) {
+                byte[] b = bytes.toByteArray();
+                b[at + 1] = (byte) (offset >> 8);
+                b[at + 2] = (byte) offset;
+                bytes.reset();
+                bytes.write(b, 0, b.length);
+            }
+        }
+    }
+
+    private static Method findDefineHiddenClass() {
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            return MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+                    Array.newInstance(option, 0).getClass());
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // hidden classes (Java 15+) are unloaded with the expression, before that each class gets a throwaway loader
+    static Class<?> define(String name, byte[] bytes) throws ReflectiveOperationException {
+        if (defineHiddenClass != null) {
+            Object empty = Array.newInstance(defineHiddenClass.getParameterTypes()[2].getComponentType(), 0);
+            MethodHandles.Lookup lookup = (MethodHandles.Lookup) defineHiddenClass.invoke(MethodHandles.lookup(), bytes, true, empty);
+            return lookup.lookupClass();
+        }
+
+        return new ClassLoader(JExpCompiler.class.getClassLoader()) {
+            Class<?> define() {
+                return defineClass(name.replace('/', '.'), bytes, 0, bytes.length);
+            }
+        }.define();
+    }
+}
@@ -1,11 +1,22 @@
 package org.my;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
-import java.util.regex.Matcher;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
@@ -36,31 +47,642 @@ public class JExpParser {
             return evaluate(new SimpleContext());
         }
 
+        @Override
+        public Set<List<String>> getJsonPaths() {
+            return jsonPaths(node);
+        }
+
         public String dump() {
             return node.dump();
         }
     }
 
     static class SimpleBuilder implements IExpressionBuilder {
-        private final JExpParser parser;
+        private final String source; // null when read from a Reader, such a source is never cached
+        private final boolean optimize;
+        private JExpParser parser;
 
         public SimpleBuilder(String expression) {
-            parser = new JExpParser(expression.toCharArray(), 0, false);
+            this(expression, false);
         }
 
         public SimpleBuilder(String expression, boolean optimize) {
-            parser = new JExpParser(expression.toCharArray(), 0, optimize);
+            this.source = expression;
+            this.optimize = optimize;
+        }
+
+        public SimpleBuilder(Reader expression, boolean optimize) {
+            this.source = null;
+            this.optimize = optimize;
+            parser = new JExpParser(expression, optimize);
         }
 
         @Override
         public IExpression build() {
-            List<IExpression> exps = buildAll();
+            List<IExpression> exps = expressions();
             return exps.isEmpty() ? null : exps.get(0);
         }
 
         @Override
         public List<IExpression> buildAll() {
-            return parser.parse(false).stream().map(SimpleExpression::new).collect(Collectors.toList());
+            return new ArrayList<>(expressions());
+        }
+
+        private List<IExpression> expressions() {
+            if (source == null)
+                return parse();
+            return ExpressionCache.INSTANCE.get(source, optimize, this::parse);
+        }
+
+        private List<IExpression> parse() {
+            return parser().parse(false).stream().map(SimpleExpression::new).collect(Collectors.toList());
+        }
+
+        private JExpParser parser() {
+            if (parser == null)
+                parser = new JExpParser(source.toCharArray(), 0, optimize);
+            return parser;
+        }
+
+        @Override
+        public Iterator<IExpression> buildIncrementally() {
+            Iterator<Node> statements = parser().statements();
+            return new Iterator<IExpression>() {
+                @Override
+                public boolean hasNext() {
+                    return statements.hasNext();
+                }
+
+                @Override
+                public IExpression next() {
+                    return new SimpleExpression(statements.next());
+                }
+            };
+        }
+    }
+
+    static class IncrementalScript implements IExpressionScript {
+        private final Piece root;     // the statements in order, the separator belongs to the statement
+        private final boolean optimize;
+        private final List<IExpression> expressions;
+        private String script;        // joined on first use, a racy fill only joins it twice
+
+        public IncrementalScript(String script, boolean optimize) {
+            List<Integer> ss = new ArrayList<>();
+            List<Node> ns = new ArrayList<>();
+            new JExpParser(script.toCharArray(), 0, optimize).parseStatements(0, ss, ns, p -> false);
+            Piece root = null;
+            for (int i = 0; i < ss.size(); i++) {
+                int end = i + 1 < ss.size() ? ss.get(i + 1) : script.length();
+                root = Piece.merge(root, Piece.of(script.substring(ss.get(i), end), ns.get(i)));
+            }
+            this.root = root;
+            this.optimize = optimize;
+            this.expressions = new Expressions(root);
+            this.script = script;
+        }
+
+        private IncrementalScript(Piece root, boolean optimize) {
+            this.root = root;
+            this.optimize = optimize;
+            this.expressions = new Expressions(root);
+        }
+
+        @Override
+        public String getScript() {
+            String s = script;
+            if (s == null) {
+                StringBuilder sb = new StringBuilder(root.length);
+                for (Cursor c = new Cursor(root, 0); c.hasNext(); )
+                    sb.append(c.next().text);
+                script = s = sb.toString();
+            }
+            return s;
+        }
+
+        @Override
+        public List<IExpression> getExpressions() {
+            return expressions;
+        }
+
+        @Override
+        public IExpressionScript edit(int offset, int length, String replacement) {
+            if (offset < 0 || length < 0 || offset + length > root.length)
+                throw new IndexOutOfBoundsException(String.format("edit [%d, %d) out of script length %d", offset, offset + length, root.length));
+
+            int delta = replacement.length() - length;
+            int oldEnd = offset + length;
+
+            // statements before the one holding the edit are not affected since each ends at its separator
+            int[] at = root.locate(offset);
+            int first = at[0], start = at[1];
+
+            // re-parse the edited text from that statement until one starts at an unchanged old boundary behind the edit,
+            // the text is read from the pieces as the tokenizer needs it and kept to cut the new statements from
+            StringBuilder window = new StringBuilder();
+            int[] behind = root.locate(oldEnd);
+            Reader in = new EditReader(root.text(first).substring(0, offset - start) + replacement,
+                    new Cursor(root, behind[0]), oldEnd - behind[1], window);
+            List<Integer> ss = new ArrayList<>();
+            List<Node> ns = new ArrayList<>();
+            int[] resumed = {root.count};
+            new JExpParser(in, start, optimize).parseStatements(start, ss, ns, p -> {
+                int old = p - delta;
+                if (old < oldEnd)
+                    return false;
+                int[] s = root.locate(old);
+                if (s[1] != old || s[0] <= first)
+                    return false;
+                resumed[0] = s[0];
+                return true;
+            });
+            int end = resumed[0] < root.count ? root.start(resumed[0]) + delta : root.length + delta;
+
+            // the statements behind are reused as they are, their offsets follow from the lengths in the tree
+            Piece edited = null;
+            for (int i = 0; i < ss.size(); i++) {
+                int to = i + 1 < ss.size() ? ss.get(i + 1) : end;
+                edited = Piece.merge(edited, Piece.of(window.substring(ss.get(i) - start, to - start), ns.get(i)));
+            }
+            Piece[] head = Piece.split(root, first);
+            Piece[] tail = Piece.split(head[1], resumed[0] - first);
+            return new IncrementalScript(Piece.merge(Piece.merge(head[0], edited), tail[1]), optimize);
+        }
+
+        // a node of a treap ordered by statement, each subtree knows its statement count, text length and expression
+        // count so that a statement is found by index or offset in a logarithmic walk; edits copy only the path
+        private static final class Piece {
+            final String text;
+            final IExpression expression;  // null for an empty statement
+            final int priority;
+            final Piece left, right;
+            final int count, length, expressions;
+
+            Piece(String text, IExpression expression, int priority, Piece left, Piece right) {
+                this.text = text;
+                this.expression = expression;
+                this.priority = priority;
+                this.left = left;
+                this.right = right;
+                this.count = 1 + count(left) + count(right);
+                this.length = text.length() + length(left) + length(right);
+                this.expressions = (expression != null ? 1 : 0) + expressions(left) + expressions(right);
+            }
+
+            static Piece of(String text, Node node) {
+                return new Piece(text, node != null ? new SimpleExpression(node) : null,
+                        ThreadLocalRandom.current().nextInt(), null, null);
+            }
+
+            private Piece with(Piece left, Piece right) {
+                return new Piece(text, expression, priority, left, right);
+            }
+
+            private static int count(Piece p) {
+                return p != null ? p.count : 0;
+            }
+
+            private static int length(Piece p) {
+                return p != null ? p.length : 0;
+            }
+
+            private static int expressions(Piece p) {
+                return p != null ? p.expressions : 0;
+            }
+
+            static Piece merge(Piece a, Piece b) {
+                if (a == null)
+                    return b;
+                if (b == null)
+                    return a;
+                return a.priority >= b.priority ? a.with(a.left, merge(a.right, b)) : b.with(merge(a, b.left), b.right);
+            }
+
+            // the first k statements and the rest
+            static Piece[] split(Piece p, int k) {
+                if (p == null)
+                    return new Piece[2];
+                int lc = count(p.left);
+                if (k <= lc) {
+                    Piece[] s = split(p.left, k);
+                    return new Piece[]{s[0], p.with(s[1], p.right)};
+                }
+                Piece[] s = split(p.right, k - lc - 1);
+                return new Piece[]{p.with(p.left, s[0]), s[1]};
+            }
+
+            // the index and start offset of the statement holding offset, the last one for the end of the script
+            int[] locate(int offset) {
+                int index = 0, start = 0;
+                for (Piece p = this; ; ) {
+                    int ll = length(p.left);
+                    if (offset < ll) {
+                        p = p.left;
+                    } else if (offset < ll + p.text.length() || p.right == null) {
+                        return new int[]{index + count(p.left), start + ll};
+                    } else {
+                        offset -= ll + p.text.length();
+                        index += count(p.left) + 1;
+                        start += ll + p.text.length();
+                        p = p.right;
+                    }
+                }
+            }
+
+            // the start offset of the statement at index
+            int start(int index) {
+                int start = 0;
+                Piece p = this;
+                while (true) {
+                    int lc = count(p.left);
+                    if (index < lc) {
+                        p = p.left;
+                    } else if (index == lc) {
+                        return start + length(p.left);
+                    } else {
+                        index -= lc + 1;
+                        start += length(p.left) + p.text.length();
+                        p = p.right;
+                    }
+                }
+            }
+
+            String text(int index) {
+                return find(index, p -> p.count, p -> 1).text;
+            }
+
+            // the piece at index counted by size, where each piece counts self
+            private Piece find(int index, ToIntFunction<Piece> size, ToIntFunction<Piece> self) {
+                Piece p = this;
+                while (true) {
+                    int ls = p.left != null ? size.applyAsInt(p.left) : 0;
+                    if (index < ls) {
+                        p = p.left;
+                    } else if (index < ls + self.applyAsInt(p)) {
+                        return p;
+                    } else {
+                        index -= ls + self.applyAsInt(p);
+                        p = p.right;
+                    }
+                }
+            }
+        }
+
+        // the statements in order from an index
+        private static final class Cursor {
+            private final Deque<Piece> stack = new ArrayDeque<>();
+
+            Cursor(Piece p, int index) {
+                while (p != null) {
+                    int lc = Piece.count(p.left);
+                    if (index <= lc) {
+                        stack.push(p);
+                        if (index == lc)
+                            break;
+                        p = p.left;
+                    } else {
+                        index -= lc + 1;
+                        p = p.right;
+                    }
+                }
+            }
+
+            boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            Piece next() {
+                Piece p = stack.pop();
+                for (Piece r = p.right; r != null; r = r.left)
+                    stack.push(r);
+                return p;
+            }
+        }
+
+        // the edited text from the start of the first affected statement: the new head and then the old text behind
+        // the edit, every char read is kept in window
+        private static final class EditReader extends Reader {
+            private final Cursor rest;
+            private final StringBuilder window;
+            private String current;
+            private int pos;
+
+            EditReader(String head, Cursor rest, int skip, StringBuilder window) {
+                this.rest = rest;
+                this.window = window;
+                this.current = head;
+                if (rest.hasNext() && skip > 0) {
+                    // the remainder of the statement holding the edit end follows the head
+                    this.current = head + rest.next().text.substring(skip);
+                }
+            }
+
+            @Override
+            public int read(char[] buf, int off, int len) {
+                while (pos == current.length()) {
+                    if (!rest.hasNext())
+                        return -1;
+                    current = rest.next().text;
+                    pos = 0;
+                }
+                int n = Math.min(len, current.length() - pos);
+                current.getChars(pos, pos + n, buf, off);
+                window.append(buf, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+
+        // the non empty statements of a tree by index
+        private static final class Expressions extends AbstractList<IExpression> implements RandomAccess {
+            private final Piece root;
+
+            Expressions(Piece root) {
+                this.root = root;
+            }
+
+            @Override
+            public IExpression get(int index) {
+                if (index < 0 || index >= size())
+                    throw new IndexOutOfBoundsException(String.format("index %d out of %d expressions", index, size()));
+                return root.find(index, p -> p.expressions, p -> p.expression != null ? 1 : 0).expression;
+            }
+
+            @Override
+            public int size() {
+                return root.expressions;
+            }
+        }
+    }
+
+    // the parsed trees of expressions in a binary artifact, loaded back without tokenizing or parsing
+    static class NodeCodec {
+        static final byte VERSION = 2;
+        // operators are referred to by their place in the table, an artifact only loads with the table it was written with
+        static final long OPERATORS = fingerprint(operators);
+
+        private static final byte VALUE = 0, LIST = 1, MAP = 2, EXP = 3, TEMPLATE = 4, PATH = 5, OP = 6, FUNC = 7,
+                NAME = 8, NUMERIC = 9;
+        private static final byte ROOT = 0, PROPERTY = 1, INDEX = 2, FILTER = 3, ALL = 4;
+        private static final byte SIMPLE = 0, COMPILED = 1, EXP_VALUE = 2;
+
+        static byte[] encode(List<IExpression> expressions) {
+            ValueCodec.Encoder out = new ValueCodec.Encoder();
+            out.writeByte(VERSION);
+            out.writeVarint(OPERATORS);
+            out.writeVarint(expressions.size());
+            for (IExpression e : expressions)
+                writeExpression(out, e);
+            return out.toByteArray();
+        }
+
+        // the kind of the expression then its tree, also used for the expressions held by a value
+        static void writeExpression(ValueCodec.Encoder out, IExpression e) {
+            if (e instanceof ExpValueNode.JExp) {
+                out.writeByte(EXP_VALUE);
+                write(out, ((ExpValueNode.JExp) e).node);
+            } else if (e instanceof SimpleExpression) {
+                out.writeByte(SIMPLE);
+                write(out, ((SimpleExpression) e).node);
+            } else if (e instanceof JExpCompiler.CompiledExpression) {
+                out.writeByte(COMPILED);
+                write(out, ((JExpCompiler.CompiledExpression) e).interpreter.node);
+            } else {
+                throw new Exp4jException.EvaluationException(String.format("%s can't be encoded", e.getClass().getName()));
+            }
+        }
+
+        static IExpression readExpression(ValueCodec.Decoder in) {
+            int kind = in.readByte();
+            Node node = read(in);
+            switch (kind) {
+                case SIMPLE:
+                    return new SimpleExpression(node);
+                case COMPILED:
+                    return JExpCompiler.compile(new SimpleExpression(node));
+                case EXP_VALUE:
+                    return new ExpValueNode.JExp((ExpValueNode) node);
+                default:
+                    throw new Exp4jException.ParseException(String.format("unknown expression kind %d", kind));
+            }
+        }
+
+        static List<IExpression> decode(ByteBuffer buffer) {
+            ValueCodec.Decoder in = new ValueCodec.Decoder(buffer);
+            try {
+                int version = in.readByte();
+                if (version != VERSION)
+                    throw new Exp4jException.ParseException(String.format("unknown artifact version %d", version));
+                if (in.readVarint() != OPERATORS)
+                    throw new Exp4jException.ParseException("the artifact was written with other operators");
+
+                int n = in.readLength();
+                List<IExpression> expressions = new ArrayList<>(n);
+                for (int i = 0; i < n; i++)
+                    expressions.add(readExpression(in));
+                return expressions;
+            } catch (BufferUnderflowException | ClassCastException e) {
+                throw new Exp4jException.ParseException("corrupt artifact: " + e.getMessage());
+            }
+        }
+
+        // a hash of every operator's symbol, arity, fixity and associativity, level by level
+        static long fingerprint(Operator[][] table) {
+            long h = 0xcbf29ce484222325L;
+            for (Operator[] level : table) {
+                for (Operator o : level) {
+                    String s = o.op + '/' + o.operands + '/' + o.suffix + '/' + o.associative;
+                    for (int i = 0; i < s.length(); i++)
+                        h = (h ^ s.charAt(i)) * 0x100000001b3L;
+                    h = (h ^ ',') * 0x100000001b3L;
+                }
+                h = (h ^ ';') * 0x100000001b3L;
+            }
+            return h;
+        }
+
+        private static void write(ValueCodec.Encoder out, Node node) {
+            if (node instanceof SimpleValueNode) {
+                out.writeByte(VALUE);
+                out.write(((SimpleValueNode) node).value);
+            } else if (node instanceof ListValueNode) {
+                out.writeByte(LIST);
+                writeAll(out, ((ListValueNode) node).nodes.toArray(new Node[0]));
+            } else if (node instanceof MapValueNode) {
+                Map<String, Node> map = ((MapValueNode) node).nodeMap;
+                out.writeByte(MAP);
+                out.writeVarint(map.size());
+                for (Map.Entry<String, Node> e : map.entrySet()) {
+                    out.writeInterned(e.getKey());
+                    write(out, e.getValue());
+                }
+            } else if (node instanceof ExpValueNode) {
+                out.writeByte(EXP);
+                writeAll(out, ((ExpValueNode) node).nodes);
+            } else if (node instanceof TemplateValueNode) {
+                out.writeByte(TEMPLATE);
+                writeAll(out, ((TemplateValueNode) node).nodes.toArray(new Node[0]));
+            } else if (node instanceof JsonPathValueNode) {
+                JsonPathValueNode path = (JsonPathValueNode) node;
+                out.writeByte(PATH);
+                out.writeByte(path.object == null ? 0 : 1);
+                if (path.object != null)
+                    write(out, path.object);
+                out.writeVarint(path.nodes.size());
+                for (JsonPathValueNode.PathAccessor a : path.nodes) {
+                    if (a.root) {
+                        out.writeByte(ROOT);
+                    } else if (a.property != null) {
+                        out.writeByte(PROPERTY);
+                        out.writeInterned(a.property);
+                    } else if (a.index != null) {
+                        out.writeByte(INDEX);
+                        out.writeSigned(a.index);
+                    } else if (a.filter != null) {
+                        out.writeByte(FILTER);
+                        write(out, a.filter);
+                    } else {
+                        out.writeByte(ALL);
+                    }
+                }
+            } else if (node instanceof OpNode) {
+                OpNode op = (OpNode) node;
+                out.writeByte(OP);
+                writeOperator(out, op.operator);
+                writeAll(out, op.nodes);
+            } else if (node instanceof FuncNode) {
+                FuncNode func = (FuncNode) node;
+                out.writeByte(FUNC);
+                out.writeInterned(func.func.name);
+                writeAll(out, func.nodes);
+            } else if (node instanceof NameNode) {
+                NameNode name = (NameNode) node;
+                out.writeByte(NAME);
+                out.writeInterned(name.name);
+                out.writeByte(name.nodes == null ? 0 : 1);
+                if (name.nodes != null)
+                    writeAll(out, name.nodes);
+            } else if (node instanceof NumericNode) {
+                NumericNode numeric = (NumericNode) node;
+                out.writeByte(NUMERIC);
+                out.writeVarint(numeric.names.length);
+                for (String name : numeric.names)
+                    out.writeInterned(name);
+                write(out, numeric.node);
+            } else {
+                throw new Exp4jException.EvaluationException(String.format("%s can't be encoded", node.getClass().getName()));
+            }
+        }
+
+        private static void writeAll(ValueCodec.Encoder out, Node[] nodes) {
+            out.writeVarint(nodes.length);
+            for (Node n : nodes)
+                write(out, n);
+        }
+
+        private static void writeOperator(ValueCodec.Encoder out, Operator operator) {
+            for (int level = 0; level < operators.length; level++) {
+                for (int i = 0; i < operators[level].length; i++) {
+                    if (operators[level][i] == operator) {
+                        out.writeVarint(level);
+                        out.writeVarint(i);
+                        return;
+                    }
+                }
+            }
+            throw new Exp4jException.EvaluationException(String.format("operator '%s' is not in the table", operator.op));
+        }
+
+        private static Node read(ValueCodec.Decoder in) {
+            int tag = in.readByte();
+            switch (tag) {
+                case VALUE:
+                    return new SimpleValueNode(in.read());
+                case LIST:
+                    return new ListValueNode(new ArrayList<>(Arrays.asList(readAll(in))));
+                case MAP: {
+                    int size = in.readLength();
+                    Map<String, Node> map = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        String key = in.readInterned();
+                        map.put(key, read(in));
+                    }
+                    return new MapValueNode(map);
+                }
+                case EXP:
+                    return new ExpValueNode(readAll(in));
+                case TEMPLATE:
+                    return new TemplateValueNode(new ArrayList<>(Arrays.asList(readAll(in))));
+                case PATH: {
+                    Node object = in.readByte() == 0 ? null : read(in);
+                    int size = in.readLength();
+                    List<JsonPathValueNode.PathAccessor> accessors = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        int kind = in.readByte();
+                        switch (kind) {
+                            case ROOT:
+                                accessors.add(new JsonPathValueNode.PathAccessor());
+                                break;
+                            case PROPERTY:
+                                accessors.add(new JsonPathValueNode.PathAccessor(in.readInterned()));
+                                break;
+                            case INDEX:
+                                accessors.add(new JsonPathValueNode.PathAccessor((int) in.readSigned(), null));
+                                break;
+                            case FILTER:
+                                accessors.add(new JsonPathValueNode.PathAccessor(null, (ExpValueNode) read(in)));
+                                break;
+                            case ALL:
+                                accessors.add(new JsonPathValueNode.PathAccessor(null, null));
+                                break;
+                            default:
+                                throw new Exp4jException.ParseException(String.format("unknown path step %d", kind));
+                        }
+                    }
+                    return new JsonPathValueNode(object, accessors);
+                }
+                case OP: {
+                    long level = in.readVarint();
+                    long i = in.readVarint();
+                    if (level < 0 || level >= operators.length || i < 0 || i >= operators[(int) level].length)
+                        throw new Exp4jException.ParseException(String.format("unknown operator %d:%d", level, i));
+                    Operator operator = operators[(int) level][(int) i];
+                    Node[] nodes = readAll(in);
+                    if (nodes.length != operator.operands)
+                        throw new Exp4jException.ParseException(String.format("operator '%s' with %d operands", operator.op, nodes.length));
+                    return nodes.length == 1 ? new OpNode(operator, nodes[0]) : new OpNode(nodes[0], operator, nodes[1]);
+                }
+                case FUNC: {
+                    String name = in.readInterned();
+                    JExpFunction<?> func = funcs.get(name);
+                    if (func == null)
+                        throw new Exp4jException.ParseException(String.format("unknown function '%s'", name));
+                    return new FuncNode(func, readAll(in));
+                }
+                case NAME: {
+                    String name = in.readInterned();
+                    return in.readByte() == 0 ? new NameNode(name) : new NameNode(name, readAll(in));
+                }
+                case NUMERIC: {
+                    String[] names = new String[in.readLength()];
+                    for (int i = 0; i < names.length; i++)
+                        names[i] = in.readInterned();
+                    return new NumericNode(read(in), names);
+                }
+                default:
+                    throw new Exp4jException.ParseException(String.format("unknown node %d", tag));
+            }
+        }
+
+        private static Node[] readAll(ValueCodec.Decoder in) {
+            Node[] nodes = new Node[in.readLength()];
+            for (int i = 0; i < nodes.length; i++)
+                nodes[i] = read(in);
+            return nodes;
         }
     }
 
@@ -102,6 +724,121 @@ public class JExpParser {
         String dump();
 
         Value eval(SimpleContext ctx);
+
+        // fold the constant sub-trees and specialize the numeric ones in place, returns the node to take the place of this one
+        default Node fold() {
+            return this;
+        }
+    }
+
+    static boolean isConstant(Node... nodes) {
+        for (Node n : nodes) {
+            if (!(n instanceof SimpleValueNode))
+                return false;
+        }
+        return true;
+    }
+
+    static Node foldConstant(Node node) {
+        // evaluate once at build time, keep the node if it fails or gives a mutable value
+        try {
+            Value v = node.eval(new SimpleContext());
+            switch (v.getType()) {
+                case IntegerT:
+                case DecimalT:
+                case StringT:
+                case BooleanT:
+                case NullT:
+                case DataTimeT:
+                    return new SimpleValueNode(v);
+                default:
+                    return node;
+            }
+        } catch (Exp4jException e) {
+            return node;
+        }
+    }
+
+    // the paths below the current document a node reads, normalized so that no path has a prefix in the set
+    static Set<List<String>> jsonPaths(Node node) {
+        Set<List<String>> paths = new HashSet<>();
+        collectPaths(node, paths);
+        Set<List<String>> normalized = new HashSet<>();
+        for (List<String> path : paths) {
+            boolean covered = false;
+            for (int i = 0; i < path.size() && !covered; i++)
+                covered = paths.contains(path.subList(0, i));
+            if (!covered)
+                normalized.add(Collections.unmodifiableList(path));
+        }
+        return Collections.unmodifiableSet(normalized);
+    }
+
+    // a path is needed with everything below it, the empty path stands for the whole document
+    private static void collectPaths(Node node, Set<List<String>> paths) {
+        if (node instanceof SimpleValueNode) {
+            return;
+        } else if (node instanceof JsonPathValueNode) {
+            JsonPathValueNode json = (JsonPathValueNode) node;
+            if (json.object != null) {
+                Value name = json.object instanceof SimpleValueNode ? ((SimpleValueNode) json.object).value : null;
+                if (name == null || !name.isString()) {
+                    paths.add(Collections.emptyList());
+                    return;
+                }
+                if (!CUR_VAR_NAME.equals(name.asString()))
+                    return;
+            }
+            List<String> path = new ArrayList<>();
+            for (JsonPathValueNode.PathAccessor n : json.nodes) {
+                // indexes step into every element, a filter sees whole elements
+                if (n.filter != null)
+                    break;
+                if (n.property != null)
+                    path.add(n.property);
+            }
+            paths.add(path);
+        } else if (node instanceof NameNode) {
+            NameNode name = (NameNode) node;
+            // a custom function called without argument runs on the current document
+            if (CUR_VAR_NAME.equals(name.name) || (name.nodes != null && name.nodes.length == 0)) {
+                paths.add(Collections.emptyList());
+            } else if (name.nodes != null) {
+                for (Node n : name.nodes)
+                    collectPaths(n, paths);
+            }
+        } else if (node instanceof ExpValueNode) {
+            // an expression value may be evaluated anywhere later, any use of the document keeps all of it
+            Set<List<String>> inner = new HashSet<>();
+            for (Node n : ((ExpValueNode) node).nodes)
+                collectPaths(n, inner);
+            if (!inner.isEmpty())
+                paths.add(Collections.emptyList());
+        } else if (node instanceof FuncNode) {
+            FuncNode func = (FuncNode) node;
+            for (Node n : func.nodes) {
+                // an expression held by a variable and run by the function is not known here
+                if (func.func.funcWithCtx != null && n instanceof NameNode && ((NameNode) n).nodes == null)
+                    paths.add(Collections.emptyList());
+                collectPaths(n, paths);
+            }
+        } else if (node instanceof OpNode) {
+            for (Node n : ((OpNode) node).nodes)
+                collectPaths(n, paths);
+        } else if (node instanceof ListValueNode) {
+            for (Node n : ((ListValueNode) node).nodes)
+                collectPaths(n, paths);
+        } else if (node instanceof MapValueNode) {
+            for (Node n : ((MapValueNode) node).nodeMap.values())
+                collectPaths(n, paths);
+        } else if (node instanceof TemplateValueNode) {
+            for (Node n : ((TemplateValueNode) node).nodes)
+                collectPaths(n, paths);
+        } else if (node instanceof NumericNode) {
+            collectPaths(((NumericNode) node).node, paths);
+        } else {
+            paths.add(Collections.emptyList());
+        }
     }
 
     static class SimpleValueNode implements Node {
@@ -134,6 +871,12 @@ public class JExpParser {
             return Value.of(nodes.stream().map(x -> x.eval(ctx)).toArray(Value[]::new));
         }
 
+        @Override
+        public Node fold() {
+            nodes.replaceAll(Node::fold);
+            return this;
+        }
+
         @Override
         public String dump() {
             return "[" + nodes.stream().map(Node::dump).collect(Collectors.joining(",")) + "]";
@@ -152,6 +895,12 @@ public class JExpParser {
             return Value.of(nodeMap.keySet().stream().collect(Collectors.toMap(k -> k, k -> nodeMap.get(k).eval(ctx))));
         }
 
+        @Override
+        public Node fold() {
+            nodeMap.replaceAll((k, n) -> n.fold());
+            return this;
+        }
+
         @Override
         public String dump() {
             return "{" + nodeMap.keySet().stream().map(x -> "\"" + x + "\":" + nodeMap.get(x).dump()).collect(Collectors.joining(",")) + "}";
@@ -169,10 +918,10 @@ public class JExpParser {
 
             @Override
             public Value evaluate(IExpressionContext context) {
-                return Arrays.stream(node.nodes)
-                        .map(n -> n.eval((SimpleContext) context))
-                        .collect(Collectors.toList())
-                        .get(node.nodes.length - 1);
+                Value r = Value.NULL;
+                for (Node n : node.nodes)
+                    r = n.eval((SimpleContext) context);
+                return r;
             }
         }
 
@@ -187,6 +936,14 @@ public class JExpParser {
             return Value.of(new JExp(this));
         }
 
+        @Override
+        public Node fold() {
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = nodes[i].fold();
+            }
+            return this;
+        }
+
         @Override
         public String dump() {
             return "@{" + Arrays.stream(nodes).map(Node::dump).collect(Collectors.joining(";")) + "}";
@@ -194,25 +951,36 @@ public class JExpParser {
     }
 
     static class TemplateValueNode implements Node {
+        // literal segments are SimpleValueNode of strings, placeholders are the parsed path expressions
         final List<Node> nodes;
+        private final int capacity;
 
         private TemplateValueNode(List<Node> nodes) {
             this.nodes = nodes;
+            int literals = 0;
+            for (Node n: nodes) {
+                if (n instanceof SimpleValueNode)
+                    literals += ((SimpleValueNode) n).value.asString().length();
+            }
+            this.capacity = literals + 16 * nodes.size();
         }
 
         @Override
         public Value eval(SimpleContext ctx) {
-            StringBuilder sb = new StringBuilder();
+            StringBuilder sb = new StringBuilder(capacity);
             for (Node n: nodes) {
                 Value v = n.eval(ctx);
-                if (v.isExpression()) {
-                    v = v.asExpression().evaluate(ctx);
-                }
                 sb.append(v.isString()? v.asString() : v.toString());
             }
             return Value.of(sb.toString());
         }
 
+        @Override
+        public Node fold() {
+            nodes.replaceAll(Node::fold);
+            return this;
+        }
+
         @Override
         public String dump() {
             return "`" + nodes.stream().map(Node::dump).collect(Collectors.joining("")) + "`";
@@ -264,7 +1032,7 @@ public class JExpParser {
                     } else if (root) {
                         tmp.add(o);
                     } else if (property != null) {
-                        tmp.add(o.asMap().getOrDefault(property, Value.NULL));
+                        tmp.add(o.getField(property));
                     } else {
                         Value[] array = o.asVector();
                         if (index != null) {
@@ -280,9 +1048,9 @@ public class JExpParser {
                             }
                         } else if (filter != null) {
                             // predicate based filter
-                            SimpleContext context = new SimpleContext(ctx);
+                            SimpleContext context = ctx.scope();
                             for (Value v : array) {
-                                context.updateVariable(CUR_VAR_NAME, v);
+                                context.setVariable(SimpleContext.CUR_SLOT, v);
                                 Value exp = filter.eval(ctx);
                                 if (exp.asExpression().evaluate(context).asBoolean()) {
                                     tmp.add(v);
@@ -313,7 +1081,7 @@ public class JExpParser {
         @Override
         public Value eval(SimpleContext ctx) {
             List<Value> tmp = new ArrayList<>();
-            tmp.add(ctx.getVariable(object == null? CUR_VAR_NAME : object.eval(ctx).asString()));
+            tmp.add(object == null ? ctx.getVariable(SimpleContext.CUR_SLOT) : ctx.getVariable(object.eval(ctx).asString()));
 
             boolean multiValue = false;
             for (PathAccessor n: nodes) {
@@ -329,6 +1097,15 @@ public class JExpParser {
             }
         }
 
+        @Override
+        public Node fold() {
+            for (PathAccessor n: nodes) {
+                if (n.filter != null)
+                    n.filter.fold();
+            }
+            return this;
+        }
+
         @Override
         public String dump() {
             StringBuilder rep = new StringBuilder("${");
@@ -344,7 +1121,7 @@ public class JExpParser {
 
     static class OpNode implements Node {
         Operator operator;
-        private final Node[] nodes;
+        final Node[] nodes;
 
         public OpNode(Node lhs, Operator operator, Node rhs) {
             assert operator.operands == 2;
@@ -375,6 +1152,9 @@ public class JExpParser {
         public Value eval(SimpleContext ctx) {
             if (this.operator.operands == 1) {
                 Value x = nodes[0].eval(ctx);
+                Value dense = operator.scalable ? Operators.broadcast(operator.op, x, null) : null;
+                if (dense != null)
+                    return dense;
                 return operator.scalable && x.isVector() ?
                             Value.of(Arrays.stream(x.asVector())
                                     .map(i -> apply(ctx, i, null))
@@ -385,7 +1165,7 @@ public class JExpParser {
                     case "=": {
                         if (nodes[0] instanceof NameNode) {
                             Value r = apply(ctx, nodes[0].eval(ctx), nodes[1].eval(ctx));
-                            ctx.updateVariable(((NameNode) nodes[0]).name, r);
+                            ctx.setVariable(((NameNode) nodes[0]).slot, r);
                             return r;
                         } else {
                             throw new Exp4jException.EvaluationException("try to assign value to non-variable name");
@@ -406,6 +1186,9 @@ public class JExpParser {
                         Value x = nodes[0].eval(ctx);
                         Value y = nodes[1].eval(ctx);
                         if (operator.scalable) {
+                            Value dense = Operators.broadcast(operator.op, x, y);
+                            if (dense != null)
+                                return dense;
                             if (x.isVector() && !y.isVector()) {
                                 return Value.of(Arrays
                                         .stream(x.asVector())
@@ -437,6 +1220,18 @@ public class JExpParser {
             }
         }
 
+        @Override
+        public Node fold() {
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = nodes[i].fold();
+            }
+
+            // the assignment and the chained call are never folded
+            if (operator.operation == null || operator.op.equals("=") || !isConstant(nodes))
+                return NumericNode.of(this, nodes);
+            return foldConstant(this);
+        }
+
         @Override
         public String dump() {
             if (this.operator.operands == 1) {
@@ -452,124 +1247,1233 @@ public class JExpParser {
 
     static class NameNode implements Node {
         final String name;
+        final int slot;
         final Node[] nodes;
 
         NameNode(String name) {
             this(name, null);
         }
 
-        NameNode(String name, Node[] nodes) {
-            this.name = name;
-            this.nodes = nodes;
+        NameNode(String name, Node[] nodes) {
+            this.name = name;
+            this.slot = SimpleContext.slot(name);
+            this.nodes = nodes;
+        }
+
+        @Override
+        public String dump() {
+            if (nodes == null) {
+                return name;
+            } else {
+                return name + "(" + Arrays.stream(nodes).map(Node::dump).collect(Collectors.joining(",")) + ")";
+            }
+        }
+
+        @Override
+        public Node fold() {
+            if (nodes != null) {
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = nodes[i].fold();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public Value eval(SimpleContext ctx) {
+            if (nodes != null) {
+                List<Value> args = Arrays.stream(nodes).map(v -> v.eval(ctx)).collect(Collectors.toList());
+                return evalCustomFunc(ctx, ((ExpValueNode.JExp) ctx.getVariable(slot).asExpression()).node, args);
+            } else {
+                return ctx.getVariable(slot);
+            }
+        }
+
+        private static Value evalCustomFunc(SimpleContext ctx, ExpValueNode ev, List<Value> args) {
+            if (args.size() > 1) {
+                throw new Exp4jException.EvaluationException("only 1 args supported");
+            }
+
+            SimpleContext sc = ctx.scope();
+            for (Value m : args) {
+                sc.setVariable(SimpleContext.CUR_SLOT, m);
+            }
+
+            Value r = Value.NULL;
+            for (Node n : ev.nodes) {
+                r = n.eval(sc);
+            }
+            return r;
+        }
+    }
+
+    static class FuncNode implements Node {
+        final JExpFunction<?> func;
+        final Node[] nodes;
+        // a constant pattern compiled when the node is built, used while that node is the second argument
+        private Node regexNode;
+        private Function<Value[], ?> withRegex;
+
+        FuncNode(JExpFunction<?> func, Node[] nodes) {
+            this.func = func;
+            this.nodes = nodes;
+            bindRegex();
+        }
+
+        private void bindRegex() {
+            regexNode = null;
+            withRegex = null;
+            boolean match = func.name.equals("regMatch");
+            if (!match && !func.name.equals("replaceAll"))
+                return;
+            // the pattern is the first node of the method form x.regMatch("...")
+            int i = nodes.length == func.args ? 1 : nodes.length == func.args - 1 ? 0 : -1;
+            if (i < 0 || !(nodes[i] instanceof SimpleValueNode) || !((SimpleValueNode) nodes[i]).value.isString())
+                return;
+
+            String regex = ((SimpleValueNode) nodes[i]).value.asString();
+            Pattern compiled;
+            try {
+                compiled = Functions.regex(match ? Functions.matchRegex(regex) : regex);
+            } catch (PatternSyntaxException e) {
+                // reported when evaluated, as for a pattern computed at run time
+                return;
+            }
+            regexNode = nodes[i];
+            withRegex = match ? vs -> Functions.regMatchRegex(vs[0], compiled) : vs -> Functions.replaceAllRegex(vs, compiled);
+        }
+
+        @Override
+        public String dump() {
+            return func.name + "(" + Arrays.stream(nodes).map(Node::dump).collect(Collectors.joining(",")) + ")";
+        }
+
+        @Override
+        public Value eval(SimpleContext ctx) {
+            return eval(ctx, nodes);
+        }
+
+        @Override
+        public Node fold() {
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = nodes[i].fold();
+            }
+
+            // functions taking the context may read variables, so only the plain deterministic ones are folded
+            if (func.func == null || nonDeterministicFuncs.contains(func.name) || !isConstant(nodes)) {
+                bindRegex();
+                return NumericNode.of(this, nodes);
+            }
+            return foldConstant(this);
+        }
+
+        public Value eval(SimpleContext ctx, Node[] nodes) {
+            if (func.args != -1 && (nodes.length > func.args + func.optArgs || nodes.length < func.args)) {
+                throw new Exp4jException.EvaluationException("invalid argument count");
+            }
+
+            if (withRegex != null && nodes.length > 1 && nodes[1] == regexNode)
+                return bindAll(withRegex, func.scalable, ctx, nodes);
+            if (func.func != null)
+                return bindAll(func.func, func.scalable, ctx, nodes);
+            else
+                return bindAll(x -> func.funcWithCtx.apply(ctx, x), func.scalable, ctx, nodes);
+        }
+
+        public static Value bindAll(Function<Value[], ?> function, boolean scalable, SimpleContext ctx, Node... nodes) {
+            Value[] args = new Value[nodes.length];
+            int i = 0;
+            for (Node n : nodes) {
+                args[i++] = n.eval(ctx);
+            }
+
+            if (scalable && args.length > 0 && args[0].isVector()) {
+                Value[] vs = args[0].asVector();
+                Value[] r = new Value[vs.length];
+                i = 0;
+                for (Value v : vs) {
+                    args[0] = v;
+                    r[i++] = Value.of(function.apply(args));
+                }
+
+                return Value.of(r);
+            } else {
+                return Value.of(function.apply(args));
+            }
+        }
+    }
+
+    // region numeric specialization
+    enum NumericType { Long, Double, Boolean }
+
+    // the built-in functions computing a double from doubles, abs keeps the type so it is handled on its own
+    private static final Map<String, DoubleUnaryOperator> numericFunctions = new HashMap<>();
+    private static final Map<String, DoubleBinaryOperator> numericBinaryFunctions = new HashMap<>();
+
+    static {
+        numericFunctions.put("sin", Math::sin);
+        numericFunctions.put("cos", Math::cos);
+        numericFunctions.put("tan", Math::tan);
+        numericFunctions.put("cot", x -> 1d / Math.tan(x));
+        numericFunctions.put("log", Math::log);
+        numericFunctions.put("log2", x -> Math.log(x) / Math.log(2d));
+        numericFunctions.put("log10", Math::log10);
+        numericFunctions.put("log1p", Math::log1p);
+        numericFunctions.put("acos", Math::acos);
+        numericFunctions.put("asin", Math::asin);
+        numericFunctions.put("atan", Math::atan);
+        numericFunctions.put("cbrt", Math::cbrt);
+        numericFunctions.put("floor", Math::floor);
+        numericFunctions.put("sinh", Math::sinh);
+        numericFunctions.put("sqrt", Math::sqrt);
+        numericFunctions.put("tanh", Math::tanh);
+        numericFunctions.put("cosh", Math::cosh);
+        numericFunctions.put("ceil", Math::ceil);
+        numericFunctions.put("exp", Math::exp);
+        numericFunctions.put("expm1", Math::expm1);
+        numericFunctions.put("signum", Math::signum);
+        numericFunctions.put("csc", x -> 1d / Math.sin(x));
+        numericFunctions.put("sec", x -> 1d / Math.cos(x));
+        numericFunctions.put("csch", x -> 1d / Math.sinh(x));
+        numericFunctions.put("sech", x -> 1d / Math.cosh(x));
+        numericFunctions.put("coth", x -> Math.cosh(x) / Math.sinh(x));
+        numericFunctions.put("toRadian", Math::toRadians);
+        numericFunctions.put("toDegree", Math::toDegrees);
+        numericBinaryFunctions.put("pow", Math::pow);
+        numericBinaryFunctions.put("logb", (b, x) -> Math.log(x) / Math.log(b));
+    }
+
+    static boolean isNumericOperator(Operator operator) {
+        switch (operator.op) {
+            case "+":
+            case "-":
+            case "*":
+            case "/":
+            case "%":
+            case "^":
+            case "||":
+            case "&&":
+            case ">":
+            case ">=":
+            case "<":
+            case "<=":
+            case "==":
+            case "!=":
+            case "<=>":
+                return true;
+            case "!":
+                // the postfix one is the factorial
+                return operator.suffix == Operator.Suffix.PREFIX;
+            default:
+                return false;
+        }
+    }
+
+    static boolean isNumericFunction(JExpFunction<?> func, Node[] nodes) {
+        int arity = func.name.equals("abs") || numericFunctions.containsKey(func.name) ? 1
+                : numericBinaryFunctions.containsKey(func.name) ? 2 : -1;
+        return arity == nodes.length && func.args == arity;
+    }
+
+    // checks the tree is made of numeric operators and functions only, numbering the variables in order of appearance
+    static boolean collectNumeric(Node node, Map<String, Integer> variables) {
+        if (node instanceof NumericNode) {
+            return collectNumeric(((NumericNode) node).node, variables);
+        } else if (node instanceof SimpleValueNode) {
+            Value.Type type = ((SimpleValueNode) node).value.getType();
+            return type == Value.Type.IntegerT || type == Value.Type.DecimalT || type == Value.Type.BooleanT;
+        } else if (node instanceof NameNode) {
+            if (((NameNode) node).nodes != null)
+                return false;
+            variables.putIfAbsent(((NameNode) node).name, variables.size());
+            return true;
+        } else if (node instanceof OpNode) {
+            OpNode on = (OpNode) node;
+            if (!isNumericOperator(on.operator))
+                return false;
+            for (Node n : on.nodes) {
+                if (!collectNumeric(n, variables))
+                    return false;
+            }
+            return true;
+        } else if (node instanceof FuncNode) {
+            FuncNode fn = (FuncNode) node;
+            if (!isNumericFunction(fn.func, fn.nodes))
+                return false;
+            for (Node n : fn.nodes) {
+                if (!collectNumeric(n, variables))
+                    return false;
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    // reads the variables into values (doubles as raw bits), returns the types packed in 2 bits each or -1 if any is not a scalar
+    static long readNumeric(IExpressionContext ctx, String[] names, int[] slots, long[] values) {
+        SimpleContext sc = ctx instanceof SimpleContext ? (SimpleContext) ctx : null;
+        long signature = 0;
+        for (int i = 0; i < names.length; i++) {
+            Value v = sc != null ? sc.getVariable(slots[i]) : ctx.getVariable(names[i]);
+            switch (v.getType()) {
+                case IntegerT:
+                    values[i] = v.asLong();
+                    signature |= (long) (NumericType.Long.ordinal() + 1) << (i * 2);
+                    break;
+                case DecimalT:
+                    values[i] = Double.doubleToRawLongBits(v.asDouble());
+                    signature |= (long) (NumericType.Double.ordinal() + 1) << (i * 2);
+                    break;
+                case BooleanT:
+                    values[i] = v.asBoolean() ? 1 : 0;
+                    signature |= (long) (NumericType.Boolean.ordinal() + 1) << (i * 2);
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        return signature;
+    }
+
+    static NumericType[] numericTypes(long signature, int count) {
+        NumericType[] types = new NumericType[count];
+        for (int i = 0; i < count; i++) {
+            types[i] = NumericType.values()[(int) ((signature >>> (i * 2)) & 3) - 1];
+        }
+        return types;
+    }
+
+    // the static type of a numeric tree, mirrors the promotion rules of Operators, throws when the types do not fit
+    static NumericType numericTypeOf(Node node, Function<String, NumericType> variables) {
+        if (node instanceof SimpleValueNode) {
+            switch (((SimpleValueNode) node).value.getType()) {
+                case IntegerT:
+                    return NumericType.Long;
+                case DecimalT:
+                    return NumericType.Double;
+                default:
+                    return NumericType.Boolean;
+            }
+        } else if (node instanceof NameNode) {
+            return variables.apply(((NameNode) node).name);
+        } else if (node instanceof OpNode) {
+            OpNode on = (OpNode) node;
+            NumericType x = numericTypeOf(on.nodes[0], variables);
+            if (on.nodes.length == 1) {
+                if (on.operator.op.equals("!"))
+                    return expectType(x, NumericType.Boolean);
+                return expectNumber(x);
+            }
+
+            NumericType y = numericTypeOf(on.nodes[1], variables);
+            switch (on.operator.op) {
+                case "+":
+                case "-":
+                case "*":
+                    // both checked first, a boolean right of a double must fail here as well
+                    expectNumber(x);
+                    expectNumber(y);
+                    return x == NumericType.Long && y == NumericType.Long ? NumericType.Long : NumericType.Double;
+                case "/":
+                case "%":
+                case "^":
+                    expectNumber(x);
+                    expectNumber(y);
+                    return NumericType.Double;
+                case "||":
+                case "&&":
+                    expectType(x, NumericType.Boolean);
+                    expectType(y, NumericType.Boolean);
+                    return NumericType.Boolean;
+                case "==":
+                case "!=":
+                    // values of different types are just not equal
+                    return NumericType.Boolean;
+                case "<=>":
+                    expectComparable(x, y);
+                    return NumericType.Long;
+                default:
+                    expectComparable(x, y);
+                    return NumericType.Boolean;
+            }
+        } else {
+            FuncNode fn = (FuncNode) node;
+            for (Node n : fn.nodes) {
+                expectNumber(numericTypeOf(n, variables));
+            }
+            return fn.func.name.equals("abs") ? numericTypeOf(fn.nodes[0], variables) : NumericType.Double;
+        }
+    }
+
+    // a numeric sub-tree can't be specialized for the types, the callers fall back to the general evaluation;
+    // it is expected on the way of every such fallback so it carries no stack trace
+    static final class NotSpecializable extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NotSpecializable(String message) {
+            this(message, null);
+        }
+
+        NotSpecializable(String message, Throwable cause) {
+            super(message, cause, false, false);
+        }
+    }
+
+    private static NumericType expectNumber(NumericType type) {
+        if (type == NumericType.Boolean)
+            throw new NotSpecializable("not a number");
+        return type;
+    }
+
+    private static NumericType expectType(NumericType type, NumericType expected) {
+        if (type != expected)
+            throw new NotSpecializable("expect " + expected);
+        return type;
+    }
+
+    private static void expectComparable(NumericType x, NumericType y) {
+        if ((x == NumericType.Boolean) != (y == NumericType.Boolean))
+            throw new NotSpecializable("not comparable");
+    }
+
+    /**
+     * The root of a sub-tree of numeric operators and functions over literals and plain variables. Once the types of
+     * the variables are known, a tree of {@link TypedNode} computing on primitives is built for them, and only the
+     * result gets boxed. Variables of other types run the sub-tree as usual.
+     */
+    static class NumericNode implements Node {
+        static final int MAX_SPECIALIZATIONS = 8;
+        // 2 bits of the signature for each variable
+        static final int MAX_VARIABLES = 31;
+
+        final Node node;
+        final String[] names;
+        private final int[] slots;
+        private final Map<Long, Specialization> specializations = new ConcurrentHashMap<>();
+        private volatile Specialization last;
+
+        private NumericNode(Node node, String[] names) {
+            this.node = node;
+            this.names = names;
+            this.slots = SimpleContext.slots(names);
+        }
+
+        // takes over the numeric sub-trees of the folded children when the node extends them
+        static Node of(Node node, Node[] children) {
+            Map<String, Integer> variables = new LinkedHashMap<>();
+            if (!collectNumeric(node, variables) || variables.size() > MAX_VARIABLES)
+                return node;
+
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] instanceof NumericNode)
+                    children[i] = ((NumericNode) children[i]).node;
+            }
+            return new NumericNode(node, variables.keySet().toArray(new String[0]));
+        }
+
+        static class Specialization {
+            final long signature;
+            final NumericType type;
+            final TypedNode root;   // null if the types do not fit, e.g. adding booleans
+
+            Specialization(long signature, NumericType type, TypedNode root) {
+                this.signature = signature;
+                this.type = type;
+                this.root = root;
+            }
+        }
+
+        @Override
+        public String dump() {
+            return node.dump();
+        }
+
+        @Override
+        public Value eval(SimpleContext ctx) {
+            long[] values = new long[names.length];
+            long signature = readNumeric(ctx, names, slots, values);
+            if (signature < 0)
+                return node.eval(ctx);
+
+            Specialization s = last;
+            if (s == null || s.signature != signature) {
+                s = specialize(signature);
+                last = s;
+            }
+
+            if (s.root == null)
+                return node.eval(ctx);
+            try {
+                switch (s.type) {
+                    case Long:
+                        return Value.of(s.root.evalLong(values));
+                    case Double:
+                        return Value.of(s.root.evalDouble(values));
+                    default:
+                        return Value.of(s.root.evalBoolean(values));
+                }
+            } catch (NotSpecializable e) {
+                return node.eval(ctx);
+            }
+        }
+
+        private Specialization specialize(long signature) {
+            Specialization s = specializations.get(signature);
+            if (s != null)
+                return s;
+
+            NumericType[] types = numericTypes(signature, names.length);
+            Map<String, Integer> slots = new HashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                slots.put(names[i], i);
+            }
+
+            try {
+                NumericType type = numericTypeOf(node, name -> types[slots.get(name)]);
+                s = new Specialization(signature, type, TypedNode.of(node, type, types, slots));
+            } catch (NotSpecializable e) {
+                s = new Specialization(signature, null, null);
+            }
+
+            if (specializations.size() < MAX_SPECIALIZATIONS)
+                specializations.put(signature, s);
+            return s;
+        }
+    }
+
+    // a node of a numeric sub-tree with the types resolved, evaluated over the variables read by NumericNode;
+    // asked for a type it doesn't compute it can't be specialized, the caller falls back
+    abstract static class TypedNode {
+        long evalLong(long[] vs) {
+            throw new NotSpecializable("not a long");
+        }
+
+        double evalDouble(long[] vs) {
+            throw new NotSpecializable("not a double");
+        }
+
+        boolean evalBoolean(long[] vs) {
+            throw new NotSpecializable("not a boolean");
+        }
+
+        // the same over n rows at once, a column of the variables of each type is a long[], double[] or boolean[]
+        long[] evalLongs(Object[] cs, int n) {
+            throw new NotSpecializable("not a long");
+        }
+
+        double[] evalDoubles(Object[] cs, int n) {
+            throw new NotSpecializable("not a double");
+        }
+
+        boolean[] evalBooleans(Object[] cs, int n) {
+            throw new NotSpecializable("not a boolean");
+        }
+
+        static TypedNode of(Node node, NumericType wanted, NumericType[] types, Map<String, Integer> slots) {
+            Function<String, NumericType> variables = name -> types[slots.get(name)];
+            NumericType type = numericTypeOf(node, variables);
+            TypedNode t;
+            if (node instanceof SimpleValueNode) {
+                Value v = ((SimpleValueNode) node).value;
+                t = type == NumericType.Long ? new LongConst(v.asLong())
+                        : type == NumericType.Double ? new DoubleConst(v.asDouble())
+                        : new BooleanConst(v.asBoolean());
+            } else if (node instanceof NameNode) {
+                int slot = slots.get(((NameNode) node).name);
+                t = type == NumericType.Long ? new LongVar(slot)
+                        : type == NumericType.Double ? new DoubleVar(slot)
+                        : new BooleanVar(slot);
+            } else if (node instanceof OpNode) {
+                t = ofOperator((OpNode) node, type, types, slots);
+            } else {
+                FuncNode fn = (FuncNode) node;
+                if (fn.func.name.equals("abs")) {
+                    t = type == NumericType.Long ? new LongAbs(of(fn.nodes[0], type, types, slots))
+                            : new DoubleFunc(Math::abs, of(fn.nodes[0], type, types, slots));
+                } else if (fn.nodes.length == 1) {
+                    t = new DoubleFunc(numericFunctions.get(fn.func.name), of(fn.nodes[0], NumericType.Double, types, slots));
+                } else {
+                    t = new DoubleBinaryFunc(numericBinaryFunctions.get(fn.func.name),
+                            of(fn.nodes[0], NumericType.Double, types, slots), of(fn.nodes[1], NumericType.Double, types, slots));
+                }
+            }
+
+            return type == NumericType.Long && wanted == NumericType.Double ? new LongToDouble(t) : t;
+        }
+
+        private static TypedNode ofOperator(OpNode on, NumericType type, NumericType[] types, Map<String, Integer> slots) {
+            String op = on.operator.op;
+            if (on.nodes.length == 1) {
+                TypedNode x = of(on.nodes[0], type, types, slots);
+                if (op.equals("!"))
+                    return new Not(x);
+                else if (op.equals("-"))
+                    return type == NumericType.Long ? new LongNeg(x) : new DoubleNeg(x);
+                else
+                    return x;
+            }
+
+            switch (op) {
+                case "+":
+                case "-":
+                case "*":
+                case "/":
+                case "%":
+                case "^": {
+                    TypedNode x = of(on.nodes[0], type, types, slots);
+                    TypedNode y = of(on.nodes[1], type, types, slots);
+                    return type == NumericType.Long ? new LongArith(op.charAt(0), x, y) : new DoubleArith(op.charAt(0), x, y);
+                }
+                case "&&":
+                case "||":
+                    return new Logic(op.equals("&&"), of(on.nodes[0], type, types, slots), of(on.nodes[1], type, types, slots));
+                default: {
+                    Function<String, NumericType> variables = name -> types[slots.get(name)];
+                    NumericType x = numericTypeOf(on.nodes[0], variables);
+                    NumericType y = numericTypeOf(on.nodes[1], variables);
+                    if ((op.equals("==") || op.equals("!=")) && x != y)
+                        return new BooleanConst(op.equals("!="));
+
+                    // mixed numbers are compared as doubles as Value.compareTo does
+                    NumericType common = x == y ? x : NumericType.Double;
+                    return new Comparison(op, common, of(on.nodes[0], common, types, slots), of(on.nodes[1], common, types, slots));
+                }
+            }
+        }
+    }
+
+    static class LongConst extends TypedNode {
+        private final long value;
+
+        LongConst(long value) {
+            this.value = value;
+        }
+
+        @Override
+        long evalLong(long[] vs) {
+            return value;
+        }
+
+        @Override
+        long[] evalLongs(Object[] cs, int n) {
+            long[] r = new long[n];
+            Arrays.fill(r, value);
+            return r;
+        }
+    }
+
+    static class DoubleConst extends TypedNode {
+        private final double value;
+
+        DoubleConst(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double evalDouble(long[] vs) {
+            return value;
+        }
+
+        @Override
+        double[] evalDoubles(Object[] cs, int n) {
+            double[] r = new double[n];
+            Arrays.fill(r, value);
+            return r;
+        }
+    }
+
+    static class BooleanConst extends TypedNode {
+        private final boolean value;
+
+        BooleanConst(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean evalBoolean(long[] vs) {
+            return value;
+        }
+
+        @Override
+        boolean[] evalBooleans(Object[] cs, int n) {
+            boolean[] r = new boolean[n];
+            Arrays.fill(r, value);
+            return r;
+        }
+    }
+
+    static class LongVar extends TypedNode {
+        private final int slot;
+
+        LongVar(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        long evalLong(long[] vs) {
+            return vs[slot];
+        }
+
+        // the column itself, no node writes to the arrays of its operands
+        @Override
+        long[] evalLongs(Object[] cs, int n) {
+            return (long[]) cs[slot];
+        }
+    }
+
+    static class DoubleVar extends TypedNode {
+        private final int slot;
+
+        DoubleVar(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        double evalDouble(long[] vs) {
+            return Double.longBitsToDouble(vs[slot]);
+        }
+
+        @Override
+        double[] evalDoubles(Object[] cs, int n) {
+            return (double[]) cs[slot];
+        }
+    }
+
+    static class BooleanVar extends TypedNode {
+        private final int slot;
+
+        BooleanVar(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        boolean evalBoolean(long[] vs) {
+            return vs[slot] != 0;
+        }
+
+        @Override
+        boolean[] evalBooleans(Object[] cs, int n) {
+            return (boolean[]) cs[slot];
+        }
+    }
+
+    static class LongToDouble extends TypedNode {
+        private final TypedNode x;
+
+        LongToDouble(TypedNode x) {
+            this.x = x;
+        }
+
+        @Override
+        double evalDouble(long[] vs) {
+            return x.evalLong(vs);
+        }
+
+        @Override
+        double[] evalDoubles(Object[] cs, int n) {
+            long[] xs = x.evalLongs(cs, n);
+            double[] r = new double[n];
+            for (int i = 0; i < n; i++)
+                r[i] = xs[i];
+            return r;
+        }
+    }
+
+    static class LongArith extends TypedNode {
+        private final char op;
+        private final TypedNode x;
+        private final TypedNode y;
+
+        LongArith(char op, TypedNode x, TypedNode y) {
+            this.op = op;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        long evalLong(long[] vs) {
+            switch (op) {
+                case '+':
+                    return x.evalLong(vs) + y.evalLong(vs);
+                case '-':
+                    return x.evalLong(vs) - y.evalLong(vs);
+                default:
+                    return x.evalLong(vs) * y.evalLong(vs);
+            }
+        }
+
+        @Override
+        long[] evalLongs(Object[] cs, int n) {
+            long[] xs = x.evalLongs(cs, n);
+            long[] ys = y.evalLongs(cs, n);
+            long[] r = new long[n];
+            switch (op) {
+                case '+':
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] + ys[i];
+                    break;
+                case '-':
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] - ys[i];
+                    break;
+                default:
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] * ys[i];
+            }
+            return r;
+        }
+    }
+
+    static class DoubleArith extends TypedNode {
+        private final char op;
+        private final TypedNode x;
+        private final TypedNode y;
+
+        DoubleArith(char op, TypedNode x, TypedNode y) {
+            this.op = op;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        double evalDouble(long[] vs) {
+            switch (op) {
+                case '+':
+                    return x.evalDouble(vs) + y.evalDouble(vs);
+                case '-':
+                    return x.evalDouble(vs) - y.evalDouble(vs);
+                case '*':
+                    return x.evalDouble(vs) * y.evalDouble(vs);
+                case '/':
+                    return x.evalDouble(vs) / y.evalDouble(vs);
+                case '%':
+                    return x.evalDouble(vs) % y.evalDouble(vs);
+                default:
+                    return Math.pow(x.evalDouble(vs), y.evalDouble(vs));
+            }
+        }
+
+        @Override
+        double[] evalDoubles(Object[] cs, int n) {
+            double[] xs = x.evalDoubles(cs, n);
+            double[] ys = y.evalDoubles(cs, n);
+            double[] r = new double[n];
+            switch (op) {
+                case '+':
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] + ys[i];
+                    break;
+                case '-':
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] - ys[i];
+                    break;
+                case '*':
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] * ys[i];
+                    break;
+                case '/':
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] / ys[i];
+                    break;
+                case '%':
+                    for (int i = 0; i < n; i++)
+                        r[i] = xs[i] % ys[i];
+                    break;
+                default:
+                    for (int i = 0; i < n; i++)
+                        r[i] = Math.pow(xs[i], ys[i]);
+            }
+            return r;
+        }
+    }
+
+    static class LongNeg extends TypedNode {
+        private final TypedNode x;
+
+        LongNeg(TypedNode x) {
+            this.x = x;
+        }
+
+        @Override
+        long evalLong(long[] vs) {
+            return -x.evalLong(vs);
+        }
+
+        @Override
+        long[] evalLongs(Object[] cs, int n) {
+            long[] xs = x.evalLongs(cs, n);
+            long[] r = new long[n];
+            for (int i = 0; i < n; i++)
+                r[i] = -xs[i];
+            return r;
+        }
+    }
+
+    static class DoubleNeg extends TypedNode {
+        private final TypedNode x;
+
+        DoubleNeg(TypedNode x) {
+            this.x = x;
+        }
+
+        @Override
+        double evalDouble(long[] vs) {
+            return -x.evalDouble(vs);
+        }
+
+        @Override
+        double[] evalDoubles(Object[] cs, int n) {
+            double[] xs = x.evalDoubles(cs, n);
+            double[] r = new double[n];
+            for (int i = 0; i < n; i++)
+                r[i] = -xs[i];
+            return r;
+        }
+    }
+
+    static class LongAbs extends TypedNode {
+        private final TypedNode x;
+
+        LongAbs(TypedNode x) {
+            this.x = x;
+        }
+
+        @Override
+        long evalLong(long[] vs) {
+            return Math.abs(x.evalLong(vs));
+        }
+
+        @Override
+        long[] evalLongs(Object[] cs, int n) {
+            long[] xs = x.evalLongs(cs, n);
+            long[] r = new long[n];
+            for (int i = 0; i < n; i++)
+                r[i] = Math.abs(xs[i]);
+            return r;
+        }
+    }
+
+    static class DoubleFunc extends TypedNode {
+        private final DoubleUnaryOperator func;
+        private final TypedNode x;
+
+        DoubleFunc(DoubleUnaryOperator func, TypedNode x) {
+            this.func = func;
+            this.x = x;
+        }
+
+        @Override
+        double evalDouble(long[] vs) {
+            return func.applyAsDouble(x.evalDouble(vs));
+        }
+
+        @Override
+        double[] evalDoubles(Object[] cs, int n) {
+            double[] xs = x.evalDoubles(cs, n);
+            double[] r = new double[n];
+            for (int i = 0; i < n; i++)
+                r[i] = func.applyAsDouble(xs[i]);
+            return r;
+        }
+    }
+
+    static class DoubleBinaryFunc extends TypedNode {
+        private final DoubleBinaryOperator func;
+        private final TypedNode x;
+        private final TypedNode y;
+
+        DoubleBinaryFunc(DoubleBinaryOperator func, TypedNode x, TypedNode y) {
+            this.func = func;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        double evalDouble(long[] vs) {
+            return func.applyAsDouble(x.evalDouble(vs), y.evalDouble(vs));
+        }
+
+        @Override
+        double[] evalDoubles(Object[] cs, int n) {
+            double[] xs = x.evalDoubles(cs, n);
+            double[] ys = y.evalDoubles(cs, n);
+            double[] r = new double[n];
+            for (int i = 0; i < n; i++)
+                r[i] = func.applyAsDouble(xs[i], ys[i]);
+            return r;
+        }
+    }
+
+    static class Not extends TypedNode {
+        private final TypedNode x;
+
+        Not(TypedNode x) {
+            this.x = x;
         }
 
         @Override
-        public String dump() {
-            if (nodes == null) {
-                return name;
-            } else {
-                return name + "(" + Arrays.stream(nodes).map(Node::dump).collect(Collectors.joining(",")) + ")";
-            }
+        boolean evalBoolean(long[] vs) {
+            return !x.evalBoolean(vs);
         }
 
         @Override
-        public Value eval(SimpleContext ctx) {
-            if (nodes != null) {
-                List<Value> args = Arrays.stream(nodes).map(v -> v.eval(ctx)).collect(Collectors.toList());
-                return evalCustomFunc(ctx, ((ExpValueNode.JExp) ctx.getVariable(name).asExpression()).node, args);
-            } else {
-                return ctx.getVariable(name);
-            }
+        boolean[] evalBooleans(Object[] cs, int n) {
+            boolean[] xs = x.evalBooleans(cs, n);
+            boolean[] r = new boolean[n];
+            for (int i = 0; i < n; i++)
+                r[i] = !xs[i];
+            return r;
         }
+    }
 
-        private static Value evalCustomFunc(SimpleContext ctx, ExpValueNode ev, List<Value> args) {
-            if (args.size() > 1) {
-                throw new Exp4jException.EvaluationException("only 1 args supported");
-            }
+    static class Logic extends TypedNode {
+        private final boolean and;
+        private final TypedNode x;
+        private final TypedNode y;
 
-            SimpleContext sc = new SimpleContext(ctx);
-            for (Value m : args) {
-                sc.updateVariable("_", m);
-            }
+        Logic(boolean and, TypedNode x, TypedNode y) {
+            this.and = and;
+            this.x = x;
+            this.y = y;
+        }
 
-            Value r = Value.NULL;
-            for (Node n : ev.nodes) {
-                r = n.eval(sc);
-            }
+        @Override
+        boolean evalBoolean(long[] vs) {
+            // nothing in a typed tree fails or has side effects, so it is fine to short-circuit
+            return and ? x.evalBoolean(vs) && y.evalBoolean(vs) : x.evalBoolean(vs) || y.evalBoolean(vs);
+        }
+
+        // both sides over all the rows, for the same reason that gives the same as short-circuiting each row
+        @Override
+        boolean[] evalBooleans(Object[] cs, int n) {
+            boolean[] xs = x.evalBooleans(cs, n);
+            boolean[] ys = y.evalBooleans(cs, n);
+            boolean[] r = new boolean[n];
+            for (int i = 0; i < n; i++)
+                r[i] = and ? xs[i] & ys[i] : xs[i] | ys[i];
             return r;
         }
     }
 
-    static class FuncNode implements Node {
-        final JExpFunction<?> func;
-        final Node[] nodes;
+    static class Comparison extends TypedNode {
+        private final String op;
+        private final NumericType type;
+        private final TypedNode x;
+        private final TypedNode y;
 
-        FuncNode(JExpFunction<?> func, Node[] nodes) {
-            this.func = func;
-            this.nodes = nodes;
+        Comparison(String op, NumericType type, TypedNode x, TypedNode y) {
+            this.op = op;
+            this.type = type;
+            this.x = x;
+            this.y = y;
+        }
+
+        // -1, 0 or 1 as Value.compareTo gives, equal in the same way as Value.equals for the same types
+        private int compare(long[] vs) {
+            switch (type) {
+                case Long:
+                    return Long.compare(x.evalLong(vs), y.evalLong(vs));
+                case Double:
+                    return Double.compare(x.evalDouble(vs), y.evalDouble(vs));
+                default:
+                    return Boolean.compare(x.evalBoolean(vs), y.evalBoolean(vs));
+            }
         }
 
         @Override
-        public String dump() {
-            return func.name + "(" + Arrays.stream(nodes).map(Node::dump).collect(Collectors.joining(",")) + ")";
+        long evalLong(long[] vs) {
+            return compare(vs);
+        }
+
+        private int[] compares(Object[] cs, int n) {
+            int[] r = new int[n];
+            switch (type) {
+                case Long: {
+                    long[] xs = x.evalLongs(cs, n);
+                    long[] ys = y.evalLongs(cs, n);
+                    for (int i = 0; i < n; i++)
+                        r[i] = Long.compare(xs[i], ys[i]);
+                    break;
+                }
+                case Double: {
+                    double[] xs = x.evalDoubles(cs, n);
+                    double[] ys = y.evalDoubles(cs, n);
+                    for (int i = 0; i < n; i++)
+                        r[i] = Double.compare(xs[i], ys[i]);
+                    break;
+                }
+                default: {
+                    boolean[] xs = x.evalBooleans(cs, n);
+                    boolean[] ys = y.evalBooleans(cs, n);
+                    for (int i = 0; i < n; i++)
+                        r[i] = Boolean.compare(xs[i], ys[i]);
+                }
+            }
+            return r;
         }
 
         @Override
-        public Value eval(SimpleContext ctx) {
-            return eval(ctx, nodes);
+        long[] evalLongs(Object[] cs, int n) {
+            int[] c = compares(cs, n);
+            long[] r = new long[n];
+            for (int i = 0; i < n; i++)
+                r[i] = c[i];
+            return r;
         }
 
-        public Value eval(SimpleContext ctx, Node[] nodes) {
-            if (func.args != -1 && (nodes.length > func.args + func.optArgs || nodes.length < func.args)) {
-                throw new Exp4jException.EvaluationException("invalid argument count");
+        @Override
+        boolean[] evalBooleans(Object[] cs, int n) {
+            int[] c = compares(cs, n);
+            boolean[] r = new boolean[n];
+            switch (op) {
+                case ">":
+                    for (int i = 0; i < n; i++)
+                        r[i] = c[i] > 0;
+                    break;
+                case ">=":
+                    for (int i = 0; i < n; i++)
+                        r[i] = c[i] >= 0;
+                    break;
+                case "<":
+                    for (int i = 0; i < n; i++)
+                        r[i] = c[i] < 0;
+                    break;
+                case "<=":
+                    for (int i = 0; i < n; i++)
+                        r[i] = c[i] <= 0;
+                    break;
+                case "==":
+                    for (int i = 0; i < n; i++)
+                        r[i] = c[i] == 0;
+                    break;
+                default:
+                    for (int i = 0; i < n; i++)
+                        r[i] = c[i] != 0;
             }
-
-            if (func.func != null)
-                return bindAll(func.func, func.scalable, ctx, nodes);
-            else
-                return bindAll(x -> func.funcWithCtx.apply(ctx, x), func.scalable, ctx, nodes);
+            return r;
         }
 
-        public static Value bindAll(Function<Value[], ?> function, boolean scalable, SimpleContext ctx, Node... nodes) {
-            Value[] args = new Value[nodes.length];
-            int i = 0;
-            for (Node n : nodes) {
-                args[i++] = n.eval(ctx);
+        @Override
+        boolean evalBoolean(long[] vs) {
+            int c = compare(vs);
+            switch (op) {
+                case ">":
+                    return c > 0;
+                case ">=":
+                    return c >= 0;
+                case "<":
+                    return c < 0;
+                case "<=":
+                    return c <= 0;
+                case "==":
+                    return c == 0;
+                default:
+                    return c != 0;
             }
+        }
+    }
+    // endregion
 
-            if (scalable && args.length > 0 && args[0].isVector()) {
-                Value[] vs = args[0].asVector();
-                Value[] r = new Value[vs.length];
-                i = 0;
-                for (Value v : vs) {
-                    args[0] = v;
-                    r[i++] = Value.of(function.apply(args));
-                }
+    enum Type { Number, Punctuation, Boolean, Null, String, Template, Name, EOL }
 
-                return Value.of(r);
-            } else {
-                return Value.of(function.apply(args));
+    // the structural tokens which the parser dispatches on, all others are Other
+    enum Kind {
+        LeftParen("("), RightParen(")"), LeftBracket("["), RightBracket("]"), LeftBrace("{"), RightBrace("}"),
+        Comma(","), Colon(":"), Semicolon(";"), At("@"), Dollar("$"), Dot("."), Minus("-"), EOL(null), Other(null);
+
+        final String symbol;
+
+        Kind(String symbol) {
+            this.symbol = symbol;
+        }
+
+        static Kind of(char ch) {
+            switch (ch) {
+                case '(': return LeftParen;
+                case ')': return RightParen;
+                case '[': return LeftBracket;
+                case ']': return RightBracket;
+                case '{': return LeftBrace;
+                case '}': return RightBrace;
+                case ',': return Comma;
+                case ':': return Colon;
+                case ';': return Semicolon;
+                case '@': return At;
+                case '$': return Dollar;
+                case '.': return Dot;
+                case '-': return Minus;
+                case '\r':
+                case '\n': return EOL;
+                default: return Other;
             }
         }
     }
 
-    enum Type { Number, Punctuation, Boolean, Null, String, Template, Name, EOL }
-
     static class Token {
         private final String term;
         private final Type type;
+        private final Kind kind;
         private final int pos;
         private final Value value;
+        private final OperatorTable operators;
+        private final List<TemplateSegment> segments;
 
         public Token(String term, Type type, int pos, Value value) {
+            this(term, type, Kind.Other, pos, value);
+        }
+
+        public Token(String term, Type type, Kind kind, int pos, Value value) {
+            this(term, type, kind, pos, value, null);
+        }
+
+        public Token(String term, int pos, List<TemplateSegment> segments) {
+            this(term, Type.Template, Kind.Other, pos, null, segments);
+        }
+
+        private Token(String term, Type type, Kind kind, int pos, Value value, List<TemplateSegment> segments) {
             this.term = term;
             this.type = type;
+            this.kind = kind;
             this.pos = pos;
             this.value = value;
+            this.operators = type == Type.Punctuation ? getOperatorTable(term) : null;
+            this.segments = segments;
+        }
+
+        boolean is(Kind kind) {
+            return this.kind == kind;
+        }
+    }
+
+    static class TemplateSegment {
+        // either a literal, or the chars of a placeholder path after its '$' to be parsed by the enclosing parser
+        final String literal;
+        final Token dollar;
+        private final char[] source;
+        private final int from;
+        private final int to;
+        private final int base;
+
+        TemplateSegment(String literal) {
+            this(literal, null, null, 0, 0, 0);
+        }
+
+        TemplateSegment(Token dollar, char[] source, int from, int to, int base) {
+            this(null, dollar, source, from, to, base);
+        }
+
+        private TemplateSegment(String literal, Token dollar, char[] source, int from, int to, int base) {
+            this.literal = literal;
+            this.dollar = dollar;
+            this.source = source;
+            this.from = from;
+            this.to = to;
+            this.base = base;
         }
 
-        boolean isTerm(String term) {
-            return this.term.equals(term);
+        TokenEmitter.Tokenizer tokenizer() {
+            return new TokenEmitter.Tokenizer(source, from, to, base);
         }
     }
 
@@ -713,6 +2617,8 @@ public class JExpParser {
 
     private static final Map<String, JExpFunction<?>> funcs = new HashMap<>();
 
+    private static final Set<String> nonDeterministicFuncs = new HashSet<>(Arrays.asList("now", "rand"));
+
     static {
         Arrays.stream(functions).forEach(x -> funcs.put(x.name, x));
     }
@@ -770,29 +2676,56 @@ public class JExpParser {
             },
     };
 
-    private static final Map<String, Operator> ops = new HashMap<>();
+    static class OperatorTable {
+        // all operators sharing one symbol, indexed by [operands - 1][precedence]
+        final Operator[][] levels = new Operator[2][operators.length];
+        // the operator at or after a precedence, indexed by [operands - 1][precedence]
+        final Pair<Operator, Integer>[][] forwards;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        OperatorTable() {
+            this.forwards = new Pair[2][operators.length];
+        }
+
+        void fillForwards() {
+            for (int n = 0; n < 2; ++n) {
+                Pair<Operator, Integer> fwd = NO_OPERATOR;
+                for (int l = operators.length - 1; l >= 0; --l) {
+                    if (levels[n][l] != null) {
+                        fwd = Pair.of(levels[n][l], l);
+                    }
+                    forwards[n][l] = fwd;
+                }
+            }
+        }
+    }
+
+    private static final Pair<Operator, Integer> NO_OPERATOR = Pair.of(null, operators.length);
+
+    private static final Map<String, OperatorTable> ops = new HashMap<>();
 
     static {
         for (int l = 0; l < operators.length; ++l) {
             for (int n = 0; n < operators[l].length; ++n) {
                 Operator op = operators[l][n];
-                ops.put(op.op + l + op.operands, op);
+                ops.computeIfAbsent(op.op, k -> new OperatorTable()).levels[op.operands - 1][l] = op;
             }
         }
+        ops.values().forEach(OperatorTable::fillForwards);
+    }
+
+    static OperatorTable getOperatorTable(String term) {
+        return ops.get(term);
     }
 
     private static Operator getOperator(Token token, int level, int operands) {
-        return ops.get(token.term + level + operands);
+        OperatorTable table = token.operators;
+        return table == null || level >= operators.length ? null : table.levels[operands - 1][level];
     }
 
     private static Pair<Operator, Integer> getOperatorFwd(Token token, int level, int operands) {
-        for (int l = level; l < operators.length; ++l) {
-            Operator op = ops.get(token.term + l + operands);
-            if (op != null) {
-                return Pair.of(op, l);
-            }
-        }
-        return Pair.of(null, operators.length);
+        OperatorTable table = token.operators;
+        return table == null || level >= operators.length ? NO_OPERATOR : table.forwards[operands - 1][level];
     }
     // endregion
 
@@ -820,23 +2753,23 @@ public class JExpParser {
         return consume(null);
     }
 
-    private Token consume(String term) {
+    private Token consume(Kind kind) {
         Token t = peek();
         next();
-        if (term != null && !t.isTerm(term)) {
-            throw new Exp4jException.ParseException(String.format("expect '%s' at %d", term, t.pos));
+        if (kind != null && !t.is(kind)) {
+            throw new Exp4jException.ParseException(String.format("expect '%s' at %d", kind.symbol, t.pos));
         }
         return t;
     }
 
-    private <T> List<T> parseEnclosedValue(String left, String right, Function<Integer, T> parse, String sep) {
+    private <T> List<T> parseEnclosedValue(Kind left, Kind right, Function<Integer, T> parse, Kind sep) {
         consume(left);
         List<T> tokens = new ArrayList<>();
 
         boolean closed = false;
         while (hasNext()) {
             Token n = peek();
-            if (n.term.equals(right)) {
+            if (n.is(right)) {
                 next();
                 return tokens;
             }
@@ -845,11 +2778,11 @@ public class JExpParser {
             tokens.add(t);
 
             n = peek();
-            if (n.term.equals(right)) {
+            if (n.is(right)) {
                 next();
                 closed = true;
                 break;
-            } else if (n.term.equals(sep)) {
+            } else if (n.is(sep)) {
                 next();
             } else {
                 throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", n.term, n.pos));
@@ -867,7 +2800,7 @@ public class JExpParser {
         Token t = consume();
         if (t.type == Type.String) {
             String key = t.term.substring(1, t.term.length() - 1);
-            consume(":");
+            consume(Kind.Colon);
             return Pair.of(key, parseRightAssociativeOpt(n));
         } else {
             throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", t.term, t.pos));
@@ -898,13 +2831,13 @@ public class JExpParser {
         //  $.XX[i].YY.ZZ[filter]: get the filtered element list of path XX[i].YY.ZZ
         //  and optional {} to enclose the exp after $, say ${.x}
 
-        consume("$");
+        consume(Kind.Dollar);
         boolean enclosed = false;
         Node target = null;
         List<JsonPathValueNode.PathAccessor> access = new ArrayList<>();
 
         // check whether enclosed
-        if (hasNext() && peek().term.equals("{")) {
+        if (hasNext() && peek().is(Kind.LeftBrace)) {
             enclosed = true;
             next();
         }
@@ -919,36 +2852,36 @@ public class JExpParser {
         while (hasNext()) {
             Token t = peek();
             boolean exit = false;
-            switch (t.term) {
-                case "[": {
+            switch (t.kind) {
+                case LeftBracket: {
                     next();
                     Integer index = null;
                     ExpValueNode filter = null;
 
                     Token n = peek();
-                    switch (n.term) {
-                        case "]":
+                    switch (n.kind) {
+                        case RightBracket:
                             next();
                             break;
-                        case "@":
+                        case At:
                             next();
-                            List<Node> args = parseEnclosedValue("{", "}", parseExpressFunc, ";");
+                            List<Node> args = parseEnclosedValue(Kind.LeftBrace, Kind.RightBrace, parseExpressFunc, Kind.Semicolon);
                             filter = new ExpValueNode(args.toArray(new Node[0]));
-                            consume("]");
+                            consume(Kind.RightBracket);
                             break;
                         default:
                             if (n.type == Type.Number) {
                                 next();
                                 index = Integer.parseInt(n.term);
-                                consume("]");
+                                consume(Kind.RightBracket);
                             } else {
                                 // special process
-                                if (n.term.equals("-")) {
+                                if (n.is(Kind.Minus)) {
                                     next();
                                     if (peek().type == Type.Number) {
                                         index = -Integer.parseInt(peek().term);
                                         next();
-                                        consume("]");
+                                        consume(Kind.RightBracket);
                                     } else {
                                         throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", n.term, n.pos));
                                     }
@@ -961,7 +2894,7 @@ public class JExpParser {
                     access.add(new JsonPathValueNode.PathAccessor(index, filter));
                     break;
                 }
-                case ".": {
+                case Dot: {
                     if (access.size() == 1 && access.get(0).root) {
                         throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", t.term, t.pos));
                     }
@@ -992,7 +2925,7 @@ public class JExpParser {
         // close enclosed if any
         Token close = null;
         if (enclosed) {
-            if (peek().term.equals("}")) {
+            if (peek().is(Kind.RightBrace)) {
                 close = peek();
                 next();
             } else {
@@ -1017,48 +2950,54 @@ public class JExpParser {
             case Boolean:
                 next();
                 return new SimpleValueNode(t.value);
-            case Template:
+            case Template: {
                 next();
-                return new TemplateValueNode(Arrays.stream(t.value.asVector())
-                        .map(x -> x.isString()? new SimpleValueNode(x) :
-                                ((ExpValueNode.JExp)x.asExpression()).node)
-                        .collect(Collectors.toList())
-                );
+                List<Node> nodes = new ArrayList<>();
+                for (TemplateSegment segment : t.segments) {
+                    if (segment.literal != null) {
+                        nodes.add(new SimpleValueNode(Value.of(segment.literal)));
+                    } else {
+                        // parse the placeholder in place, only its first expression is taken
+                        nodes.add(tokenEmitter.within(segment.tokenizer(), segment.dollar, () -> parseExpressFunc.apply(0)));
+                    }
+                }
+                return new TemplateValueNode(nodes);
+            }
             case Name:
                 next();
                 JExpFunction<?> func = getFunction(t);
                 if (func == null) {
-                    if (hasNext() && peek().term.equals("(")) {
+                    if (hasNext() && peek().is(Kind.LeftParen)) {
                         // function call style, take it as custom function call
-                        List<Node> args = parseEnclosedValue("(", ")", parseExpressFunc, ",");
+                        List<Node> args = parseEnclosedValue(Kind.LeftParen, Kind.RightParen, parseExpressFunc, Kind.Comma);
                         return new NameNode(t.term, args.toArray(new Node[0]));
                     } else {
                         return new NameNode(t.term);
                     }
                 } else {
-                    List<Node> args = parseEnclosedValue("(", ")", parseExpressFunc, ",");
+                    List<Node> args = parseEnclosedValue(Kind.LeftParen, Kind.RightParen, parseExpressFunc, Kind.Comma);
                     return new FuncNode(func, args.toArray(new Node[0]));
                 }
             case Punctuation:
-                switch (t.term) {
-                    case "{": {
-                        List<Pair<String, Node>> args = parseEnclosedValue("{", "}", this::parseKeyValue, ",");
+                switch (t.kind) {
+                    case LeftBrace: {
+                        List<Pair<String, Node>> args = parseEnclosedValue(Kind.LeftBrace, Kind.RightBrace, this::parseKeyValue, Kind.Comma);
                         Map<String, Node> map = new HashMap<>();
                         for (Pair<String, Node> e : args) {
                             map.put(e.first, e.second);
                         }
                         return new MapValueNode(map);
                     }
-                    case "[": {
-                        List<Node> args = parseEnclosedValue("[", "]", parseExpressFunc, ",");
+                    case LeftBracket: {
+                        List<Node> args = parseEnclosedValue(Kind.LeftBracket, Kind.RightBracket, parseExpressFunc, Kind.Comma);
                         return new ListValueNode(args);
                     }
-                    case "@": {
+                    case At: {
                         next();
-                        List<Node> args = parseEnclosedValue("{", "}", parseExpressFunc, ";");
+                        List<Node> args = parseEnclosedValue(Kind.LeftBrace, Kind.RightBrace, parseExpressFunc, Kind.Semicolon);
                         return new ExpValueNode(args.toArray(new Node[0]));
                     }
-                    case "$": {
+                    case Dollar: {
                         return parseJsonPath();
                     }
                     default:
@@ -1076,8 +3015,8 @@ public class JExpParser {
             throw new Exp4jException.ParseException("unexpected EOF");
 
         Token t = peek();
-        if (t.isTerm("(")) {
-            List<Node> args = parseEnclosedValue("(", ")", parseExpressFunc, ",");
+        if (t.is(Kind.LeftParen)) {
+            List<Node> args = parseEnclosedValue(Kind.LeftParen, Kind.RightParen, parseExpressFunc, Kind.Comma);
             if (args.isEmpty())
                 return null;
             else
@@ -1219,48 +3158,115 @@ public class JExpParser {
         return r;
     }
 
+    private Node parseStatement() {
+        Node n = parseExpressFunc.apply(0);
+        if (optimize && n != null) {
+            n = n.fold();
+        }
+        if (hasNext()) {
+            Token t = peek();
+            if (!t.is(Kind.EOL) && !t.is(Kind.Semicolon)) {
+                throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", t.term, t.pos));
+            }
+            next();
+        }
+        return n;
+    }
+
+    private void parseStatements(int start, List<Integer> starts, List<Node> nodes, IntPredicate stop) {
+        // parse the statements from start and record where each of them begins,
+        // stop at the end or before a statement beginning at the position accepted by stop
+        tokenEmitter.seek(start);
+        int pos = start;
+        do {
+            starts.add(pos);
+            nodes.add(parseStatement());
+            pos = tokenEmitter.position();
+        } while (!stop.test(pos) && hasNext());
+    }
+
     private List<Node> parse(boolean firstNodeOnly) {
-        int precedence = 0;
         List<Node> ns = new ArrayList<>();
-        do {
-            Node n = parseExpressFunc.apply(precedence);
+        if (firstNodeOnly) {
+            Node n = parseExpressFunc.apply(0);
             if (n != null)
                 ns.add(n);
+        } else {
+            statements().forEachRemaining(ns::add);
+        }
+        return ns;
+    }
 
-            if (firstNodeOnly)
-                break;
+    private Iterator<Node> statements() {
+        // parse the statements one by one on demand, only the pending one is kept
+        return new Iterator<Node>() {
+            private Node node;
+            private boolean started;
 
-            if (hasNext()) {
-                Token t = peek();
-                if (!t.term.matches("[\r\n;]")) {
-                    throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", t.term, t.pos));
+            @Override
+            public boolean hasNext() {
+                while (node == null && (!started || JExpParser.this.hasNext())) {
+                    started = true;
+                    node = parseStatement();
                 }
-                next();
+                return node != null;
             }
-        } while (hasNext());
 
-        return ns;
+            @Override
+            public Node next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                Node n = node;
+                node = null;
+                return n;
+            }
+        };
     }
 
     static class TokenEmitter {
-        private final List<Token> tokens;
-        private final Tokenizer tokenizer;
-        private int offset;
+        // the parser never looks more than one token ahead, so the consumed tokens are dropped at once
+        private static final int LOOKAHEAD = 4;
+
+        private final Token[] tokens = new Token[LOOKAHEAD];
+        private Tokenizer tokenizer;
+        private int head;
+        private int count;
+
+        TokenEmitter(char[] input, int start) {
+            this.tokenizer = new Tokenizer(input, start);
+        }
+
+        TokenEmitter(Reader input, int base) {
+            this.tokenizer = new Tokenizer(input, base);
+        }
 
-        TokenEmitter(char[] input, int start, boolean optimize) {
-            this.tokens = new ArrayList<>();
-            this.tokenizer = new Tokenizer(input, start, optimize);
-            this.offset = 0;
+        <T> T within(Tokenizer inner, Token first, Supplier<T> parse) {
+            // emit the first token and then the tokens of inner, used by the placeholders of a template
+            assert count == 0;
+            Tokenizer outer = this.tokenizer;
+            this.tokenizer = inner;
+            tokens[head] = first;
+            count = 1;
+            try {
+                return parse.get();
+            } finally {
+                while (count > 0) {
+                    next();
+                }
+                this.tokenizer = outer;
+            }
         }
 
         boolean hasNext() {
-            if (offset < tokens.size())
+            if (count > 0)
                 return true;
 
             if (tokenizer.hasNext()) {
                 Token t = tokenizer.nextToken();
                 if (t != null) {
-                    tokens.add(t);
+                    tokens[(head + count) % LOOKAHEAD] = t;
+                    count++;
                     return true;
                 }
             }
@@ -1269,29 +3275,58 @@ public class JExpParser {
         }
 
         Token peek() {
-            return tokens.get(offset);
+            return tokens[head];
+        }
+
+        int position() {
+            // the position of the next token to emit, only meaningful with no pending lookahead
+            assert count == 0;
+            return tokenizer.at(tokenizer.pos);
+        }
+
+        void seek(int position) {
+            assert count == 0;
+            tokenizer.pos = position - tokenizer.base;
         }
 
         void next() {
             assert hasNext();
-            offset++;
+            tokens[head] = null;
+            head = (head + 1) % LOOKAHEAD;
+            count--;
         }
 
         static class Tokenizer {
-            private final char[] expression;
-            private final int expressionLength;
-            private final boolean optimize;
+            private static final int BUFFER_SIZE = 8192;
+
+            private char[] expression;
+            private int expressionLength;
+            private final Reader reader;
             private int pos;
+            private int base; // the offset of expression[0] in the whole input when reading from a Reader
 
-            public Tokenizer(char[] expression, int offset, boolean optimize) {
+            public Tokenizer(char[] expression, int offset) {
+                this(expression, offset, expression.length, 0);
+            }
+
+            public Tokenizer(char[] expression, int from, int to, int base) {
                 this.expression = expression;
-                this.pos = offset;
-                this.optimize = optimize;
-                this.expressionLength = this.expression.length;
+                this.pos = from;
+                this.expressionLength = to;
+                this.base = base;
+                this.reader = null;
+            }
+
+            public Tokenizer(Reader reader, int base) {
+                this.expression = new char[BUFFER_SIZE];
+                this.pos = 0;
+                this.expressionLength = 0;
+                this.base = base;
+                this.reader = reader;
             }
 
             public boolean hasNext() {
-                return this.expression.length > pos;
+                return available(pos);
             }
 
             public char peek() {
@@ -1299,7 +3334,48 @@ public class JExpParser {
             }
 
             private boolean isEndOfExpression() {
-                return this.expressionLength <= this.pos;
+                return !available(this.pos);
+            }
+
+            private boolean available(int index) {
+                return index < expressionLength || fill(index);
+            }
+
+            private boolean fill(int index) {
+                // read from the reader until the index is buffered, the buffer only grows for a token over half its size
+                if (reader == null)
+                    return false;
+
+                try {
+                    while (index >= expressionLength) {
+                        if (expressionLength == expression.length) {
+                            expression = Arrays.copyOf(expression, expression.length * 2);
+                        }
+                        int n = reader.read(expression, expressionLength, expression.length - expressionLength);
+                        if (n < 0)
+                            return false;
+                        expressionLength += n;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("fail to read expression: " + e.getMessage(), e);
+                }
+            }
+
+            private void compact() {
+                // drop the chars of the tokens already emitted once they take half the buffer, so a char is moved at
+                // most once and the next token has half the buffer to grow into; the scanners hold buffer indices
+                // across fill(), so it runs between tokens only
+                if (reader != null && pos >= expression.length / 2) {
+                    System.arraycopy(expression, pos, expression, 0, expressionLength - pos);
+                    base += pos;
+                    expressionLength -= pos;
+                    pos = 0;
+                }
+            }
+
+            private int at(int offset) {
+                return base + offset;
             }
 
             public void advance() {
@@ -1326,6 +3402,7 @@ public class JExpParser {
             }
 
             public Token nextToken() {
+                compact();
                 skipSpaces();
                 if (isEndOfExpression())
                     return null;
@@ -1334,7 +3411,7 @@ public class JExpParser {
                 char ch = peek();
                 switch (ch) {
                     case '#':
-                        while (pos < expressionLength) {
+                        while (!isEndOfExpression()) {
                             char n = getAndAdvance();
                             if (n == '\r' || n == '\n')
                                 break;
@@ -1357,7 +3434,7 @@ public class JExpParser {
                     case '-':
                     case '^':
                     case '$':
-                        token = new Token(String.valueOf(ch), Type.Punctuation, pos, null);
+                        token = new Token(termOf(ch), Type.Punctuation, Kind.of(ch), at(pos), null);
                         advance();
                         break;
                     case '=':
@@ -1369,39 +3446,39 @@ public class JExpParser {
                             if (ch == '<') {
                                 advance();
                                 if (hasNext() && peek() == '>') {
-                                    token = new Token("<=>", Type.Punctuation, pos - 2, null);
+                                    token = new Token("<=>", Type.Punctuation, Kind.Other, at(pos - 2), null);
                                     advance();
                                 } else {
-                                    token = new Token("<=", Type.Punctuation, pos - 1, null);
+                                    token = new Token("<=", Type.Punctuation, Kind.Other, at(pos - 1), null);
                                 }
                             } else {
-                                token = new Token(ch + "=", Type.Punctuation, pos - 1, null);
+                                token = new Token(ch == '=' ? "==" : ch == '!' ? "!=" : ">=", Type.Punctuation, Kind.Other, at(pos - 1), null);
                                 advance();
                             }
                         } else {
-                            token = new Token(String.valueOf(ch), Type.Punctuation, pos - 1, null);
+                            token = new Token(termOf(ch), Type.Punctuation, Kind.Other, at(pos - 1), null);
                         }
                         break;
                     case '+':
                         advance();
                         if (hasNext() && peek() == '+') {
-                            token = new Token("++", Type.Punctuation, pos - 1, null);
+                            token = new Token("++", Type.Punctuation, Kind.Other, at(pos - 1), null);
                             advance();
                         } else {
-                            token = new Token("+", Type.Punctuation, pos - 1, null);
+                            token = new Token("+", Type.Punctuation, Kind.Other, at(pos - 1), null);
                         }
                         break;
                     case '|':
                         advance();
                         if (hasNext() && peek() == '|') {
-                            token = new Token("||", Type.Punctuation, pos - 1, null);
+                            token = new Token("||", Type.Punctuation, Kind.Other, at(pos - 1), null);
                             advance();
                         }
                         break;
                     case '&':
                         advance();
                         if (hasNext() && peek() == '&') {
-                            token = new Token("&&", Type.Punctuation, pos - 1, null);
+                            token = new Token("&&", Type.Punctuation, Kind.Other, at(pos - 1), null);
                             advance();
                         }
                         break;
@@ -1413,7 +3490,7 @@ public class JExpParser {
                         break;
                     case '\r':
                     case '\n':
-                        token = new Token(String.valueOf(ch), Type.EOL, pos, null);
+                        token = new Token(termOf(ch), Type.EOL, Kind.EOL, at(pos), null);
                         advance();
                         break;
                     default: {
@@ -1426,30 +3503,85 @@ public class JExpParser {
                 }
 
                 if (token == null) {
-                    throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", ch, pos));
+                    throw new Exp4jException.ParseException(String.format("unexpected '%s' at pos %d", ch, at(pos)));
                 }
                 return token;
             }
 
+            // interned terms of the single char tokens, so no String is built per token
+            private static final String[] CHAR_TERMS = new String[128];
+
+            static {
+                for (char ch : ",()[]{}:;@*/%.-^$=!><\r\n".toCharArray()) {
+                    CHAR_TERMS[ch] = String.valueOf(ch).intern();
+                }
+            }
+
+            private static String termOf(char ch) {
+                return ch < CHAR_TERMS.length && CHAR_TERMS[ch] != null ? CHAR_TERMS[ch] : String.valueOf(ch);
+            }
+
             private String getLiteral(int offset) {
                 return new String(expression, offset, pos - offset);
             }
 
+            private static boolean isAsciiDigit(char ch) {
+                return ch >= '0' && ch <= '9';
+            }
+
+            private int skipDigits(int from) {
+                while (available(from) && isAsciiDigit(expression[from])) {
+                    ++from;
+                }
+                return from;
+            }
+
             private Token parseNumberToken() {
-                Pattern pattern = Pattern.compile("^[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?");
-                Matcher matcher = pattern.matcher(new String(expression, pos, expression.length - pos));
-
-                if (matcher.find()) {
-                    String term = matcher.group();
-                    int start = pos;
-                    pos += term.length();
-                    if (Pattern.compile("[.eE]").matcher(term).find())
-                        return new Token(term, Type.Number, start, Value.of(Double.parseDouble(term)));
-                    else
-                        return new Token(term, Type.Number, start, Value.of(Long.parseLong(term)));
+                // single pass scanner for: [0-9]+(\.[0-9]+)?([eE][-+]?[0-9]+)?
+                // a dot or exponent not followed by digits is not part of the number, say '2.abs()' or '1e'
+                int start = pos;
+                int end = skipDigits(start);
+                if (end == start) {
+                    throw new Exp4jException.ParseException(String.valueOf(expression[start]), at(start));
+                }
+
+                boolean decimal = false;
+                if (available(end + 1) && expression[end] == '.' && isAsciiDigit(expression[end + 1])) {
+                    end = skipDigits(end + 1);
+                    decimal = true;
+                }
+
+                if (available(end + 1) && (expression[end] == 'e' || expression[end] == 'E')) {
+                    int exp = end + 1;
+                    if (expression[exp] == '+' || expression[exp] == '-') {
+                        ++exp;
+                    }
+                    if (available(exp) && isAsciiDigit(expression[exp])) {
+                        end = skipDigits(exp);
+                        decimal = true;
+                    }
+                }
+
+                pos = end;
+                String term = getLiteral(start);
+                if (decimal) {
+                    return new Token(term, Type.Number, at(start), Value.of(Double.parseDouble(term)));
                 } else {
-                    throw new Exp4jException.ParseException("???");
+                    return new Token(term, Type.Number, at(start), Value.of(parseLong(start, end, term)));
+                }
+            }
+
+            private long parseLong(int start, int end, String term) {
+                // up to 18 digits always fit into a long, leave the rare longer literals to the JDK
+                if (end - start > 18) {
+                    return Long.parseLong(term);
+                }
+
+                long n = 0;
+                for (int i = start; i < end; ++i) {
+                    n = n * 10 + (expression[i] - '0');
                 }
+                return n;
             }
 
             private Token parseStringLiteral() {
@@ -1465,10 +3597,10 @@ public class JExpParser {
                             escape = false;
                         }
                         else
-                            throw new Exp4jException.ParseException("\\" + ch, this.pos);
+                            throw new Exp4jException.ParseException("\\" + ch, at(this.pos));
                     } else {
                         if (ch == '"') {
-                            return new Token(getLiteral(offset), Type.String, offset, Value.of(buffer.toString()));
+                            return new Token(getLiteral(offset), Type.String, at(offset), Value.of(buffer.toString()));
                         } else if (ch == '\\') {
                             escape = true;
                         } else {
@@ -1538,11 +3670,61 @@ public class JExpParser {
                 return buffer.toString();
             }
 
+            @SuppressWarnings("fallthrough")
+            private TemplateSegment scanJsonPathInTemplate() {
+                // find the chars of the json path, they are tokenized later in place by the enclosing parser
+                int dollar = pos;
+                advance('$');
+
+                boolean enclosed = false;
+                boolean quoted = false;
+                if (!isEndOfExpression() && peek() == '{') {
+                    enclosed = true;
+                    advance();
+                }
+
+                int from = pos;
+                int to = -1;
+                while (to < 0 && !isEndOfExpression()) {
+                    char ch = getAndAdvance();
+                    switch (ch) {
+                        case '\\': {
+                            // escaped chars in path are rare, take the extracted path instead
+                            pos = dollar;
+                            char[] path = extractJsonPathInTemplate().toCharArray();
+                            return new TemplateSegment(dollarToken(dollar), path, 1, path.length, at(dollar) - 1);
+                        }
+                        case '}':
+                            if (!quoted) {
+                                to = pos - 1;
+                                break;
+                            }
+                            // falls through as in extractJsonPathInTemplate, both must end the path at the same char
+                        case '"':
+                            quoted = !quoted;
+                            break;
+                        default: {
+                            if (!quoted && !enclosed && !isAlphabetic(ch) && ch != '.') {
+                                stepBack();
+                                to = pos;
+                            }
+                            break;
+                        }
+                    }
+                }
+
+                return new TemplateSegment(dollarToken(dollar), expression, from, to < 0 ? pos : to, base);
+            }
+
+            private Token dollarToken(int dollar) {
+                return new Token(termOf('$'), Type.Punctuation, Kind.Dollar, at(dollar), null);
+            }
+
             private Token parseTemplate() {
                 int offset = pos;
                 advance('`');
 
-                List<Value> tokens = new ArrayList<>();
+                List<TemplateSegment> segments = new ArrayList<>();
 
                 StringBuilder buffer = new StringBuilder();
                 boolean escaped = false;
@@ -1559,19 +3741,15 @@ public class JExpParser {
                     }
 
                     if (ch == '$' && !escaped) {
-                        // wrap all chars before exp as string token
-                        String before = buffer.toString();
-                        tokens.add(Value.of(before));
-
-                        // reset the buffer
-                        buffer = new StringBuilder();
+                        // wrap all chars before exp as literal
+                        if (buffer.length() > 0) {
+                            segments.add(new TemplateSegment(buffer.toString()));
+                            buffer.setLength(0);
+                        }
 
-                        // take the exp as JsonPath token
+                        // take the exp as JsonPath placeholder
                         stepBack();
-                        String path = extractJsonPathInTemplate();
-                        JExpParser parser = new JExpParser(path.toCharArray(), 0, optimize);
-                        List<Node> ns = parser.parse(true);
-                        tokens.add(Value.of(new ExpValueNode.JExp(new ExpValueNode(ns.toArray(new Node[0])))));
+                        segments.add(scanJsonPathInTemplate());
                     } else if (ch != '`' || escaped) {
                         buffer.append(ch);
                         escaped = false;
@@ -1581,10 +3759,10 @@ public class JExpParser {
                 }
 
                 if (buffer.length() > 0) {
-                    tokens.add(Value.of(buffer.toString()));
+                    segments.add(new TemplateSegment(buffer.toString()));
                 }
 
-                return new Token(getLiteral(offset), Type.Template, pos, Value.of(tokens));
+                return new Token(getLiteral(offset), at(pos), segments);
             }
 
             private boolean isEscapable(char ch) {
@@ -1603,17 +3781,17 @@ public class JExpParser {
 
             private Token parseConstantTerm() {
                 int start = pos;
-                while (pos < this.expressionLength && isVariableOrFunctionCharacter(expression[pos])) {
+                while (available(pos) && isVariableOrFunctionCharacter(expression[pos])) {
                     ++pos;
                 }
 
                 String name = new String(expression, start, pos - start);
                 if (name.equals("null")) {
-                    return new Token(name, Type.Null, pos, Value.NULL);
+                    return new Token(name, Type.Null, at(pos), Value.NULL);
                 } else if (name.equals("true") || name.equals("false")) {
-                    return new Token(name, Type.Boolean, pos, Value.of(Boolean.parseBoolean(name)));
+                    return new Token(name, Type.Boolean, at(pos), Value.of(Boolean.parseBoolean(name)));
                 } else {
-                    return new Token(name, Type.Name, pos, null);
+                    return new Token(name, Type.Name, at(pos), null);
                 }
             }
 
@@ -1631,10 +3809,25 @@ public class JExpParser {
 
     private final TokenEmitter tokenEmitter;
 
+    private final boolean optimize;
+
     private final Function<Integer, Node> parseExpressFunc;
 
     public JExpParser(char[] expression, int start, boolean optimize) {
-        this.tokenEmitter = new TokenEmitter(expression, start, optimize);
+        this.tokenEmitter = new TokenEmitter(expression, start);
+        this.optimize = optimize;
+        this.parseExpressFunc = optimize?
+                this::parseRightAssociativeOpt : this::parseRightAssociative;
+    }
+
+    public JExpParser(Reader expression, boolean optimize) {
+        this(expression, 0, optimize);
+    }
+
+    // the reader starts at offset base of the whole input
+    JExpParser(Reader expression, int base, boolean optimize) {
+        this.tokenEmitter = new TokenEmitter(expression, base);
+        this.optimize = optimize;
         this.parseExpressFunc = optimize?
                 this::parseRightAssociativeOpt : this::parseRightAssociative;
     }
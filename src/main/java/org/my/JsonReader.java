@@ -0,0 +1,495 @@
+package org.my;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// reads a JSON document straight into Values, arrays of numbers of one kind stay unboxed
+class JsonReader {
+    private static final int BUFFER_SIZE = 8192;
+    // objects and arrays are read recursively, a document nested deeper is refused rather than overflowing the stack
+    static final int MAX_DEPTH = 512;
+
+    private final Reader reader;
+    private char[] buffer;
+    private int length;
+    private int pos;
+    private int base; // the offset of buffer[0] in the whole input when reading from a Reader
+    private int depth; // the objects and arrays open around the value being read
+
+    // the last number read, kept unboxed until it's known where it goes
+    private long longNumber;
+    private double doubleNumber;
+
+    JsonReader(char[] json) {
+        this(json, json.length);
+    }
+
+    JsonReader(char[] json, int length) {
+        this.reader = null;
+        this.buffer = json;
+        this.length = length;
+    }
+
+    JsonReader(byte[] json) {
+        this(StandardCharsets.UTF_8.decode(ByteBuffer.wrap(json)));
+    }
+
+    private JsonReader(CharBuffer chars) {
+        this(chars.array(), chars.limit());
+    }
+
+    JsonReader(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    // the fields to keep, null for a whole value
+    static class Projection {
+        final Map<String, Projection> fields = new HashMap<>();
+
+        // null when one of the paths is empty, that is the whole document
+        static Projection of(Collection<List<String>> paths) {
+            Projection root = new Projection();
+            for (List<String> path : paths) {
+                if (path.isEmpty())
+                    return null;
+                Projection p = root;
+                for (int i = 0; i < path.size(); i++) {
+                    String name = path.get(i);
+                    boolean last = i == path.size() - 1;
+                    if (p.fields.containsKey(name) && p.fields.get(name) == null)
+                        break;
+                    if (last) {
+                        p.fields.put(name, null);
+                    } else {
+                        p = p.fields.computeIfAbsent(name, k -> new Projection());
+                    }
+                }
+            }
+            return root;
+        }
+    }
+
+    // the whole input must be a single JSON value
+    Value read() {
+        return read((Projection) null);
+    }
+
+    // only the given paths are converted, the fields out of them are skipped without making values
+    Value read(Collection<List<String>> paths) {
+        return read(Projection.of(paths));
+    }
+
+    private Value read(Projection projection) {
+        Value value = readValue(projection);
+        if (skipWhitespace())
+            throw unexpected();
+        return value;
+    }
+
+    private Value readValue(Projection projection) {
+        if (!skipWhitespace())
+            throw new Exp4jException.ParseException("unexpected EOF");
+
+        char c = buffer[pos];
+        switch (c) {
+            case '{':
+            case '[':
+                if (++depth > MAX_DEPTH)
+                    throw new Exp4jException.ParseException(String.format("nested deeper than %d at %d", MAX_DEPTH, base + pos));
+                Value v = c == '{' ? readObject(projection) : readArray(projection);
+                depth--;
+                return v;
+            case '"':
+                pos++;
+                return Value.of(readString());
+            case 't':
+                readLiteral("true");
+                return Value.of(true);
+            case 'f':
+                readLiteral("false");
+                return Value.of(false);
+            case 'n':
+                readLiteral("null");
+                return Value.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                    return readNumber() ? Value.of(longNumber) : Value.of(doubleNumber);
+                throw unexpected();
+        }
+    }
+
+    private Value readObject(Projection projection) {
+        pos++;
+        Map<String, Value> fields = new HashMap<>();
+        if (skipWhitespace() && buffer[pos] == '}') {
+            pos++;
+            return Value.ofFields(fields);
+        }
+
+        while (true) {
+            expect('"');
+            String key = readString();
+            expect(':');
+            if (projection == null)
+                fields.put(key, readValue(null));
+            else if (projection.fields.containsKey(key))
+                fields.put(key, readValue(projection.fields.get(key)));
+            else
+                skipValue();
+            if (!skipWhitespace())
+                throw new Exp4jException.ParseException("unexpected EOF");
+            char c = buffer[pos++];
+            if (c == '}')
+                return Value.ofFields(fields);
+            if (c != ',') {
+                pos--;
+                throw unexpected();
+            }
+        }
+    }
+
+    private static final int EMPTY = 0, LONGS = 1, DOUBLES = 2, VALUES = 3;
+
+    // the projection applies to each element
+    private Value readArray(Projection projection) {
+        pos++;
+        int kind = EMPTY;
+        int n = 0;
+        long[] ls = null;
+        double[] ds = null;
+        Value[] vs = null;
+        // the same rules as the vector info of Value, updated element by element
+        boolean homogeneous = true;
+        Value.Type type = null;
+
+        if (skipWhitespace() && buffer[pos] == ']') {
+            pos++;
+            return Value.ofVector(new Value[0], true, null);
+        }
+
+        while (true) {
+            if (!skipWhitespace())
+                throw new Exp4jException.ParseException("unexpected EOF");
+            char c = buffer[pos];
+            Value v = null;
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                boolean isLong = readNumber();
+                if (kind == EMPTY) {
+                    kind = isLong ? LONGS : DOUBLES;
+                    if (isLong)
+                        ls = new long[16];
+                    else
+                        ds = new double[16];
+                }
+                if (kind == LONGS && isLong) {
+                    if (n == ls.length)
+                        ls = Arrays.copyOf(ls, n * 2);
+                    ls[n++] = longNumber;
+                } else if (kind == DOUBLES && !isLong) {
+                    if (n == ds.length)
+                        ds = Arrays.copyOf(ds, n * 2);
+                    ds[n++] = doubleNumber;
+                } else {
+                    v = isLong ? Value.of(longNumber) : Value.of(doubleNumber);
+                }
+            } else {
+                v = readValue(projection);
+            }
+
+            if (v != null) {
+                // a number not fitting the unboxed elements so far, or any other value
+                if (kind != VALUES) {
+                    vs = new Value[Math.max(16, n * 2)];
+                    for (int i = 0; i < n; i++)
+                        vs[i] = kind == LONGS ? Value.of(ls[i]) : Value.of(ds[i]);
+                    if (n > 0)
+                        type = kind == LONGS ? Value.Type.IntegerT : Value.Type.DecimalT;
+                    kind = VALUES;
+                    ls = null;
+                    ds = null;
+                }
+                if (n == vs.length)
+                    vs = Arrays.copyOf(vs, n * 2);
+                vs[n++] = v;
+                if (type == null) {
+                    type = v.getType();
+                } else if (homogeneous) {
+                    homogeneous = Value.typeEquivalent(type, v.getType());
+                    type = Value.compatibleType(type, v.getType());
+                }
+            }
+
+            if (!skipWhitespace())
+                throw new Exp4jException.ParseException("unexpected EOF");
+            c = buffer[pos++];
+            if (c == ']')
+                break;
+            if (c != ',') {
+                pos--;
+                throw unexpected();
+            }
+        }
+
+        if (kind == LONGS)
+            return Value.of(Arrays.copyOf(ls, n));
+        else if (kind == DOUBLES)
+            return Value.of(Arrays.copyOf(ds, n));
+        else
+            return Value.ofVector(Arrays.copyOf(vs, n), homogeneous, homogeneous ? type : null);
+    }
+
+    // reads the chars after an opening quote up to and including the closing one
+    private String readString() {
+        int start = pos;
+        for (int i = pos; i < length; i++) {
+            char c = buffer[i];
+            if (c == '"') {
+                pos = i + 1;
+                return new String(buffer, start, i - start);
+            }
+            if (c == '\\')
+                break;
+        }
+
+        // escapes, or a string crossing the end of the buffer
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (!available())
+                throw new Exp4jException.ParseException("unexpected EOF");
+            char c = buffer[pos++];
+            if (c == '"')
+                return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+
+            if (!available())
+                throw new Exp4jException.ParseException("unexpected EOF");
+            c = buffer[pos++];
+            switch (c) {
+                case '"': case '\\': case '/': sb.append(c); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u': {
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        if (!available())
+                            throw new Exp4jException.ParseException("unexpected EOF");
+                        int digit = Character.digit(buffer[pos], 16);
+                        if (digit < 0)
+                            throw unexpected();
+                        code = code * 16 + digit;
+                        pos++;
+                    }
+                    sb.append((char) code);
+                    break;
+                }
+                default:
+                    pos--;
+                    throw unexpected();
+            }
+        }
+    }
+
+    private void skipValue() {
+        if (!skipWhitespace())
+            throw new Exp4jException.ParseException("unexpected EOF");
+
+        char c = buffer[pos];
+        if (c == '{' || c == '[') {
+            // only strings and brackets are looked at, a skipped value is not checked further
+            int depth = 0;
+            do {
+                if (!available())
+                    throw new Exp4jException.ParseException("unexpected EOF");
+                c = buffer[pos++];
+                if (c == '"')
+                    skipString();
+                else if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                    depth--;
+            } while (depth > 0);
+        } else if (c == '"') {
+            pos++;
+            skipString();
+        } else {
+            readValue(null);
+        }
+    }
+
+    private void skipString() {
+        while (true) {
+            if (!available())
+                throw new Exp4jException.ParseException("unexpected EOF");
+            char c = buffer[pos++];
+            if (c == '"')
+                return;
+            if (c == '\\') {
+                if (!available())
+                    throw new Exp4jException.ParseException("unexpected EOF");
+                pos++;
+            }
+        }
+    }
+
+    // true when an integer fitting a long was read into longNumber, false for a decimal in doubleNumber
+    private boolean readNumber() {
+        int start = pos;
+        int end = pos;
+        while (end < length && isNumberChar(buffer[end]))
+            end++;
+
+        String text;
+        if (end < length || reader == null) {
+            text = new String(buffer, start, end - start);
+            pos = end;
+        } else {
+            StringBuilder sb = new StringBuilder();
+            while (available() && isNumberChar(buffer[pos]))
+                sb.append(buffer[pos++]);
+            text = sb.toString();
+        }
+
+        if (!isJsonNumber(text))
+            throw new Exp4jException.ParseException(text, base + start);
+
+        boolean integer = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integer = false;
+                break;
+            }
+        }
+
+        try {
+            if (integer) {
+                try {
+                    longNumber = Long.parseLong(text);
+                    return true;
+                } catch (NumberFormatException e) {
+                    // too large for a long, keeps the magnitude as a decimal
+                }
+            }
+            doubleNumber = Double.parseDouble(text);
+            return false;
+        } catch (NumberFormatException e) {
+            throw new Exp4jException.ParseException(text, base + start);
+        }
+    }
+
+    // -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?, the chars taken by isNumberChar are not all a number
+    private static boolean isJsonNumber(String text) {
+        int n = text.length();
+        int i = 0;
+        if (i < n && text.charAt(i) == '-')
+            i++;
+        if (i < n && text.charAt(i) == '0') {
+            i++;
+        } else {
+            int end = skipDigits(text, i);
+            if (end == i)
+                return false;
+            i = end;
+        }
+        if (i < n && text.charAt(i) == '.') {
+            int end = skipDigits(text, i + 1);
+            if (end == i + 1)
+                return false;
+            i = end;
+        }
+        if (i < n && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (text.charAt(i) == '+' || text.charAt(i) == '-'))
+                i++;
+            int end = skipDigits(text, i);
+            if (end == i)
+                return false;
+            i = end;
+        }
+        return i == n;
+    }
+
+    private static int skipDigits(String text, int i) {
+        while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9')
+            i++;
+        return i;
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private void readLiteral(String literal) {
+        int start = base + pos;
+        for (int i = 0; i < literal.length(); i++) {
+            if (!available() || buffer[pos] != literal.charAt(i))
+                throw new Exp4jException.ParseException(literal, start);
+            pos++;
+        }
+    }
+
+    private void expect(char c) {
+        if (!skipWhitespace())
+            throw new Exp4jException.ParseException("unexpected EOF");
+        if (buffer[pos] != c)
+            throw new Exp4jException.ParseException(String.format("expect '%s' at %d", c, base + pos));
+        pos++;
+    }
+
+    // false at the end of the input
+    private boolean skipWhitespace() {
+        while (available()) {
+            char c = buffer[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+                return true;
+            pos++;
+        }
+        return false;
+    }
+
+    private Exp4jException.ParseException unexpected() {
+        return new Exp4jException.ParseException(String.valueOf(buffer[pos]), base + pos);
+    }
+
+    private boolean available() {
+        return pos < length || fill();
+    }
+
+    private boolean fill() {
+        // nothing before pos is looked at again, the buffer is reused from the start
+        if (reader == null)
+            return false;
+
+        try {
+            base += length;
+            pos = 0;
+            length = 0;
+            int n;
+            do {
+                n = reader.read(buffer, 0, buffer.length);
+            } while (n == 0);
+            if (n < 0)
+                return false;
+            length = n;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("fail to read json: " + e.getMessage(), e);
+        }
+    }
+}
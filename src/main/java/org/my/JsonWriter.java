@@ -0,0 +1,208 @@
+package org.my;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// the output of Value.writeJson, escapes strings as json-simple does so the text is the same as Value.toString
+abstract class JsonWriter implements Appendable {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private final char[] digits = new char[20];
+
+    static JsonWriter of(Appendable out) {
+        return out instanceof JsonWriter ? (JsonWriter) out : new ToAppendable(out);
+    }
+
+    static JsonWriter of(OutputStream out) {
+        return new ToUtf8(out);
+    }
+
+    @Override
+    public JsonWriter append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public abstract JsonWriter append(CharSequence csq, int start, int end) throws IOException;
+
+    @Override
+    public abstract JsonWriter append(char c) throws IOException;
+
+    void flush() throws IOException {
+    }
+
+    void writeLong(long n) throws IOException {
+        if (n == Long.MIN_VALUE) {
+            append(String.valueOf(n));
+            return;
+        }
+        if (n < 0) {
+            append('-');
+            n = -n;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (char) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        while (i < digits.length)
+            append(digits[i++]);
+    }
+
+    void writeDouble(double d) throws IOException {
+        append(Double.toString(d));
+    }
+
+    void writeString(String s) throws IOException {
+        append('"');
+        int from = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String escape;
+            switch (c) {
+                case '"': escape = "\\\""; break;
+                case '\\': escape = "\\\\"; break;
+                case '\b': escape = "\\b"; break;
+                case '\f': escape = "\\f"; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                case '\t': escape = "\\t"; break;
+                case '/': escape = "\\/"; break;
+                default:
+                    if (c <= '\u001F' || (c >= '\u007F' && c <= '\u009F') || (c >= '\u2000' && c <= '\u20FF')) {
+                        escape = null;
+                        break;
+                    }
+                    continue;
+            }
+
+            append(s, from, i);
+            from = i + 1;
+            if (escape != null) {
+                append(escape);
+            } else {
+                append('\\').append('u');
+                for (int shift = 12; shift >= 0; shift -= 4)
+                    append(HEX[(c >> shift) & 0xF]);
+            }
+        }
+        append(s, from, s.length());
+        append('"');
+    }
+
+    private static class ToAppendable extends JsonWriter {
+        private final Appendable out;
+
+        ToAppendable(Appendable out) {
+            this.out = out;
+        }
+
+        @Override
+        public JsonWriter append(CharSequence csq, int start, int end) throws IOException {
+            out.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public JsonWriter append(char c) throws IOException {
+            out.append(c);
+            return this;
+        }
+
+        @Override
+        void writeLong(long n) throws IOException {
+            if (out instanceof StringBuilder)
+                ((StringBuilder) out).append(n);
+            else
+                super.writeLong(n);
+        }
+
+        @Override
+        void writeDouble(double d) throws IOException {
+            if (out instanceof StringBuilder)
+                ((StringBuilder) out).append(d);
+            else
+                super.writeDouble(d);
+        }
+    }
+
+    // collects chars in a buffer of its own and encodes them to UTF-8 a buffer at a time
+    private static class ToUtf8 extends JsonWriter {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final OutputStream out;
+        private final char[] chars = new char[BUFFER_SIZE];
+        private int length;
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 3);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        ToUtf8(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public JsonWriter append(CharSequence csq, int start, int end) throws IOException {
+            while (start < end) {
+                if (length == chars.length)
+                    encode(false);
+                int n = Math.min(end - start, chars.length - length);
+                if (csq instanceof String) {
+                    ((String) csq).getChars(start, start + n, chars, length);
+                } else {
+                    for (int i = 0; i < n; i++)
+                        chars[length + i] = csq.charAt(start + i);
+                }
+                length += n;
+                start += n;
+            }
+            return this;
+        }
+
+        @Override
+        public JsonWriter append(char c) throws IOException {
+            if (length == chars.length)
+                encode(false);
+            chars[length++] = c;
+            return this;
+        }
+
+        @Override
+        void flush() throws IOException {
+            encode(true);
+            out.flush();
+        }
+
+        private void encode(boolean end) throws IOException {
+            CharBuffer in = CharBuffer.wrap(chars, 0, length);
+            while (true) {
+                CoderResult result = encoder.encode(in, bytes, end);
+                if (result.isOverflow()) {
+                    write();
+                    continue;
+                }
+                if (end) {
+                    while (encoder.flush(bytes).isOverflow())
+                        write();
+                    encoder.reset();
+                }
+                break;
+            }
+            write();
+            // a high surrogate at the end waits for the next chars
+            length = in.remaining();
+            System.arraycopy(chars, in.position(), chars, 0, length);
+        }
+
+        private void write() throws IOException {
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+}
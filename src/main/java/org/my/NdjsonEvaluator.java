@@ -0,0 +1,200 @@
+package org.my;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// runs expressions over every line of a newline delimited JSON file, the file is mapped and split at line ends
+class NdjsonEvaluator {
+    // a mapped buffer is indexed by int, larger files are split in several regions anyway
+    static final long MAX_REGION = 1L << 30;
+    private static final int SCAN_SIZE = 8192;
+
+    private final List<IExpression> expressions;
+    private final Set<List<String>> paths = new HashSet<>();
+    private final int threads;
+
+    NdjsonEvaluator(List<IExpression> expressions, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        this.expressions = expressions;
+        this.threads = threads;
+        for (IExpression expression : expressions)
+            paths.addAll(expression.getJsonPaths());
+    }
+
+    // the number of records, blank lines are not records; the first failure of any region stops the others
+    long evaluate(Path file, IResultSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = split(channel);
+            AtomicBoolean stopped = new AtomicBoolean();
+            if (bounds.length == 2)
+                return evaluate(channel, bounds[0], bounds[1], sink, stopped);
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, bounds.length - 1));
+            CompletionService<Long> regions = new ExecutorCompletionService<>(executor);
+            try {
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    long from = bounds[i];
+                    long to = bounds[i + 1];
+                    regions.submit(() -> evaluate(channel, from, to, sink, stopped));
+                }
+
+                // taken as they complete, a failure is seen while the regions before it still run
+                long records = 0;
+                for (int i = 0; i + 1 < bounds.length; i++)
+                    records += regions.take().get();
+                return records;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while evaluating " + file, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            } finally {
+                stopped.set(true);
+                executor.shutdownNow();
+                awaitTermination(executor);
+            }
+        }
+    }
+
+    // the regions still running stop at their next record, none calls the sink or reads the channel once this returns
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // the region offsets, each region but the last ends just behind a newline
+    private long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        // half the limit per region leaves room for the line crossing each split
+        long half = MAX_REGION / 2;
+        int regions = (int) Math.max(threads, (size + half - 1) / half);
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        for (int i = 1; i < regions; i++) {
+            long bound = lineEnd(channel, Math.max(size / regions * i, bounds.get(bounds.size() - 1)));
+            if (bound >= size)
+                break;
+            if (bound > bounds.get(bounds.size() - 1))
+                bounds.add(bound);
+        }
+        bounds.add(size);
+        // a single line longer than a region can't be mapped
+        for (int i = 1; i < bounds.size(); i++) {
+            if (bounds.get(i) - bounds.get(i - 1) > MAX_REGION)
+                throw new IOException(String.format("no line end within %d bytes after offset %d", MAX_REGION, bounds.get(i - 1)));
+        }
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // the offset just behind the first newline at or after the position, the size when there is none
+    private static long lineEnd(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        while (true) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                return channel.size();
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += n;
+        }
+    }
+
+    private long evaluate(FileChannel channel, long from, long to, IResultSink sink, AtomicBoolean stopped) throws IOException {
+        if (from == to || stopped.get())
+            return 0;
+
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        CharBuffer chars = CharBuffer.allocate(SCAN_SIZE);
+        long records = 0;
+        int limit = region.limit();
+        int start = 0;
+        while (start < limit && !stopped.get() && !Thread.currentThread().isInterrupted()) {
+            int end = start;
+            while (end < limit && region.get(end) != '\n')
+                end++;
+
+            if (!isBlank(region, start, end)) {
+                // the chars are decoded into a buffer reused for all records of the region
+                if (chars.capacity() < end - start)
+                    chars = CharBuffer.allocate(Math.max(end - start, chars.capacity() * 2));
+                ByteBuffer record = region.duplicate();
+                record.limit(end).position(start);
+                decode(decoder, record, chars, from + start);
+
+                SimpleContext context = new SimpleContext(new JsonReader(chars.array(), chars.position()).read(paths));
+                Value[] results = new Value[expressions.size()];
+                for (int i = 0; i < results.length; i++)
+                    results[i] = expressions.get(i).evaluate(context);
+                // another region may have failed while this record was evaluated
+                if (stopped.get())
+                    break;
+                sink.accept(from + start, results);
+                records++;
+            }
+            start = end + 1;
+        }
+        return records;
+    }
+
+    private static boolean isBlank(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\t' && b != '\r')
+                return false;
+        }
+        return true;
+    }
+
+    private static void decode(CharsetDecoder decoder, ByteBuffer record, CharBuffer chars, long offset) {
+        decoder.reset();
+        chars.clear();
+        try {
+            CoderResult result = decoder.decode(record, chars, true);
+            if (!result.isUnderflow())
+                result.throwException();
+            result = decoder.flush(chars);
+            if (!result.isUnderflow())
+                result.throwException();
+        } catch (CharacterCodingException e) {
+            throw new Exp4jException.ParseException(String.format("invalid UTF-8 in the record at offset %d", offset));
+        }
+    }
+}
@@ -4,6 +4,7 @@ import static org.my.Exp4jException.*;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -159,4 +160,107 @@ public abstract class Operators {
     public static Value plus(Value lhs) {
         return Value.of(lhs.asNumber());
     }
+
+    // broadcasts an arithmetic operator over unboxed vectors, null if the operands are not such vectors and numbers
+    static Value broadcast(String op, Value lhs, Value rhs) {
+        long[] xl = lhs.asLongs();
+        double[] xd = lhs.asDoubles();
+        if (rhs == null) {
+            if (!op.equals("-") && !op.equals("+"))
+                return null;
+            boolean negate = op.equals("-");
+            if (xl != null)
+                return Value.of(negate ? Arrays.stream(xl).map(x -> -x).toArray() : xl.clone());
+            if (xd != null)
+                return Value.of(negate ? Arrays.stream(xd).map(x -> -x).toArray() : xd.clone());
+            return null;
+        }
+
+        switch (op) {
+            case "+":
+            case "-":
+            case "*":
+            case "/":
+            case "%":
+            case "^":
+                break;
+            default:
+                return null;
+        }
+
+        long[] yl = rhs.asLongs();
+        double[] yd = rhs.asDoubles();
+        boolean xScalar = xl == null && xd == null;
+        boolean yScalar = yl == null && yd == null;
+        if (xScalar && yScalar || xScalar && !lhs.isNumber() || yScalar && !rhs.isNumber())
+            return null;
+
+        int n = xl != null ? xl.length : xd != null ? xd.length : yl != null ? yl.length : yd.length;
+        if (yl != null && yl.length != n || yd != null && yd.length != n)
+            return null;
+
+        // long op long stays long for these as in addition, subtraction and multiplication
+        if ((xl != null || xScalar && lhs.isInteger()) && (yl != null || yScalar && rhs.isInteger())
+                && (op.equals("+") || op.equals("-") || op.equals("*"))) {
+            long[] xv = xScalar ? filled(n, lhs.asLong()) : xl;
+            long[] yv = yScalar ? filled(n, rhs.asLong()) : yl;
+            long[] r = new long[n];
+            switch (op) {
+                case "+":
+                    for (int i = 0; i < n; i++)
+                        r[i] = xv[i] + yv[i];
+                    break;
+                case "-":
+                    for (int i = 0; i < n; i++)
+                        r[i] = xv[i] - yv[i];
+                    break;
+                default:
+                    for (int i = 0; i < n; i++)
+                        r[i] = xv[i] * yv[i];
+            }
+            return Value.of(r);
+        }
+
+        double[] xv = xScalar ? filled(n, lhs.asDouble()) : xd != null ? xd : Arrays.stream(xl).asDoubleStream().toArray();
+        double[] yv = yScalar ? filled(n, rhs.asDouble()) : yd != null ? yd : Arrays.stream(yl).asDoubleStream().toArray();
+        double[] r = new double[n];
+        switch (op) {
+            case "+":
+                for (int i = 0; i < n; i++)
+                    r[i] = xv[i] + yv[i];
+                break;
+            case "-":
+                for (int i = 0; i < n; i++)
+                    r[i] = xv[i] - yv[i];
+                break;
+            case "*":
+                for (int i = 0; i < n; i++)
+                    r[i] = xv[i] * yv[i];
+                break;
+            case "/":
+                for (int i = 0; i < n; i++)
+                    r[i] = xv[i] / yv[i];
+                break;
+            case "%":
+                for (int i = 0; i < n; i++)
+                    r[i] = xv[i] % yv[i];
+                break;
+            default:
+                for (int i = 0; i < n; i++)
+                    r[i] = Math.pow(xv[i], yv[i]);
+        }
+        return Value.of(r);
+    }
+
+    private static long[] filled(int n, long v) {
+        long[] r = new long[n];
+        Arrays.fill(r, v);
+        return r;
+    }
+
+    private static double[] filled(int n, double v) {
+        double[] r = new double[n];
+        Arrays.fill(r, v);
+        return r;
+    }
 }
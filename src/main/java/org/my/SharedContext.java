@@ -0,0 +1,32 @@
+package org.my;
+
+// a frozen base read by every evaluation with no locking, replaced whole by a reload
+class SharedContext implements ISharedContext {
+    private volatile SimpleContext base;
+
+    SharedContext(IExpressionContext context) {
+        this.base = freeze(context);
+    }
+
+    private static SimpleContext freeze(IExpressionContext context) {
+        if (!(context instanceof SimpleContext))
+            throw new IllegalArgumentException(context.getClass().getName() + " can't be shared");
+        return ((SimpleContext) context).freeze();
+    }
+
+    @Override
+    public IExpressionContext overlay() {
+        return base.scope();
+    }
+
+    @Override
+    public IExpressionContext base() {
+        return base;
+    }
+
+    @Override
+    public void reload(IExpressionContext context) {
+        // frozen before it is published, an overlay never sees a base half built
+        base = freeze(context);
+    }
+}
@@ -2,47 +2,332 @@ package org.my;
 
 import org.json.simple.parser.JSONParser;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+// one thread writes a context at a time, see IExpressionContext
 public class SimpleContext implements IExpressionContext {
-    private final Map<String, Value> variables = new ConcurrentHashMap<>();
+    // every variable name an expression was built with has a slot, the same in all contexts; a slot is never given
+    // back, so one is only given for a name a built expression uses
+    private static final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private static int slotCount;
+    // the name of each slot, written before the slot is put in the map so a thread given a slot sees its name
+    private static volatile String[] slotNames = new String[64];
+
     public static final String CUR_VAR_NAME = "_";
+    static final int CUR_SLOT = slot(CUR_VAR_NAME);
+    private static final int PI_SLOT = slot("pi");
+    private static final int E_SLOT = slot("e");
+    private static final Value PI = Value.of(Math.PI);
+    private static final Value E = Value.of(Math.E);
+    // the operands of sort and uniq comparators, slotted early so a scope holding them stays small
+    private static final int SCOPE_SIZE = Math.max(CUR_SLOT, Math.max(slot("a"), slot("b"))) + 1;
+    // a new context holds the default variables, the slots given to every name the process has seen don't size it
+    private static final int INITIAL_SIZE = Math.max(8, Math.max(PI_SLOT, E_SLOT) + 1);
+
+    // indexed by slot, null for a variable never set; it doubles to take a slot near its end
+    private Value[] values;
+    // the variables with slots far past the array, open addressing on slot + 1 so 0 is a free entry
+    private int[] farSlots;
+    private Value[] farValues;
+    private int farCount;
+    // the variables set by a name no built expression uses, a slot is not given for a name that may be read once
+    private Map<String, Value> named;
+    // the enclosing context of a scope, read for the variables the scope doesn't set
+    private final SimpleContext parent;
+    // 1 from its release to a pool until it is acquired again, a second release would hand it to two requests
+    private volatile int released;
+    // a frozen context is never written again, any number of threads may read it and its scopes with no locking
+    private boolean frozen;
+
+    static int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : newSlot(name);
+    }
+
+    private static synchronized int newSlot(String name) {
+        return slots.computeIfAbsent(name, k -> {
+            String[] ns = slotNames;
+            if (slotCount == ns.length)
+                ns = Arrays.copyOf(ns, slotCount * 2);
+            ns[slotCount] = k;
+            slotNames = ns;
+            return slotCount++;
+        });
+    }
+
+    static int[] slots(String[] names) {
+        int[] ss = new int[names.length];
+        for (int i = 0; i < names.length; i++)
+            ss[i] = slot(names[i]);
+        return ss;
+    }
 
     private void fillDefaultVariables() {
-        variables.put("pi", Value.of(Math.PI));
-        variables.put("e", Value.of(Math.E));
+        values = new Value[INITIAL_SIZE];
+        values[PI_SLOT] = PI;
+        values[E_SLOT] = E;
     }
 
     public SimpleContext() {
+        this.parent = null;
         this.fillDefaultVariables();
     }
 
+    // a copy of all the variables visible in the context, its scopes are flattened
     public SimpleContext(SimpleContext ctx) {
-        this.variables.putAll(ctx.variables);
+        this.parent = null;
+        if (ctx.parent == null) {
+            this.values = ctx.values.clone();
+            if (ctx.farCount != 0) {
+                this.farSlots = ctx.farSlots.clone();
+                this.farValues = ctx.farValues.clone();
+                this.farCount = ctx.farCount;
+            }
+            if (ctx.named != null)
+                this.named = new HashMap<>(ctx.named);
+            return;
+        }
+        SimpleContext flat = new SimpleContext(ctx.parent);
+        this.values = flat.values;
+        this.farSlots = flat.farSlots;
+        this.farValues = flat.farValues;
+        this.farCount = flat.farCount;
+        this.named = flat.named;
+        Value[] own = ctx.values;
+        for (int i = 0; i < own.length; i++) {
+            if (own[i] != null)
+                setVariable(i, own[i]);
+        }
+        for (int i = 0; ctx.farCount != 0 && i < ctx.farSlots.length; i++) {
+            if (ctx.farSlots[i] != 0)
+                setVariable(ctx.farSlots[i] - 1, ctx.farValues[i]);
+        }
+        if (ctx.named != null)
+            ctx.named.forEach(this::updateVariable);
+    }
+
+    private SimpleContext(SimpleContext parent, int size) {
+        this.parent = parent;
+        this.values = new Value[size];
     }
 
     public SimpleContext(String json) {
+        this.parent = null;
         try {
             this.fillDefaultVariables();
-            this.variables.put(CUR_VAR_NAME, Value.of(new JSONParser().parse(json)));
+            this.setVariable(CUR_SLOT, Value.ofJson(new JSONParser().parse(json)));
         } catch (Exception e) {
             throw new RuntimeException("fail to initialize context: " + e.getMessage());
         }
     }
 
+    // a context whose current value is already read
+    SimpleContext(Value current) {
+        this.parent = null;
+        this.fillDefaultVariables();
+        this.setVariable(CUR_SLOT, current);
+    }
+
+    Value getVariable(int slot) {
+        for (SimpleContext c = this; c != null; c = c.parent) {
+            Value[] vs = c.values;
+            if (slot < vs.length) {
+                if (vs[slot] != null)
+                    return vs[slot];
+            } else if (c.farCount != 0) {
+                Value v = c.getFar(slot);
+                if (v != null)
+                    return v;
+            }
+            // set by name before an expression naming it was built
+            if (c.named != null) {
+                Value v = c.named.get(slotNames[slot]);
+                if (v != null)
+                    return v;
+            }
+        }
+        return Value.NULL;
+    }
+
+    private Value getFar(int slot) {
+        int[] ks = farSlots;
+        int mask = ks.length - 1;
+        for (int i = hash(slot) & mask; ; i = (i + 1) & mask) {
+            if (ks[i] == slot + 1)
+                return farValues[i];
+            if (ks[i] == 0)
+                return null;
+        }
+    }
+
+    private static int hash(int slot) {
+        int h = slot * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // a context for nested evaluation, it sees the variables of this one and keeps its own writes to itself
+    SimpleContext scope() {
+        return new SimpleContext(this, SCOPE_SIZE);
+    }
+
+    // a copy that can't be changed, its values settled so that reading them writes nothing either
+    SimpleContext freeze() {
+        if (frozen && parent == null)
+            return this;
+        SimpleContext base = new SimpleContext(this);
+        for (Value v : base.values) {
+            if (v != null)
+                v.settle();
+        }
+        for (int i = 0; base.farCount != 0 && i < base.farValues.length; i++) {
+            if (base.farValues[i] != null)
+                base.farValues[i].settle();
+        }
+        if (base.named != null)
+            base.named.values().forEach(Value::settle);
+        base.frozen = true;
+        return base;
+    }
+
+    void setVariable(int slot, Value value) {
+        if (frozen)
+            throw new Exp4jException.EvaluationException("a frozen context can't be changed");
+        Value[] vs = values;
+        if (slot < vs.length)
+            vs[slot] = value;
+        else if (slot < vs.length * 2)
+            grow(slot, value);
+        else
+            putFar(slot, value);
+    }
+
+    // an overlay on a large base or a context given a late name writes a few high slots, an array up to them would cost
+    // as much as all the names ever seen
+    private void putFar(int slot, Value value) {
+        if (farSlots == null) {
+            farSlots = new int[8];
+            farValues = new Value[8];
+        } else if ((farCount + 1) * 4 > farSlots.length * 3) {
+            int[] ks = farSlots;
+            Value[] vs = farValues;
+            farSlots = new int[ks.length * 2];
+            farValues = new Value[ks.length * 2];
+            farCount = 0;
+            for (int i = 0; i < ks.length; i++) {
+                if (ks[i] != 0)
+                    putFar(ks[i] - 1, vs[i]);
+            }
+        }
+        int[] ks = farSlots;
+        int mask = ks.length - 1;
+        for (int i = hash(slot) & mask; ; i = (i + 1) & mask) {
+            if (ks[i] == slot + 1) {
+                farValues[i] = value;
+                return;
+            }
+            if (ks[i] == 0) {
+                ks[i] = slot + 1;
+                farValues[i] = value;
+                farCount++;
+                return;
+            }
+        }
+    }
+
+    private void grow(int slot, Value value) {
+        Value[] vs = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+        vs[slot] = value;
+        values = vs;
+        // the far variables the array now reaches move into it
+        if (farCount != 0) {
+            int[] ks = farSlots;
+            Value[] fvs = farValues;
+            farSlots = null;
+            farValues = null;
+            farCount = 0;
+            for (int i = 0; i < ks.length; i++) {
+                if (ks[i] == 0)
+                    continue;
+                if (ks[i] - 1 < vs.length)
+                    vs[ks[i] - 1] = fvs[i];
+                else
+                    putFar(ks[i] - 1, fvs[i]);
+            }
+        }
+    }
+
     @Override
     public void updateVariable(String name, Object value) {
-        variables.put(name, Value.of(value));
+        Value v = value instanceof Value ? (Value) value : Value.of(value);
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            setVariable(slot, v);
+            // one set before the name had a slot is replaced
+            if (named != null)
+                named.remove(name);
+            return;
+        }
+        if (frozen)
+            throw new Exp4jException.EvaluationException("a frozen context can't be changed");
+        if (named == null)
+            named = new HashMap<>();
+        named.put(name, v);
     }
 
     @Override
     public Value getVariable(String name) {
-        return variables.getOrDefault(name, Value.NULL);
+        Integer slot = slots.get(name);
+        if (slot != null)
+            return getVariable(slot);
+        for (SimpleContext c = this; c != null; c = c.parent) {
+            if (c.named != null) {
+                Value v = c.named.get(name);
+                if (v != null)
+                    return v;
+            }
+        }
+        return Value.NULL;
     }
 
     @Override
     public IExpressionContext makeCopy() {
         return new SimpleContext(this);
     }
+
+    @Override
+    public IExpressionContext makeScope() {
+        return scope();
+    }
+
+    private static final AtomicIntegerFieldUpdater<SimpleContext> RELEASED =
+            AtomicIntegerFieldUpdater.newUpdater(SimpleContext.class, "released");
+
+    // false if the context is already released, even to a pool that was full and dropped it
+    boolean markReleased() {
+        return RELEASED.compareAndSet(this, 0, 1);
+    }
+
+    void markAcquired() {
+        released = 0;
+    }
+
+    // drops every variable set so far, assigned ones included, and keeps the array for the next use
+    void reset() {
+        if (parent != null)
+            throw new IllegalStateException("a scope can't be reset");
+        if (frozen)
+            throw new IllegalStateException("a frozen context can't be reset");
+        Value[] vs = values;
+        Arrays.fill(vs, null);
+        vs[PI_SLOT] = PI;
+        vs[E_SLOT] = E;
+        farSlots = null;
+        farValues = null;
+        farCount = 0;
+        named = null;
+    }
 }
@@ -2,11 +2,14 @@ package org.my;
 
 import static org.my.Exp4jException.*;
 
-import org.json.simple.JSONValue;
-
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Value implements Comparable<Value> {
     public static final Value TRUE = Value.of(true);
@@ -19,9 +22,20 @@ public class Value implements Comparable<Value> {
     private final Object objectV;
     private String fmt = null;
 
+    // a vector of numbers all of the same type is kept unboxed as well, its elements are boxed on demand only
+    private long[] longs = null;
+    private double[] doubles = null;
+    // a parsed JSON array whose elements are turned into values on first access
+    private volatile List<?> json = null;
+    // the elements of a vector made without them, boxed from the numbers or converted from JSON; volatile so a thread
+    // seeing the array sees its elements too
+    private volatile Value[] boxed = null;
+
     private boolean isHomogeneousVector = false;
     private Type homogeneousType = null;
     private boolean multiple = false; // a possible result of JSON path access
+    // set by settle, the value is read by other threads and is never changed in place again
+    private boolean settled = false;
 
     public static class DateWithFmt {
         private final LocalDateTime localDateTime;
@@ -49,6 +63,14 @@ public class Value implements Comparable<Value> {
         return new Value();
     }
 
+    public static Value of(long[] value) {
+        return new Value(value);
+    }
+
+    public static Value of(double[] value) {
+        return new Value(value);
+    }
+
     public static Value enclosed(Value[] value) {
         return new Value(value);
     }
@@ -73,8 +95,15 @@ public class Value implements Comparable<Value> {
             return new Value((DateWithFmt) t);
         } else if (t instanceof Value[]) {
             return new Value((Value[]) t, false);
+        } else if (t instanceof long[]) {
+            return new Value((long[]) t);
+        } else if (t instanceof double[]) {
+            return new Value((double[]) t);
         } else if (t instanceof List<?>) {
             List<?> list = ((List<?>) t);
+            Value dense = ofNumbers(list);
+            if (dense != null)
+                return dense;
             return new Value(list.stream()
                     .map(Value::of)
                     .toArray(Value[]::new), false);
@@ -96,6 +125,144 @@ public class Value implements Comparable<Value> {
         }
     }
 
+    // a map already made of Values, wrapped as it is
+    static Value ofFields(Map<String, Value> fields) {
+        return new Value(fields);
+    }
+
+    // a vector whose info was worked out by the caller, as the JSON reader does while reading the elements
+    static Value ofVector(Value[] vs, boolean homogeneous, Type type) {
+        return ofVector(vs, false, homogeneous, type);
+    }
+
+    static Value ofVector(Value[] vs, boolean multiple, boolean homogeneous, Type type) {
+        return new Value(vs, multiple, homogeneous, type);
+    }
+
+    static Value ofDense(long[] ls, boolean multiple) {
+        Value v = new Value(ls);
+        v.multiple = multiple;
+        return v;
+    }
+
+    static Value ofDense(double[] ds, boolean multiple) {
+        Value v = new Value(ds);
+        v.multiple = multiple;
+        return v;
+    }
+
+    // a compact binary form, read back by fromBinary
+    public byte[] toBinary() {
+        return new ValueCodec.Encoder().encode(this);
+    }
+
+    // reads a value written by toBinary from the position of the buffer, which is left behind the value
+    public static Value fromBinary(ByteBuffer buffer) {
+        return new ValueCodec.Decoder(buffer).decode();
+    }
+
+    // a parsed JSON document (json-simple maps, lists and scalars), nested maps and arrays convert only when reached
+    static Value ofJson(Object o) {
+        if (o instanceof Map<?, ?>)
+            return new Value(new JsonMap((Map<?, ?>) o));
+        else if (o instanceof List<?>)
+            return new Value((List<?>) o);
+        else
+            return of(o);
+    }
+
+    // the entries of a parsed JSON object, converted to values one by one as they are looked up
+    private static class JsonMap extends AbstractMap<String, Value> {
+        private final Map<?, ?> raw;
+        private final Map<String, Value> converted = new ConcurrentHashMap<>();
+
+        JsonMap(Map<?, ?> raw) {
+            this.raw = raw;
+        }
+
+        @Override
+        public Value get(Object key) {
+            Value v = converted.get(key);
+            if (v == null && raw.containsKey(key)) {
+                v = ofJson(raw.get(key));
+                Value prior = converted.putIfAbsent((String) key, v);
+                v = prior != null ? prior : v;
+            }
+            return v;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return raw.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return raw.size();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> keySet() {
+            return Collections.unmodifiableSet((Set<String>) raw.keySet());
+        }
+
+        @Override
+        public Set<Map.Entry<String, Value>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Value>>() {
+                @Override
+                public Iterator<Map.Entry<String, Value>> iterator() {
+                    Iterator<String> keys = keySet().iterator();
+                    return new Iterator<Map.Entry<String, Value>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, Value> next() {
+                            String key = keys.next();
+                            return new AbstractMap.SimpleImmutableEntry<>(key, get(key));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return raw.size();
+                }
+            };
+        }
+    }
+
+    // a list of numbers of the same kind as JSON arrays give, straight to the unboxed vector
+    private static Value ofNumbers(List<?> list) {
+        if (list.isEmpty())
+            return null;
+
+        Object first = list.get(0);
+        if (first instanceof Long || first instanceof Integer) {
+            long[] ls = new long[list.size()];
+            int i = 0;
+            for (Object o : list) {
+                if (!(o instanceof Long || o instanceof Integer))
+                    return null;
+                ls[i++] = ((Number) o).longValue();
+            }
+            return new Value(ls);
+        } else if (first instanceof Double || first instanceof Float) {
+            double[] ds = new double[list.size()];
+            int i = 0;
+            for (Object o : list) {
+                if (!(o instanceof Double || o instanceof Float))
+                    return null;
+                ds[i++] = ((Number) o).doubleValue();
+            }
+            return new Value(ds);
+        }
+        return null;
+    }
+
     public static Value of(DateWithFmt dwf) {
         return new Value(dwf);
     }
@@ -136,7 +303,37 @@ public class Value implements Comparable<Value> {
         this.type = Type.VectorT;
         this.objectV = list;
         this.multiple = multiple;
-        fillListInfo();
+        fillListInfo(list);
+    }
+
+    private Value(Value[] list, boolean multiple, boolean homogeneous, Type type) {
+        this.type = Type.VectorT;
+        this.objectV = list;
+        this.multiple = multiple;
+        this.isHomogeneousVector = homogeneous;
+        this.homogeneousType = type;
+    }
+
+    private Value(long[] longs) {
+        this.type = Type.VectorT;
+        this.objectV = null;
+        this.longs = longs;
+        this.isHomogeneousVector = true;
+        this.homogeneousType = longs.length > 0 ? Type.IntegerT : null;
+    }
+
+    private Value(double[] doubles) {
+        this.type = Type.VectorT;
+        this.objectV = null;
+        this.doubles = doubles;
+        this.isHomogeneousVector = true;
+        this.homogeneousType = doubles.length > 0 ? Type.DecimalT : null;
+    }
+
+    private Value(List<?> json) {
+        this.type = Type.VectorT;
+        this.objectV = null;
+        this.json = json;
     }
 
     private Value(Value[] list) {
@@ -167,8 +364,7 @@ public class Value implements Comparable<Value> {
     public Object asRawObject() {
         switch (type) {
             case VectorT:
-                Value[] vs = (Value[]) objectV;
-                return Arrays.stream(vs).map(Value::asRawObject).toArray();
+                return Arrays.stream(vector()).map(Value::asRawObject).toArray();
             case MapT:
                 Map<String, Object> m = new HashMap<>();
                 for (Object o: ((Map<?, ?>) objectV).keySet()) {
@@ -185,6 +381,11 @@ public class Value implements Comparable<Value> {
         }
     }
 
+    // the values of an enclosed value as they are
+    Value[] enclosed() {
+        return (Value[]) objectV;
+    }
+
     private Value unwrap() {
         return type == Type.EnclosedT && ((Value[]) objectV).length == 1?
                 ((Value[]) objectV)[0].unwrap() : this;
@@ -234,20 +435,83 @@ public class Value implements Comparable<Value> {
     public Value[] asVector() {
         Value v = unwrap();
         checkType(v, Type.VectorT);
-        return (Value[]) v.objectV;
+        return v.vector();
+    }
+
+    // the elements of an unboxed vector of integers, null for any other value
+    long[] asLongs() {
+        return unwrap().materialize().longs;
+    }
+
+    // the elements of an unboxed vector of decimals, null for any other value
+    double[] asDoubles() {
+        return unwrap().materialize().doubles;
+    }
+
+    // converts a JSON array on first access, to the unboxed vector when it is made of numbers of one kind
+    private Value materialize() {
+        if (json != null) {
+            synchronized (this) {
+                List<?> list = json;
+                if (list != null) {
+                    Value numbers = ofNumbers(list);
+                    if (numbers != null) {
+                        longs = numbers.longs;
+                        doubles = numbers.doubles;
+                        isHomogeneousVector = true;
+                        homogeneousType = numbers.homogeneousType;
+                    } else {
+                        Value[] vs = list.stream().map(Value::ofJson).toArray(Value[]::new);
+                        fillListInfo(vs);
+                        boxed = vs;
+                    }
+                    json = null;
+                }
+            }
+        }
+        return this;
+    }
+
+    private Value[] vector() {
+        if (objectV != null)
+            return (Value[]) objectV;
+        materialize();
+        Value[] vs = boxed;
+        if (vs == null) {
+            synchronized (this) {
+                vs = boxed;
+                if (vs == null) {
+                    if (longs != null) {
+                        vs = new Value[longs.length];
+                        for (int i = 0; i < vs.length; i++) {
+                            vs[i] = new Value(longs[i]);
+                        }
+                    } else {
+                        vs = new Value[doubles.length];
+                        for (int i = 0; i < vs.length; i++) {
+                            vs[i] = new Value(doubles[i]);
+                        }
+                    }
+                    boxed = vs;
+                }
+            }
+        }
+        return vs;
     }
 
+    // a read-only view of the entries, nothing is copied
+    @SuppressWarnings("unchecked")
     public Map<String, Value> asMap() {
         Value v = unwrap();
         checkType(v, Type.MapT);
+        return Collections.unmodifiableMap((Map<String, Value>) v.objectV);
+    }
 
-        Map<String, Value> m = new HashMap<>();
-        Map<?, ?> o = (Map<?, ?>) v.objectV;
-        assert (o != null);
-        for (Object x: o.keySet()) {
-            m.put((String) x, (Value) o.get(x));
-        }
-        return m;
+    public Value getField(String name) {
+        Value v = unwrap();
+        checkType(v, Type.MapT);
+        Value field = (Value) ((Map<?, ?>) v.objectV).get(name);
+        return field == null ? Value.NULL : field;
     }
 
     public LocalDateTime asDateTime() {
@@ -315,74 +579,177 @@ public class Value implements Comparable<Value> {
         return unwrap().type == Type.DataTimeT;
     }
 
-    public Boolean isHomogeneousVector() { return unwrap().isHomogeneousVector; }
+    public Boolean isHomogeneousVector() { return unwrap().materialize().isHomogeneousVector; }
 
-    public Type getHomogeneousType() { return unwrap().homogeneousType; }
+    public Type getHomogeneousType() { return unwrap().materialize().homogeneousType; }
 
     @Override
     public String toString() {
-        Value v = unwrap();
+        StringBuilder buffer = new StringBuilder();
+        try {
+            writeJson(JsonWriter.of(buffer));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toString();
+    }
+
+    // the same text as toString, written as it goes without building the strings of the elements
+    public void writeJson(Appendable out) throws IOException {
+        writeJson(JsonWriter.of(out));
+    }
+
+    // the same text as toString in UTF-8, the stream is flushed but not closed
+    public void writeJson(OutputStream out) throws IOException {
+        JsonWriter writer = JsonWriter.of(out);
+        writeJson(writer);
+        writer.flush();
+    }
+
+    private void writeJson(JsonWriter out) throws IOException {
+        Value v = unwrap().materialize();
         if (isVector()) {
-            assert (v.objectV != null);
-            StringBuilder buffer = new StringBuilder();
             if (!isMultiple()) {
-                buffer.append('[');
+                out.append('[');
             }
 
-            boolean first = true;
-            for (Object d: (Object[]) v.objectV ) {
-                if (first) {
-                    first = false;
-                } else {
-                    buffer.append(", ");
+            if (v.longs != null) {
+                for (int i = 0; i < v.longs.length; i++) {
+                    if (i > 0)
+                        out.append(", ");
+                    out.writeLong(v.longs[i]);
+                }
+            } else if (v.doubles != null) {
+                for (int i = 0; i < v.doubles.length; i++) {
+                    if (i > 0)
+                        out.append(", ");
+                    out.writeDouble(v.doubles[i]);
+                }
+            } else {
+                boolean first = true;
+                for (Value d : v.vector()) {
+                    if (first) {
+                        first = false;
+                    } else {
+                        out.append(", ");
+                    }
+
+                    d.writeJson(out);
                 }
-
-                buffer.append(d.toString());
             }
 
             if (!isMultiple()) {
-                buffer.append(']');
+                out.append(']');
             }
-            return buffer.toString();
         } else if (isMap()) {
             assert (v.objectV != null);
-            StringBuilder buffer = new StringBuilder();
-            buffer.append('{');
+            out.append('{');
             boolean first = true;
-            Map<?, ?> m = (Map<?, ?>)v.objectV;
-            for (Object k: m.keySet()) {
+            for (Map.Entry<?, ?> e: ((Map<?, ?>) v.objectV).entrySet()) {
                 if (first) {
                     first = false;
                 } else {
-                    buffer.append(", ");
+                    out.append(", ");
                 }
 
-                buffer.append(JSONValue.toJSONString(k));
-                buffer.append(": ");
-                buffer.append(m.get(k).toString());
+                out.writeString((String) e.getKey());
+                out.append(": ");
+                ((Value) e.getValue()).writeJson(out);
             }
-            buffer.append('}');
-            return buffer.toString();
+            out.append('}');
         } else if (isDateTime()) {
-            String rep = ((LocalDateTime) v.objectV).format(DateTimeFormatter.ofPattern(getFmt()));
-            return "\"" + rep + "\"";
+            out.append('"');
+            formatter(getFmt()).formatTo((LocalDateTime) v.objectV, out);
+            out.append('"');
         } else if (isBoolean()) {
-            return (Boolean) v.objectV? "true" : "false";
+            out.append((Boolean) v.objectV? "true" : "false");
         } else if (isString()) {
-            return JSONValue.toJSONString(v.objectV);
+            out.writeString((String) v.objectV);
         } else if (v.objectV == null) {
-            return "null";
+            out.append("null");
+        } else if (v.objectV instanceof Long) {
+            out.writeLong((Long) v.objectV);
+        } else if (v.objectV instanceof Double) {
+            out.writeDouble((Double) v.objectV);
         } else {
-            return v.objectV.toString();
+            out.append(v.objectV.toString());
+        }
+    }
+
+    private static final int MAX_FORMATTERS = 256;
+    private static final Map<String, DateTimeFormatter> formatters = new ConcurrentHashMap<>();
+
+    // patterns come from expressions, past the limit a formatter is made for each use
+    private static DateTimeFormatter formatter(String fmt) {
+        DateTimeFormatter formatter = formatters.get(fmt);
+        if (formatter == null) {
+            formatter = DateTimeFormatter.ofPattern(fmt);
+            if (formatters.size() < MAX_FORMATTERS)
+                formatters.putIfAbsent(fmt, formatter);
         }
+        return formatter;
     }
 
     public Value sort(Comparator<Value> func) {
+        Value v = unwrap().materialize();
+        if (func == null && v.type == Type.VectorT && (v.longs != null || v.doubles != null)) {
+            // the natural order of the primitives is the same as Value.compareTo
+            if (v.longs != null)
+                Arrays.sort(v.longs);
+            else
+                Arrays.sort(v.doubles);
+            Value[] elements = v.objectV != null ? (Value[]) v.objectV : v.boxed;
+            if (elements != null)
+                Arrays.sort(elements, Value::compareTo);
+            return this;
+        }
+
         Value[] vs = this.asVector();
         Arrays.sort(vs, func == null? Value::compareTo : func);
+        v.fillDense(vs);
         return this;
     }
 
+    // sorts a copy, this value is left as it is
+    Value sorted(Comparator<Value> func) {
+        Value v = unwrap().materialize();
+        checkType(v, Type.VectorT);
+        Value copy;
+        if (v.longs != null)
+            copy = ofDense(v.longs.clone(), v.multiple);
+        else if (v.doubles != null)
+            copy = ofDense(v.doubles.clone(), v.multiple);
+        else
+            copy = ofVector(v.vector().clone(), v.multiple, v.isHomogeneousVector, v.homogeneousType);
+        return copy.sort(func);
+    }
+
+    // whether this value, or the one it encloses, may be read by other threads at the same time
+    boolean isSettled() {
+        return settled || unwrap().settled;
+    }
+
+    // converts and boxes all that is reachable now, a value read by several threads after is never written by them
+    void settle() {
+        settled = true;
+        switch (type) {
+            case VectorT:
+                for (Value e : vector())
+                    e.settle();
+                break;
+            case EnclosedT:
+                for (Value e : (Value[]) objectV)
+                    e.settle();
+                break;
+            case MapT:
+                for (Object e : ((Map<?, ?>) objectV).values())
+                    ((Value) e).settle();
+                break;
+            default:
+                break;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o)
@@ -397,9 +764,26 @@ public class Value implements Comparable<Value> {
 
         if (type == Type.VectorT || type == Type.MapT) {
             if (type == Type.VectorT) {
-                Value[] ov = (Value[]) value.objectV;
+                materialize();
+                value.materialize();
+                if (longs != null && value.longs != null) {
+                    for (int i = 0; i < value.longs.length; ++i) {
+                        if (value.longs[i] != longs[i])
+                            return false;
+                    }
+                    return true;
+                } else if (doubles != null && value.doubles != null) {
+                    for (int i = 0; i < value.doubles.length; ++i) {
+                        if (Double.doubleToLongBits(value.doubles[i]) != Double.doubleToLongBits(doubles[i]))
+                            return false;
+                    }
+                    return true;
+                }
+
+                Value[] ov = value.vector();
+                Value[] tv = vector();
                 for (int i = 0; i < ov.length; ++i) {
-                    if (!ov[i].equals(((Value[])objectV)[i]))
+                    if (!ov[i].equals(tv[i]))
                         return false;
                 }
             } else {
@@ -418,7 +802,7 @@ public class Value implements Comparable<Value> {
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, objectV);
+        return Objects.hash(type, type == Type.VectorT ? vector() : objectV);
     }
 
     @Override
@@ -450,13 +834,13 @@ public class Value implements Comparable<Value> {
         }
     }
 
-    private boolean typeEquivalent(Type a, Type b) {
+    static boolean typeEquivalent(Type a, Type b) {
         return a == Type.NullT || b == Type.NullT || a == b
                 || (a == Type.IntegerT && b == Type.DecimalT)
                 || (a == Type.DecimalT && b == Type.IntegerT);
     }
 
-    private Type compatibleType(Type a, Type b) {
+    static Type compatibleType(Type a, Type b) {
         if ((a == Type.IntegerT && b == Type.DecimalT)
                 || (a == Type.DecimalT && b == Type.IntegerT))
             return Type.DecimalT;
@@ -464,11 +848,10 @@ public class Value implements Comparable<Value> {
             return a;
     }
 
-    private void fillListInfo() {
+    private void fillListInfo(Value[] vs) {
         boolean homogeneous = true;
         Type type = null;
-        for (Object o: (Object[]) objectV) {
-            Value v = (Value) o;
+        for (Value v: vs) {
             assert(v != null);
             if (type == null)
                 type = v.type;
@@ -482,5 +865,29 @@ public class Value implements Comparable<Value> {
 
         this.isHomogeneousVector = homogeneous;
         this.homogeneousType = homogeneous? type : null;
+        fillDense(vs);
+    }
+
+    // keeps the unboxed copy when all elements are integers or all are decimals, no nulls or mixing
+    private void fillDense(Value[] vs) {
+        longs = null;
+        doubles = null;
+        if (homogeneousType == Type.IntegerT) {
+            long[] ls = new long[vs.length];
+            for (int i = 0; i < vs.length; i++) {
+                if (vs[i].type != Type.IntegerT)
+                    return;
+                ls[i] = (Long) vs[i].objectV;
+            }
+            longs = ls;
+        } else if (homogeneousType == Type.DecimalT) {
+            double[] ds = new double[vs.length];
+            for (int i = 0; i < vs.length; i++) {
+                if (vs[i].type != Type.DecimalT)
+                    return;
+                ds[i] = (Double) vs[i].objectV;
+            }
+            doubles = ds;
+        }
     }
 }
@@ -0,0 +1,340 @@
+package org.my;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// the binary form of a Value: a version byte then the tree, integers as varints, map keys and date formats interned
+class ValueCodec {
+    static final byte VERSION = 1;
+
+    private static final byte NULL = 0, TRUE = 1, FALSE = 2, INTEGER = 3, DECIMAL = 4, STRING = 5,
+            LONGS = 6, DOUBLES = 7, VECTOR = 8, ENCLOSED = 9, MAP = 10, DATETIME = 11, TREE = 14;
+    private static final int MULTIPLE = 1, HOMOGENEOUS = 2;
+
+    static class Encoder {
+        private byte[] bytes = new byte[256];
+        private int length;
+        private final Map<String, Integer> interned = new HashMap<>();
+
+        byte[] encode(Value value) {
+            writeByte(VERSION);
+            write(value);
+            return toByteArray();
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        void write(Value v) {
+            switch (v.getType()) {
+                case NullT:
+                    writeByte(NULL);
+                    break;
+                case BooleanT:
+                    writeByte(v.asBoolean() ? TRUE : FALSE);
+                    break;
+                case IntegerT:
+                    writeByte(INTEGER);
+                    writeSigned(v.asLong());
+                    break;
+                case DecimalT:
+                    writeByte(DECIMAL);
+                    writeDouble(v.asDouble());
+                    break;
+                case StringT:
+                    writeByte(STRING);
+                    writeString(v.asString());
+                    break;
+                case VectorT: {
+                    int flags = v.isMultiple() ? MULTIPLE : 0;
+                    long[] ls = v.asLongs();
+                    double[] ds = v.asDoubles();
+                    if (ls != null) {
+                        writeByte(LONGS);
+                        writeByte(flags);
+                        writeVarint(ls.length);
+                        for (long l : ls)
+                            writeSigned(l);
+                    } else if (ds != null) {
+                        writeByte(DOUBLES);
+                        writeByte(flags);
+                        writeVarint(ds.length);
+                        for (double d : ds)
+                            writeDouble(d);
+                    } else {
+                        Value[] vs = v.asVector();
+                        Value.Type type = v.getHomogeneousType();
+                        writeByte(VECTOR);
+                        writeByte(flags | (v.isHomogeneousVector() ? HOMOGENEOUS : 0));
+                        writeByte(type == null ? 0 : type.ordinal() + 1);
+                        writeVarint(vs.length);
+                        for (Value e : vs)
+                            write(e);
+                    }
+                    break;
+                }
+                case EnclosedT: {
+                    Value[] vs = v.enclosed();
+                    writeByte(ENCLOSED);
+                    writeVarint(vs.length);
+                    for (Value e : vs)
+                        write(e);
+                    break;
+                }
+                case MapT: {
+                    Map<String, Value> map = v.asMap();
+                    writeByte(MAP);
+                    writeVarint(map.size());
+                    for (Map.Entry<String, Value> e : map.entrySet()) {
+                        writeInterned(e.getKey());
+                        write(e.getValue());
+                    }
+                    break;
+                }
+                case DataTimeT: {
+                    LocalDateTime dt = v.asDateTime();
+                    writeByte(DATETIME);
+                    writeSigned(dt.toEpochSecond(ZoneOffset.UTC));
+                    writeVarint(dt.getNano());
+                    writeInterned(v.getFmt());
+                    break;
+                }
+                case ExpressionT:
+                    // the parsed tree as in an artifact, its operators are places in the table the fingerprint names
+                    writeByte(TREE);
+                    writeVarint(JExpParser.NodeCodec.OPERATORS);
+                    JExpParser.NodeCodec.writeExpression(this, v.asExpression());
+                    break;
+                default:
+                    throw new Exp4jException.EvaluationException(String.format("'%s' can't be encoded", v.getType()));
+            }
+        }
+
+        // 0 for null, 1 then the string the first time, the index + 2 of an earlier one after
+        void writeInterned(String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            Integer index = interned.get(s);
+            if (index != null) {
+                writeVarint(index + 2L);
+            } else {
+                interned.put(s, interned.size());
+                writeVarint(1);
+                writeString(s);
+            }
+        }
+
+        void writeString(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        void writeDouble(double d) {
+            long bits = Double.doubleToRawLongBits(d);
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                bytes[length++] = (byte) (bits >>> shift);
+        }
+
+        void writeSigned(long n) {
+            writeVarint((n << 1) ^ (n >> 63));
+        }
+
+        void writeVarint(long n) {
+            ensure(10);
+            while ((n & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            bytes[length++] = (byte) n;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        private void ensure(int n) {
+            if (length + n > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+        }
+    }
+
+    // reads from the position of the buffer and leaves it behind the value, strings are decoded from the buffer itself
+    static class Decoder {
+        private final ByteBuffer buffer;
+        private final List<String> interned = new ArrayList<>();
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        Value decode() {
+            try {
+                byte version = buffer.get();
+                if (version != VERSION)
+                    throw new Exp4jException.ParseException(String.format("unknown binary version %d", version));
+                return read();
+            } catch (BufferUnderflowException e) {
+                throw new Exp4jException.ParseException("unexpected end of binary value");
+            } catch (ClassCastException e) {
+                throw new Exp4jException.ParseException("corrupt binary value: " + e.getMessage());
+            }
+        }
+
+        Value read() {
+            int pos = buffer.position();
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return Value.NULL;
+                case TRUE:
+                    return Value.of(true);
+                case FALSE:
+                    return Value.of(false);
+                case INTEGER:
+                    return Value.of(readSigned());
+                case DECIMAL:
+                    return Value.of(readDouble());
+                case STRING:
+                    return Value.of(readString());
+                case LONGS: {
+                    boolean multiple = (buffer.get() & MULTIPLE) != 0;
+                    long[] ls = new long[readLength()];
+                    for (int i = 0; i < ls.length; i++)
+                        ls[i] = readSigned();
+                    return Value.ofDense(ls, multiple);
+                }
+                case DOUBLES: {
+                    boolean multiple = (buffer.get() & MULTIPLE) != 0;
+                    double[] ds = new double[readLength()];
+                    if (buffer.remaining() < ds.length * 8)
+                        throw new BufferUnderflowException();
+                    // a duplicate is big endian whatever the order of the buffer, as the doubles are written
+                    buffer.duplicate().asDoubleBuffer().get(ds);
+                    buffer.position(buffer.position() + ds.length * 8);
+                    return Value.ofDense(ds, multiple);
+                }
+                case VECTOR: {
+                    int flags = buffer.get();
+                    int type = buffer.get();
+                    if (type < 0 || type > Value.Type.values().length)
+                        throw new Exp4jException.ParseException(String.valueOf(type), pos);
+                    Value[] vs = new Value[readLength()];
+                    for (int i = 0; i < vs.length; i++)
+                        vs[i] = read();
+                    return Value.ofVector(vs, (flags & MULTIPLE) != 0, (flags & HOMOGENEOUS) != 0,
+                            type == 0 ? null : Value.Type.values()[type - 1]);
+                }
+                case ENCLOSED: {
+                    Value[] vs = new Value[readLength()];
+                    for (int i = 0; i < vs.length; i++)
+                        vs[i] = read();
+                    return Value.enclosed(vs);
+                }
+                case MAP: {
+                    int size = readLength();
+                    Map<String, Value> map = new HashMap<>(Math.max(4, size * 4 / 3 + 1));
+                    for (int i = 0; i < size; i++) {
+                        String key = readInterned();
+                        map.put(key, read());
+                    }
+                    return Value.ofFields(map);
+                }
+                case DATETIME: {
+                    long seconds = readSigned();
+                    int nanos = (int) readVarint();
+                    LocalDateTime dt = LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+                    return Value.of(new Value.DateWithFmt(dt, readInterned()));
+                }
+                case TREE:
+                    if (readVarint() != JExpParser.NodeCodec.OPERATORS)
+                        throw new Exp4jException.ParseException("the expression was written with other operators", pos);
+                    return Value.of(JExpParser.NodeCodec.readExpression(this));
+                default:
+                    throw new Exp4jException.ParseException(String.valueOf(tag), pos);
+            }
+        }
+
+        String readInterned() {
+            int pos = buffer.position();
+            long n = readVarint();
+            if (n == 0)
+                return null;
+            if (n == 1) {
+                String s = readString();
+                interned.add(s);
+                return s;
+            }
+            if (n - 2 >= interned.size())
+                throw new Exp4jException.ParseException(String.valueOf(n), pos);
+            return interned.get((int) (n - 2));
+        }
+
+        String readString() {
+            int n = readLength();
+            if (buffer.remaining() < n)
+                throw new BufferUnderflowException();
+            String s;
+            if (buffer.hasArray()) {
+                s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), n, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + n);
+            } else {
+                byte[] utf8 = new byte[n];
+                buffer.get(utf8);
+                s = new String(utf8, StandardCharsets.UTF_8);
+            }
+            return s;
+        }
+
+        // a count of elements or bytes, each takes at least a byte so it can't be more than what remains
+        int readLength() {
+            int pos = buffer.position();
+            long n = readVarint();
+            if (n < 0 || n > buffer.remaining())
+                throw new Exp4jException.ParseException(String.valueOf(n), pos);
+            return (int) n;
+        }
+
+        int readByte() {
+            return buffer.get();
+        }
+
+        double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++)
+                bits = (bits << 8) | (buffer.get() & 0xFF);
+            return Double.longBitsToDouble(bits);
+        }
+
+        long readSigned() {
+            long n = readVarint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        long readVarint() {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                n |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return n;
+            }
+            throw new Exp4jException.ParseException("varint too long", buffer.position());
+        }
+    }
+}
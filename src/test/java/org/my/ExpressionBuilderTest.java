@@ -4,9 +4,19 @@ import static org.my.Exp4jException.*;
 
 import org.junit.Test;
 
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import static java.lang.Math.*;
 import static org.junit.Assert.*;
@@ -1532,4 +1542,464 @@ public class ExpressionBuilderTest {
         assertEquals(0, e.evaluate(context).asLong());
     }
 
+    @Test
+    public void testNumberLiterals() {
+        assertEquals(123456789012345678L, Entry.buildExpressionBuilder("123456789012345678").build().evaluate(context).asRawObject());
+        assertEquals(1234567890123456789L, Entry.buildExpressionBuilder("1234567890123456789").build().evaluate(context).asRawObject());
+        assertEquals(50d, Entry.buildExpressionBuilder("0.5e+2").build().evaluate(context).asRawObject());
+        assertEquals(0.015d, Entry.buildExpressionBuilder("1.5E-2").build().evaluate(context).asRawObject());
+        assertEquals(2L, Entry.buildExpressionBuilder("2.abs()").build().evaluate(context).asRawObject());
+        assertEquals(3L, Entry.buildExpressionBuilder("[1,2,3].length()").build().evaluate(context).asRawObject());
+    }
+
+    @Test(expected = ParseException.class)
+    public void testIncompleteExponent() {
+        Entry.buildExpressionBuilder("1e+").build().evaluate(context);
+    }
+
+    @Test
+    public void testBuildIncrementallyFromReader() {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            script.append("# rule ").append(i).append("\nx").append(i).append(" = \"rule ").append(i).append("\"\n");
+        }
+        script.append("x4999");
+
+        Iterator<IExpression> exps = Entry.buildExpressionBuilder(new StringReader(script.toString())).buildIncrementally();
+        IExpressionContext context = Entry.buildContext();
+        Value last = null;
+        int n = 0;
+        while (exps.hasNext()) {
+            last = exps.next().evaluate(context);
+            n++;
+        }
+        assertEquals(5001, n);
+        assertEquals("rule 4999", last.asString());
+        assertFalse(exps.hasNext());
+    }
+
+    @Test
+    public void testBuildAllFromReader() {
+        List<IExpression> exps = Entry.buildExpressionBuilder(new StringReader("x=3;x+1\n`x is $x`")).buildAll();
+        assertEquals(3, exps.size());
+        IExpressionContext context = Entry.buildContext();
+        assertEquals(3, exps.get(0).evaluate(context).asLong());
+        assertEquals(4, exps.get(1).evaluate(context).asLong());
+        assertEquals("x is 3", exps.get(2).evaluate(context).asString());
+    }
+
+    @Test
+    public void testReaderErrorPosition() {
+        StringBuilder script = new StringBuilder();
+        while (script.length() < 20000) {
+            script.append("1+2\n");
+        }
+        int pos = script.length() + 2;
+        script.append("2+?");
+        try {
+            Entry.buildExpressionBuilder(new StringReader(script.toString())).buildAll();
+            fail();
+        } catch (ParseException e) {
+            assertEquals(String.format("unexpected '?' at pos %d", pos), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReaderLongTokens() {
+        // tokens over half the buffer, and ones straddling its end, come out whole
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            char[] text = new char[1000 + i * 2000];
+            Arrays.fill(text, (char) ('a' + i));
+            script.append("s").append(i).append(" = \"").append(text).append("\"\n");
+        }
+        List<IExpression> exps = Entry.buildExpressionBuilder(new StringReader(script.toString())).buildAll();
+        List<IExpression> expected = Entry.buildExpressionBuilder(script.toString()).buildAll();
+        assertEquals(expected.size(), exps.size());
+        for (int i = 0; i < exps.size(); i++)
+            assertEquals(expected.get(i).evaluate(), exps.get(i).evaluate());
+    }
+
+    @Test
+    public void testBuildIncrementallyDefault() {
+        // a builder of its own gets the statements of buildAll
+        IExpressionBuilder builder = new IExpressionBuilder() {
+            @Override
+            public IExpression build() {
+                return buildAll().get(0);
+            }
+
+            @Override
+            public List<IExpression> buildAll() {
+                return Entry.buildExpressionBuilder("1; 2").buildAll();
+            }
+        };
+        Iterator<IExpression> exps = builder.buildIncrementally();
+        assertEquals(Value.of(1), exps.next().evaluate());
+        assertEquals(Value.of(2), exps.next().evaluate());
+        assertFalse(exps.hasNext());
+    }
+
+    private static JExpParser.Node nodeOf(IExpression e) {
+        return ((JExpParser.SimpleExpression) e).node;
+    }
+
+    @Test
+    public void testExpressionScriptEdit() {
+        IExpressionScript script = Entry.buildExpressionScript("x = 1;y = 2\nz = x + y\nz * 10");
+        List<IExpression> before = script.getExpressions();
+        assertEquals(4, before.size());
+
+        // change 'y = 2' to 'y = 42'
+        IExpressionScript edited = script.edit(10, 1, "42");
+        assertEquals("x = 1;y = 42\nz = x + y\nz * 10", edited.getScript());
+        List<IExpression> after = edited.getExpressions();
+        assertEquals(4, after.size());
+        assertSame(nodeOf(before.get(0)), nodeOf(after.get(0)));
+        assertNotSame(nodeOf(before.get(1)), nodeOf(after.get(1)));
+        assertSame(nodeOf(before.get(2)), nodeOf(after.get(2)));
+        assertSame(nodeOf(before.get(3)), nodeOf(after.get(3)));
+        assertSame(before.get(3), after.get(3));
+
+        IExpressionContext context = Entry.buildContext();
+        Value r = null;
+        for (IExpression e : after) {
+            r = e.evaluate(context);
+        }
+        assertEquals(430, r.asLong());
+
+        // the previous result is left untouched
+        assertEquals("x = 1;y = 2\nz = x + y\nz * 10", script.getScript());
+    }
+
+    @Test
+    public void testExpressionScriptEditSeparators() {
+        IExpressionScript script = Entry.buildExpressionScript("1;2;3");
+
+        // removing a separator merges two statements
+        IExpressionScript merged = script.edit(3, 1, "");
+        assertEquals("1;23", merged.getScript());
+        assertEquals(2, merged.getExpressions().size());
+        assertEquals(23, merged.getExpressions().get(1).evaluate().asLong());
+        assertSame(nodeOf(script.getExpressions().get(0)), nodeOf(merged.getExpressions().get(0)));
+
+        // inserting a separator splits one
+        IExpressionScript split = merged.edit(3, 0, "\n");
+        assertEquals("1;2\n3", split.getScript());
+        assertEquals(3, split.getExpressions().size());
+        assertEquals(3, split.getExpressions().get(2).evaluate().asLong());
+
+        // appending at the end
+        IExpressionScript appended = split.edit(5, 0, "+4");
+        assertEquals(7, appended.getExpressions().get(2).evaluate().asLong());
+        assertSame(nodeOf(split.getExpressions().get(1)), nodeOf(appended.getExpressions().get(1)));
+    }
+
+    @Test
+    public void testExpressionScriptRandomEdits() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            sb.append("x").append(i).append(" = ").append(i).append(i % 3 == 0 ? "\n" : ";");
+        IExpressionScript script = Entry.buildExpressionScript(sb.toString());
+        String[] inserts = {"1", "+2", ";", "\n", "", "7;8", " "};
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            String text = script.getScript();
+            int offset = random.nextInt(text.length() + 1);
+            int length = random.nextInt(Math.min(3, text.length() - offset) + 1);
+            String replacement = inserts[random.nextInt(inserts.length)];
+            String edited = text.substring(0, offset) + replacement + text.substring(offset + length);
+            IExpressionScript fresh;
+            try {
+                fresh = Entry.buildExpressionScript(edited);
+            } catch (ParseException e) {
+                continue;
+            }
+            script = script.edit(offset, length, replacement);
+            assertEquals(edited, script.getScript());
+            List<IExpression> expected = fresh.getExpressions();
+            List<IExpression> actual = script.getExpressions();
+            assertEquals(expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++)
+                assertEquals(((JExpParser.SimpleExpression) expected.get(j)).dump(), ((JExpParser.SimpleExpression) actual.get(j)).dump());
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testExpressionScriptBadEdit() {
+        Entry.buildExpressionScript("1;2;3").edit(2, 1, "(2");
+    }
+
+    @Test
+    public void testConstantFolding() {
+        assertEquals("(6+x)", ((JExpParser.SimpleExpression) Entry.buildExpressionBuilder("2*3+x", true).build()).dump());
+        assertEquals("(1024.0*x)", ((JExpParser.SimpleExpression) Entry.buildExpressionBuilder("pow(2,10)*x", true).build()).dump());
+        assertEquals("(x=\"ab\")", ((JExpParser.SimpleExpression) Entry.buildExpressionBuilder("x = \"a\" + \"b\"", true).build()).dump());
+        assertEquals("@{(_*4)}", ((JExpParser.SimpleExpression) Entry.buildExpressionBuilder("@{_*(2+2)}", true).build()).dump());
+        assertEquals("(rand()*2)", ((JExpParser.SimpleExpression) Entry.buildExpressionBuilder("rand()*2", true).build()).dump());
+        assertEquals("[2,x]", ((JExpParser.SimpleExpression) Entry.buildExpressionBuilder("[1+1,x]", true).build()).dump());
+
+        String[] expressions = {"2*pi/(n+1)", "pow(2,10)*n", "-3!+n", "[1,2,3]*2", "sort([3,1,2])", "`n=${n}`+toString(1.5)",
+                "n > 2 && !false", "toDate(\"2020-01-02\") + \"1d\"", "choice(true, 1, 2) + n", "2.abs() + n"};
+        for (String exp : expressions) {
+            IExpressionContext context = Entry.buildContext();
+            context.updateVariable("n", 3);
+            assertEquals(exp, Entry.buildExpressionBuilder(exp).build().evaluate(context),
+                    Entry.buildExpressionBuilder(exp, true).build().evaluate(context));
+        }
+    }
+
+    @Test(expected = EvaluationException.class)
+    public void testConstantFoldingKeepsErrors() {
+        IExpression e = Entry.buildExpressionBuilder("toDate(\"bad\")", true).build();
+        e.evaluate(context);
+    }
+
+    private static final String[] NUMERIC_EXPRESSIONS = {"log(x) - y * (sqrt(x^cos(y)))", "x + y * 2 - -x", "x % y + x / y", "2^x + pow(y, 2)",
+            "x > y", "x >= 1 && !(y < 1) || x == y", "x != y", "x <=> y", "abs(x) + abs(-y)", "+x", "b && x > 0",
+            "b == true", "x == 3", "cot(x) + csc(y) + sec(x) + csch(y) + sech(x) + coth(y) + log2(x) + logb(x, y)",
+            "floor(x / 2) + ceil(y) + toRadian(x) + toDegree(y) + signum(-x) + exp(y) - expm1(x) + log10(y)"};
+    private static final Object[][] NUMERIC_INPUTS = {{3L, 2L, true}, {3.5, 2L, false}, {3L, -2.25, true}, {Double.NaN, 0.0, true},
+            {-0.0, 0.0, false}, {Long.MAX_VALUE, 1L, true}};
+
+    private static void assertSameNumeric(IExpression expected, IExpression actual, String exp) {
+        for (Object[] input : NUMERIC_INPUTS) {
+            IExpressionContext context = Entry.buildContext();
+            context.updateVariable("x", input[0]);
+            context.updateVariable("y", input[1]);
+            context.updateVariable("b", input[2]);
+            Value e = expected.evaluate(context);
+            Value a = actual.evaluate(context);
+            assertEquals(exp, e.getType(), a.getType());
+            assertEquals(exp + " " + Arrays.toString(input), e, a);
+        }
+    }
+
+    @Test
+    public void testNumericSpecialization() {
+        for (String exp : NUMERIC_EXPRESSIONS) {
+            IExpression optimized = Entry.buildExpressionBuilder(exp, true).build();
+            assertTrue(exp, ((JExpParser.SimpleExpression) optimized).node instanceof JExpParser.NumericNode);
+            assertSameNumeric(Entry.buildExpressionBuilder(exp).build(), optimized, exp);
+        }
+
+        // only the numeric parts are specialized, other types fall back to the operators
+        JExpParser.SimpleExpression e = (JExpParser.SimpleExpression) Entry.buildExpressionBuilder("[x * 2 + 1, toString(x)]", true).build();
+        assertTrue(((JExpParser.ListValueNode) e.node).nodes.get(0) instanceof JExpParser.NumericNode);
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("x", 2);
+        assertEquals(Value.of(Arrays.asList(5L, "2")), e.evaluate(context));
+        context.updateVariable("x", Arrays.asList(1, 2));
+        assertEquals("[[3, 5], [\"1\", \"2\"]]", e.evaluate(context).toString());
+        context.updateVariable("x", "a");
+        try {
+            e.evaluate(context);
+            fail();
+        } catch (EvaluationException ignored) {
+        }
+
+        context.updateVariable("x", 1.5);
+        assertEquals(Value.of(Arrays.asList(2.5, 3.5)), Entry.buildExpressionBuilder("map([1, 2], @{_ + x})", true).build().evaluate(context));
+    }
+
+    @Test
+    public void testCompiledExpression() {
+        for (String exp : NUMERIC_EXPRESSIONS) {
+            IExpression compiled = Entry.compileExpression(exp);
+            assertTrue(exp, compiled instanceof JExpCompiler.CompiledExpression);
+            assertSameNumeric(Entry.buildExpressionBuilder(exp).build(), compiled, exp);
+            assertTrue(exp, ((JExpCompiler.CompiledExpression) compiled).specializations() > 0);
+        }
+    }
+
+    @Test
+    public void testNumericTypeErrors() {
+        // a boolean is not a number on either side, whichever the type of the other operand
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("x", 3.5);
+        context.updateVariable("t", true);
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("n", new long[]{1, 2});
+        for (String exp : new String[]{"x + t", "t + x", "x - t", "x * t", "n + x * t"}) {
+            List<IExpression> expressions = Arrays.asList(Entry.buildExpressionBuilder(exp).build(),
+                    Entry.buildExpressionBuilder(exp, true).build(), Entry.compileExpression(exp));
+            for (IExpression e : expressions) {
+                IExpressionContext row = context.makeCopy();
+                row.updateVariable("n", 1);
+                try {
+                    e.evaluate(row);
+                    fail(exp);
+                } catch (EvaluationException ignored) {
+                }
+                try {
+                    e.evaluateBatch(context, columns);
+                    fail(exp);
+                } catch (EvaluationException ignored) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledExpressionFallback() {
+        // not compilable at all
+        assertFalse(Entry.compileExpression("[1, x] * 2") instanceof JExpCompiler.CompiledExpression);
+        assertFalse(Entry.compileExpression("x = 1") instanceof JExpCompiler.CompiledExpression);
+        assertEquals(Value.of(6L), Entry.compileExpression("3!").evaluate());
+
+        // compilable, but not for the types met
+        IExpression e = Entry.compileExpression("x + y");
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("x", "a");
+        context.updateVariable("y", "b");
+        assertEquals(Value.of("ab"), e.evaluate(context));
+        context.updateVariable("x", true);
+        context.updateVariable("y", false);
+        try {
+            e.evaluate(context);
+            fail();
+        } catch (EvaluationException ignored) {
+        }
+        context.updateVariable("x", 1);
+        context.updateVariable("y", 2);
+        assertEquals(Value.of(3L), e.evaluate(context));
+        assertEquals(1, ((JExpCompiler.CompiledExpression) e).specializations());
+        context.updateVariable("y", Arrays.asList(1, 2));
+        assertEquals(Value.of(Arrays.asList(2, 3)), e.evaluate(context));
+    }
+
+    @Test
+    public void testExpressionCache() {
+        ExpressionCache cache = new ExpressionCache(2);
+        int[] parses = {0};
+        Supplier<List<IExpression>> parse = () -> {
+            parses[0]++;
+            return Entry.buildExpressionBuilder("1 + 2").buildAll();
+        };
+        List<IExpression> first = cache.get("a", false, parse);
+        assertSame(first, cache.get("a", false, parse));
+        cache.get("a", true, parse);
+        assertEquals(2, parses[0]);
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+
+        // "a" optimized is the least recently used one
+        cache.get("a", false, parse);
+        cache.get("b", false, parse);
+        assertEquals(1, cache.evictions());
+        assertEquals(2, cache.size());
+        assertSame(first, cache.get("a", false, parse));
+        cache.get("a", true, parse);
+        assertEquals(4, parses[0]);
+
+        cache.resize(1);
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.evictions());
+        cache.resize(0);
+        cache.get("c", false, parse);
+        assertEquals(0, cache.size());
+        cache.resize(2);
+        cache.get("c", false, parse);
+        cache.clear();
+        assertEquals(0, cache.size());
+        try {
+            cache.resize(-1);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // a source too long to be kept is parsed each time
+        StringBuilder sb = new StringBuilder("0");
+        while (sb.length() <= ExpressionCache.MAX_SOURCE_LENGTH)
+            sb.append(" + 1");
+        cache.get(sb.toString(), false, parse);
+        cache.get(sb.toString(), false, parse);
+        assertEquals(0, cache.size());
+
+        // jsonGet builds the same path for each element
+        IExpressionCache shared = Entry.expressionCache();
+        List<IExpression> script = Entry.buildExpressionBuilder("x = [{\"a\": 1}, {\"a\": 2}, {\"a\": 3}]; sum(x.map(@{jsonGet(_, \"$.a\")}))").buildAll();
+        IExpressionContext context = Entry.buildContext();
+        script.get(0).evaluate(context);
+        long hits = shared.hits();
+        long misses = shared.misses();
+        assertEquals(Value.of(6L), script.get(1).evaluate(context));
+        assertTrue(shared.hits() - hits >= 2);
+        assertTrue(shared.misses() - misses <= 1);
+
+        // the builders hand out copies, the cached list is never changed
+        List<IExpression> all = Entry.buildExpressionBuilder("1; 2").buildAll();
+        all.clear();
+        assertEquals(2, Entry.buildExpressionBuilder("1; 2").buildAll().size());
+    }
+
+    @Test
+    public void testSavedExpressions() throws Exception {
+        String[] expressions = {"2*pi/(n+1)", "-3!+n", "[1,2,n]*2", "{\"a\": n, \"b\": [n, \"x\"]}", "`n=${n} $.a`",
+                "$.items[@{$.price > 1}].id", "$.items[-1].tags[0]", "sum($.items[].price)", "$.",
+                "f = @{_ * n}; f(2)", "toDate(\"2020-01-02\") + \"1d\"", "choice(n > 2, \"yes\", null)", "x = n + 0.5; x * 2",
+                "count($.items) == 2 || b"};
+        List<String> sources = new ArrayList<>(Arrays.asList(expressions));
+
+        for (boolean optimize : new boolean[]{false, true}) {
+            List<IExpression> built = new ArrayList<>();
+            for (String exp : sources)
+                built.addAll(Entry.buildExpressionBuilder(exp, optimize).buildAll());
+            built.add(Entry.compileExpression("x * y + 1"));
+            List<IExpression> loaded = Entry.loadExpressions(ByteBuffer.wrap(Entry.saveExpressions(built)));
+            assertEquals(built.size(), loaded.size());
+
+            // one context per side, the assignments of a statement are seen by the next ones
+            IExpressionContext e = Entry.buildContext("{\"a\": 1, \"items\": [{\"id\": 1, \"price\": 0.5, \"tags\": [\"x\"]}, {\"id\": 2, \"price\": 2, \"tags\": [\"y\"]}]}");
+            IExpressionContext a = Entry.buildContext("{\"a\": 1, \"items\": [{\"id\": 1, \"price\": 0.5, \"tags\": [\"x\"]}, {\"id\": 2, \"price\": 2, \"tags\": [\"y\"]}]}");
+            for (IExpressionContext c : new IExpressionContext[]{e, a}) {
+                c.updateVariable("n", 3);
+                c.updateVariable("x", 2.5);
+                c.updateVariable("y", 4);
+                c.updateVariable("b", true);
+            }
+            for (int i = 0; i < built.size(); i++) {
+                IExpression expected = built.get(i);
+                IExpression actual = loaded.get(i);
+                assertEquals(expected.getClass(), actual.getClass());
+                String exp = expected instanceof JExpParser.SimpleExpression
+                        ? ((JExpParser.SimpleExpression) expected).dump() : ((JExpCompiler.CompiledExpression) expected).dump();
+                // a filter dumps the identity of its node
+                assertEquals(exp.replaceAll("@[0-9a-f]+", "@"), (actual instanceof JExpParser.SimpleExpression
+                        ? ((JExpParser.SimpleExpression) actual).dump() : ((JExpCompiler.CompiledExpression) actual).dump()).replaceAll("@[0-9a-f]+", "@"));
+                if (expected instanceof JExpParser.SimpleExpression)
+                    assertEquals(exp, ((JExpParser.SimpleExpression) expected).node.getClass(), ((JExpParser.SimpleExpression) actual).node.getClass());
+
+                Value v = expected.evaluate(e);
+                // a lambda is only equal to itself
+                if (v.getType() == Value.Type.ExpressionT)
+                    assertEquals(exp, v.getType(), actual.evaluate(a).getType());
+                else
+                    assertEquals(exp, v, actual.evaluate(a));
+            }
+
+            for (String exp : NUMERIC_EXPRESSIONS) {
+                IExpression expected = Entry.buildExpressionBuilder(exp, optimize).build();
+                assertSameNumeric(expected, Entry.loadExpressions(ByteBuffer.wrap(Entry.saveExpressions(Arrays.asList(expected)))).get(0), exp);
+            }
+        }
+
+        try {
+            Entry.loadExpressions(ByteBuffer.wrap(new byte[]{JExpParser.NodeCodec.VERSION, 1}));
+            fail();
+        } catch (ParseException ignored) {
+        }
+
+        // a table with the same shape but another operator at a place is told apart
+        JExpParser.Operator[][] swapped = JExpParser.operators.clone();
+        int level = 0;
+        while (swapped[level].length < 2)
+            level++;
+        swapped[level] = swapped[level].clone();
+        JExpParser.Operator first = swapped[level][0];
+        swapped[level][0] = swapped[level][1];
+        swapped[level][1] = first;
+        assertNotEquals(JExpParser.NodeCodec.OPERATORS, JExpParser.NodeCodec.fingerprint(swapped));
+        assertEquals(JExpParser.NodeCodec.OPERATORS, JExpParser.NodeCodec.fingerprint(JExpParser.operators.clone()));
+    }
 }
@@ -4,8 +4,16 @@ import static org.my.Exp4jException.*;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.my.Value.Type.*;
 import static org.junit.Assert.*;
@@ -763,6 +771,20 @@ public class ExpressionTest {
         assertEquals("x is false, y is 42", e.evaluate(context).asString());
     }
 
+    @Test
+    public void testTemplatePlaceholders() throws org.json.simple.parser.ParseException {
+        IExpressionContext context = Entry.buildContext("{\"x\": 12, \"a b\": {\"c\": [1, 2]}}");
+
+        IExpression e = Entry.buildExpressionBuilder("`next: ${.x + 1}!`").build();
+        assertEquals("next: 13!", e.evaluate(context).asString());
+
+        e = Entry.buildExpressionBuilder("`c=$.\"a b\".c, last=${.\"a b\".c[-1]}`").build();
+        assertEquals("c=[1, 2], last=2", e.evaluate(context).asString());
+
+        e = Entry.buildExpressionBuilder("[`$.x`, `${.x}`] ++ [`-$.x-`]").build();
+        assertEquals("[\"12\", \"12\", \"-12-\"]", e.evaluate(context).toString());
+    }
+
     private static boolean compareListsIgnoreOrder(Long[] list1, Value[] list2) {
         if (list1.length != list2.length) {
             return false;
@@ -1157,6 +1179,369 @@ public class ExpressionTest {
         assertFalse(Entry.buildExpressionBuilder("regMatch(null, \".*\\\\\\\\d+\")").build().evaluate().asBoolean());
     }
 
+    @Test
+    public void testPrecompiledRegex() throws Exception {
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("msgs", Arrays.asList("id 12", "no id", null, "id 3"));
+        context.updateVariable("re", "id \\d+");
+        for (boolean optimize : new boolean[]{false, true}) {
+            String[][] cases = {
+                    {"regMatch(msgs, \"id \\\\d+\")", "[true, false, false, true]"},
+                    {"msgs.regMatch(\"id \\\\d+\")", "[true, false, false, true]"},
+                    {"regMatch(msgs, re)", "[true, false, false, true]"},
+                    {"regMatch(msgs, \"id \" + \"\\\\d+\")", "[true, false, false, true]"},
+                    {"replaceAll(\"a1b22c\", \"\\\\d+\", \"-\")", "a-b-c"},
+                    {"\"a1b22c\".replaceAll(\"[a-c]\", \"\")", "122"},
+                    {"replaceAll(\"a1b22c\", re, \"\")", "a1b22c"},
+            };
+            for (String[] c : cases) {
+                IExpression e = Entry.buildExpressionBuilder(c[0], optimize).build();
+                Value v = e.evaluate(context);
+                assertEquals(c[0], c[1], v.isString() ? v.asString() : v.toString());
+                // each thread matches with its own matcher
+                ExecutorService executor = Executors.newFixedThreadPool(2);
+                try {
+                    List<Future<Value>> futures = new ArrayList<>();
+                    for (int i = 0; i < 8; i++)
+                        futures.add(e.evaluateAsync(executor, context));
+                    for (Future<Value> f : futures)
+                        assertEquals(c[0], v, f.get());
+                } finally {
+                    executor.shutdown();
+                }
+            }
+
+            try {
+                Entry.buildExpressionBuilder("msgs.regMatch(\"*\")", optimize).build().evaluate(context);
+                fail();
+            } catch (EvaluationException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testVariableSlots() {
+        IExpressionContext context = Entry.buildContext();
+        // a name first seen after the context was made gets a slot past its end
+        String name = "slotTest";
+        assertEquals(Value.NULL, context.getVariable(name));
+        IExpression assign = Entry.buildExpressionBuilder(name + " = x * 2").build();
+        IExpression read = Entry.buildExpressionBuilder("$" + name + ".a + " + name + "2").build();
+        context.updateVariable("x", 21);
+        assertEquals(Value.of(42L), assign.evaluate(context));
+        assertEquals(Value.of(42L), context.getVariable(name));
+        assertEquals(Value.of(Math.PI), context.getVariable("pi"));
+
+        context.updateVariable(name, Value.of(new HashMap<>(Collections.singletonMap("a", Value.of(1)))));
+        context.updateVariable(name + "2", 2);
+        assertEquals(Value.of(3L), read.evaluate(context));
+
+        IExpressionContext copy = context.makeCopy();
+        copy.updateVariable(name + "2", 5);
+        assertEquals(Value.of(6L), read.evaluate(copy));
+        assertEquals(Value.of(3L), read.evaluate(context));
+        assertEquals(Value.NULL, Entry.buildContext().getVariable(name));
+
+        context.updateVariable(name, null);
+        assertEquals(Value.NULL, context.getVariable(name));
+
+        // far slots, set apart from the array until it grows to them, are kept by copies and scopes
+        for (int i = 0; i < 1000; i++)
+            SimpleContext.slot(name + "_" + i);
+        IExpressionContext many = Entry.buildContext();
+        for (int i = 0; i < 1000; i++)
+            many.updateVariable(name + "_" + i, i);
+        IExpressionContext late = Entry.buildContext();
+        late.updateVariable(name + "_999", 1);
+        late.updateVariable(name + "_500", 2);
+        IExpressionContext scope = late.makeScope();
+        scope.updateVariable(name + "_998", 3);
+        IExpressionContext flat = scope.makeCopy();
+        for (int i = 0; i < 1000; i++) {
+            if (late.getVariable(name + "_" + i).isNull())
+                late.updateVariable(name + "_" + i, i);
+        }
+        assertEquals(Value.of(1), late.getVariable(name + "_999"));
+        assertEquals(Value.of(2), late.getVariable(name + "_500"));
+        assertEquals(Value.of(7), late.getVariable(name + "_7"));
+        assertEquals(Value.of(3), flat.getVariable(name + "_998"));
+        assertEquals(Value.of(1), flat.getVariable(name + "_999"));
+        assertEquals(Value.NULL, flat.getVariable(name + "_7"));
+        assertEquals(Value.of(999), many.getVariable(name + "_999"));
+
+        // a name no expression was built with is kept by the context alone, an expression built later still reads it
+        IExpressionContext unslotted = Entry.buildContext();
+        unslotted.updateVariable("slotTestNamed", 4);
+        IExpressionContext inner = unslotted.makeScope();
+        inner.updateVariable("slotTestInner", 5);
+        assertEquals(Value.of(4), inner.getVariable("slotTestNamed"));
+        assertEquals(Value.NULL, unslotted.getVariable("slotTestInner"));
+        IExpression named = Entry.buildExpressionBuilder("slotTestNamed * 10 + slotTestInner").build();
+        assertEquals(Value.of(45L), named.evaluate(inner));
+        assertEquals(Value.of(45L), named.evaluate(inner.makeCopy()));
+        inner.updateVariable("slotTestNamed", 6);
+        assertEquals(Value.of(65L), named.evaluate(inner));
+        assertEquals(Value.of(4), unslotted.getVariable("slotTestNamed"));
+        unslotted.updateVariable("slotTestNamed", 7);
+        assertEquals(Value.of(7), unslotted.getVariable("slotTestNamed"));
+    }
+
+    @Test
+    public void testScopes() {
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("k", 10);
+        context.updateVariable("a", "outer");
+        List<IExpression> script = Entry.buildExpressionBuilder(
+                "sort([3, 1, 2], @{t = a - b; t * k / 10}); " +
+                "[1, 2].map(@{k = _ * k; k}); " +
+                "f = @{_ + k}; f(f(1))").buildAll();
+        assertEquals("[1, 2, 3]", script.get(0).evaluate(context).toString());
+        // the writes of a lambda stay in its scope
+        assertEquals(Value.NULL, context.getVariable("t"));
+        assertEquals(Value.of("outer"), context.getVariable("a"));
+        // map keeps one scope for all the elements
+        assertEquals("[10, 20]", script.get(1).evaluate(context).toString());
+        assertEquals(Value.of(10), context.getVariable("k"));
+        script.get(2).evaluate(context);
+        assertEquals(Value.of(21L), script.get(3).evaluate(context));
+
+        // a scope reads through to its parent, a copy of it sees both
+        IExpressionContext scope = context.makeScope();
+        scope.updateVariable("k", 1);
+        scope.updateVariable("a", null);
+        assertEquals(Value.of(1), scope.getVariable("k"));
+        assertEquals(Value.NULL, scope.getVariable("a"));
+        assertEquals(Value.of(Math.PI), scope.getVariable("pi"));
+        IExpressionContext nested = scope.makeScope();
+        nested.updateVariable("m", 2);
+        IExpressionContext copy = nested.makeCopy();
+        context.updateVariable("k", 99);
+        assertEquals(Value.of(1), copy.getVariable("k"));
+        assertEquals(Value.of(2), copy.getVariable("m"));
+        assertEquals(Value.NULL, copy.getVariable("a"));
+        assertEquals(Value.of(99), context.getVariable("k"));
+        assertEquals(Value.of(1), nested.getVariable("k"));
+        assertEquals(Value.NULL, context.getVariable("m"));
+    }
+
+    @Test
+    public void testContextPool() throws Exception {
+        IContextPool pool = Entry.buildContextPool(2);
+        List<IExpression> script = Entry.buildExpressionBuilder("total = $.a + n; total * pi").buildAll();
+
+        IExpressionContext context = pool.acquire("{\"a\": 1}".getBytes(StandardCharsets.UTF_8));
+        context.updateVariable("n", 2);
+        script.get(0).evaluate(context);
+        assertEquals(Value.of(3 * Math.PI), script.get(1).evaluate(context));
+        pool.release(context);
+        assertEquals(0, pool.hits());
+        assertEquals(1, pool.misses());
+
+        // the same context comes back with nothing of the last request
+        IExpressionContext reused = pool.acquire();
+        assertSame(context, reused);
+        assertEquals(1, pool.hits());
+        assertEquals(Value.NULL, reused.getVariable("total"));
+        assertEquals(Value.NULL, reused.getVariable("n"));
+        assertEquals(Value.NULL, reused.getVariable("_"));
+        assertEquals(Value.of(Math.E), reused.getVariable("e"));
+
+        pool.release(reused);
+        try {
+            pool.release(reused);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            pool.release(reused.makeScope());
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            pool.acquire("{".getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (ParseException ignored) {
+        }
+        assertSame(reused, pool.acquire());
+
+        // each thread has contexts of its own
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertNotSame(reused, executor.submit(() -> pool.acquire()).get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, pool.misses());
+
+        // past the capacity released contexts are reset and dropped
+        IExpressionContext[] contexts = {reused, pool.acquire(), pool.acquire()};
+        for (IExpressionContext c : contexts) {
+            c.updateVariable("n", 1);
+            pool.release(c);
+            assertEquals(Value.NULL, c.getVariable("n"));
+        }
+        assertSame(contexts[1], pool.acquire());
+        assertSame(contexts[0], pool.acquire());
+        assertNotSame(contexts[2], pool.acquire());
+        // a dropped context stays released
+        try {
+            pool.release(contexts[2]);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testSharedContext() throws Exception {
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("prices", Value.of(new long[]{30, 10, 20}));
+        context.updateVariable("rate", 2);
+        ISharedContext shared = Entry.buildSharedContext(context);
+        // the base is a copy, later changes to the context don't reach it
+        context.updateVariable("rate", 3);
+        assertEquals(Value.of(2), shared.base().getVariable("rate"));
+
+        // writes stay in the overlay, reads of the rest go to the base
+        IExpressionContext overlay = shared.overlay();
+        List<IExpression> script = Entry.buildExpressionBuilder("rate = rate * 10; total = sum(prices) * rate; prices.sort()").buildAll();
+        for (IExpression e : script)
+            e.evaluate(overlay);
+        assertEquals(Value.of(1200), overlay.getVariable("total"));
+        assertEquals("[10, 20, 30]", script.get(2).evaluate(overlay).toString());
+        assertEquals(Value.of(2), shared.base().getVariable("rate"));
+        assertEquals(Value.NULL, shared.base().getVariable("total"));
+        assertEquals(Value.NULL, shared.overlay().getVariable("total"));
+        // sorting a vector of the base leaves it as other threads read it
+        assertEquals("[30, 10, 20]", shared.base().getVariable("prices").toString());
+        assertEquals("[10, 20, 30]", Entry.buildExpressionBuilder("prices.sort(@{a - b})").build().evaluate(shared.overlay()).toString());
+        assertEquals("[30, 10, 20]", shared.base().getVariable("prices").toString());
+        // a vector of the overlay's own is sorted in place, as it is in a plain context
+        List<IExpression> sortOwn = Entry.buildExpressionBuilder("y = [3,1,2]; sort(y); y").buildAll();
+        for (IExpressionContext c : Arrays.asList(Entry.buildContext(), shared.overlay())) {
+            Value last = null;
+            for (IExpression e : sortOwn)
+                last = e.evaluate(c);
+            assertEquals("[1, 2, 3]", last.toString());
+        }
+
+        // an overlay holds any number of variables of its own
+        for (int i = 0; i < 20; i++)
+            overlay.updateVariable("shared" + i, i);
+        IExpressionContext copy = overlay.makeCopy();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Value.of(i), overlay.getVariable("shared" + i));
+            assertEquals(Value.of(i), copy.getVariable("shared" + i));
+        }
+        assertEquals(Value.of(20), copy.getVariable("rate"));
+
+        try {
+            Entry.buildExpressionBuilder("rate = 1").build().evaluate(shared.base());
+            fail();
+        } catch (EvaluationException ignored) {
+        }
+        try {
+            ((SimpleContext) shared.base()).reset();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        // a reload is seen by the overlays made after it, one made before keeps its base
+        context.updateVariable("rate", 5);
+        shared.reload(context);
+        assertEquals(Value.of(20), overlay.getVariable("rate"));
+        assertEquals(Value.of(5), shared.overlay().getVariable("rate"));
+        assertEquals(Value.of(20), overlay.makeCopy().getVariable("rate"));
+
+        // a lazily read JSON base is settled once, overlays read it from several threads
+        ISharedContext json = Entry.buildSharedContext(Entry.buildContext("{\"rows\": [{\"v\": [3, 1, 2]}, {\"v\": [6, 5, 4]}]}"));
+        IExpression rows = Entry.buildExpressionBuilder("map($.rows, @{sort($_.v)})").build();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Value>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++)
+                futures.add(executor.submit(() -> rows.evaluate(json.overlay())));
+            for (Future<Value> future : futures)
+                assertEquals("[[1, 2, 3], [4, 5, 6]]", future.get().toString());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("[3, 1, 2]", Entry.buildExpressionBuilder("$.rows[0].v").build().evaluate(json.overlay()).toString());
+    }
+
+    @Test
+    public void testEvaluateBatch() {
+        long[] x = {3, -1, 4, 1, -5};
+        double[] y = {2.5, 0.5, -1.5, 8.0, 0.25};
+        Value[] z = {Value.of(1), Value.of(2.5), Value.of(-3), Value.of(0), Value.of(7)};
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("x", x);
+        columns.put("y", y);
+        columns.put("z", z);
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("rate", 3);
+
+        String[] sources = {"x * rate + y / 4 - abs(x)", "x > 2 && y < 3.0 || !(x == 1)", "x <=> y", "pow(x, 2) + sqrt(y) * pi",
+                "-x % 3", "x + z", "z * y > 1"};
+        for (String source : sources) {
+            List<IExpression> expressions = Arrays.asList(Entry.buildExpressionBuilder(source).build(),
+                    Entry.buildExpressionBuilder(source, true).build(), Entry.compileExpression(source));
+            for (IExpression e : expressions) {
+                Value batch = e.evaluateBatch(context, columns);
+                assertEquals(source, x.length, batch.asVector().length);
+                for (int i = 0; i < x.length; i++) {
+                    IExpressionContext row = context.makeCopy();
+                    row.updateVariable("x", x[i]);
+                    row.updateVariable("y", y[i]);
+                    row.updateVariable("z", z[i]);
+                    assertEquals(source, e.evaluate(row), batch.asVector()[i]);
+                }
+            }
+        }
+
+        // any other expression runs a row at a time, what a row assigns stays in the row
+        Value[] names = {Value.of("a"), Value.of("b"), Value.of("c"), Value.of("d"), Value.of("e")};
+        columns.put("name", names);
+        Value labels = Entry.buildExpressionBuilder("total = name + \"!\"").build().evaluateBatch(context, columns);
+        assertEquals("a!", labels.asVector()[0].asString());
+        assertEquals("e!", labels.asVector()[4].asString());
+        assertEquals(Value.NULL, context.getVariable("total"));
+
+        // the columns given are not handed out
+        Value same = Entry.buildExpressionBuilder("x", true).build().evaluateBatch(columns);
+        same.sort(null);
+        assertArrayEquals(new long[]{3, -1, 4, 1, -5}, x);
+
+        // a boolean column is not a number, the batch fails as each row does
+        Map<String, Object> mixed = new HashMap<>();
+        mixed.put("x", y);
+        mixed.put("t", new Value[]{Value.TRUE, Value.FALSE, Value.TRUE, Value.TRUE, Value.FALSE});
+        mixed.put("n", x);
+        for (String source : new String[]{"x + t", "x * t", "n + x * t"}) {
+            List<IExpression> expressions = Arrays.asList(Entry.buildExpressionBuilder(source).build(),
+                    Entry.buildExpressionBuilder(source, true).build(), Entry.compileExpression(source));
+            for (IExpression e : expressions) {
+                try {
+                    e.evaluateBatch(context, mixed);
+                    fail(source);
+                } catch (EvaluationException ignored) {
+                }
+            }
+        }
+
+        columns.put("w", new long[]{1, 2});
+        try {
+            Entry.buildExpressionBuilder("x + w").build().evaluateBatch(columns);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        columns.put("w", "abc");
+        try {
+            Entry.buildExpressionBuilder("x + w").build().evaluateBatch(columns);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
     @Test(expected = EvaluationException.class)
     public void testRegMatchExp() {
         Entry.buildExpressionBuilder("regMatch(\"d2022\", \"*\\\\\\\\d+\")").build().evaluate();
@@ -1331,4 +1716,110 @@ public class ExpressionTest {
         assertEquals("&&", Entry.buildExpressionBuilder("replaceAll(\"12&3&456\",(\"\\\\d\"),\"\")").build().evaluate().asString());
     }
 
+    @Test
+    public void testJsonPaths() {
+        assertEquals(new HashSet<>(Arrays.asList(Arrays.asList("a", "b"), Collections.singletonList("c"))),
+                Entry.buildExpressionBuilder("$.a.b + $.c").build().getJsonPaths());
+        assertEquals(Collections.singleton(Collections.singletonList("a")),
+                Entry.buildExpressionBuilder("keys($.a) == keys($.a.b)").build().getJsonPaths());
+        assertEquals(Collections.singleton(Arrays.asList("items", "price")),
+                Entry.buildExpressionBuilder("sum($.items[].price) + $.items[0].price").build().getJsonPaths());
+        assertEquals(Collections.singleton(Collections.singletonList("items")),
+                Entry.buildExpressionBuilder("$.items[@{$.price > 1}].id").build().getJsonPaths());
+        assertEquals(Collections.emptySet(), Entry.buildExpressionBuilder("x + 1").build().getJsonPaths());
+        assertEquals(Collections.singleton(Collections.emptyList()), Entry.buildExpressionBuilder("$. == 1").build().getJsonPaths());
+        assertEquals(Collections.singleton(Collections.emptyList()), Entry.buildExpressionBuilder("_").build().getJsonPaths());
+        assertEquals(Collections.singleton(Collections.emptyList()), Entry.buildExpressionBuilder("map(x, @{$.a})").build().getJsonPaths());
+        assertEquals(Collections.singleton(Collections.singletonList("a")), Entry.compileExpression("$.a + 1").getJsonPaths());
+
+        String json = "{\"a\": {\"b\": 2, \"w\": [1, {\"x\": \"}]\\\"\"}]}, \"c\": 3.5, \"items\": [{\"id\": 1, \"price\": 0.5, \"tags\": [\"x\"]}, "
+                + "{\"id\": 2, \"price\": 2, \"tags\": []}], \"skip\": {\"deep\": [[{}], \"[\", null, true, -1e3]}}";
+        String[] expressions = {"$.a.b + $.c", "keys($.a)", "sum($.items[].price)", "$.items[@{$.price > 1}].id", "$.items[-1].tags",
+                "$.missing", "$.a.w[0]", "$.a.w[1].x", "count($.items)", "jsonGet($.a, \"$.b\")"};
+        IExpressionContext full = Entry.buildContext(json.toCharArray());
+        for (String exp : expressions) {
+            IExpression e = Entry.buildExpressionBuilder(exp).build();
+            assertEquals(exp, e.evaluate(full), e.evaluate(Entry.buildContext(json.toCharArray(), e)));
+        }
+
+        Value projected = Entry.buildContext(json.toCharArray(), Entry.buildExpressionBuilder("$.a.b").build()).getVariable(SimpleContext.CUR_VAR_NAME);
+        assertEquals("{\"a\": {\"b\": 2}}", projected.toString());
+    }
+
+    @Test
+    public void testEvaluateLines() throws Exception {
+        Path file = Files.createTempFile("records", ".ndjson");
+        try {
+            StringBuilder sb = new StringBuilder();
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                String line = "{\"id\": " + i + ", \"name\": \"n\\u00e9" + i + "\", \"xs\": [" + i + ", " + (i * 0.5) + "], \"skip\": {\"a\": [1, 2]}}";
+                lines.add(line);
+                sb.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+                if (i % 50 == 0)
+                    sb.append("\n  \n");
+            }
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+            List<IExpression> expressions = Arrays.asList(
+                    Entry.buildExpressionBuilder("$.id * 2").build(),
+                    Entry.buildExpressionBuilder("$.name").build(),
+                    Entry.compileExpression("sum($.xs)"));
+            Map<String, List<Value>> expected = new HashMap<>();
+            for (String line : lines) {
+                IExpressionContext context = Entry.buildContext(line);
+                List<Value> results = new ArrayList<>();
+                for (IExpression e : expressions)
+                    results.add(e.evaluate(context));
+                expected.put(results.get(0).toString(), results);
+            }
+
+            for (int threads : new int[]{1, 4}) {
+                Map<String, List<Value>> actual = new ConcurrentHashMap<>();
+                Set<Long> offsets = ConcurrentHashMap.newKeySet();
+                long records = Entry.evaluateLines(file, expressions, threads, (offset, results) -> {
+                    offsets.add(offset);
+                    actual.put(results[0].toString(), Arrays.asList(results));
+                });
+                assertEquals(lines.size(), records);
+                assertEquals(lines.size(), offsets.size());
+                assertEquals(expected, actual);
+            }
+
+            Files.write(file, "{\"id\": 1}\n{\"id\": }\n".getBytes(StandardCharsets.UTF_8));
+            try {
+                Entry.evaluateLines(file, expressions.subList(0, 1), 1, (offset, results) -> { });
+                fail();
+            } catch (ParseException e) {
+                // expected
+            }
+
+            // a bad record stops the regions still running, none of them reaches the sink once the call has failed
+            sb.setLength(0);
+            sb.append("{\"id\": }\n");
+            for (int i = 0; i < 4000; i++)
+                sb.append("{\"id\": ").append(i).append("}\n");
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+            AtomicInteger accepted = new AtomicInteger();
+            try {
+                Entry.evaluateLines(file, expressions.subList(0, 1), 4, (offset, results) -> {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    accepted.incrementAndGet();
+                });
+                fail();
+            } catch (ParseException e) {
+                // expected
+            }
+            int seen = accepted.get();
+            assertTrue(String.valueOf(seen), seen < 2000);
+            Thread.sleep(50);
+            assertEquals(seen, accepted.get());
+        } finally {
+            Files.delete(file);
+        }
+    }
 }
@@ -1,12 +1,29 @@
 package org.my;
 
+import org.json.simple.parser.JSONParser;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Formatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PerformanceTest {
 
@@ -45,10 +62,1016 @@ public class PerformanceTest {
         System.out.print(sb.toString());
     }
 
+    @Ignore
+    @Test
+    public void testTokenizerBench() {
+        String script = buildRuleScript(4 * 1024 * 1024);
+        char[] input = script.toCharArray();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Tokenizer", "MB per Second", "Tokens per Second");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long tokens = 0;
+            long start = System.nanoTime();
+            JExpParser.TokenEmitter.Tokenizer tokenizer = new JExpParser.TokenEmitter.Tokenizer(input, 0);
+            while (tokenizer.nextToken() != null) {
+                tokens++;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            fmt.format("| %-20s %d | %25.2f | %24.2f |%n", "my", i, input.length / seconds / (1024 * 1024), tokens / seconds);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testParseBench() {
+        String script = buildRuleScript(4 * 1024 * 1024);
+
+        // the string keyed lookup which was used before the per-token operator table
+        Map<String, JExpParser.Operator> legacy = new HashMap<>();
+        for (int l = 0; l < JExpParser.operators.length; ++l) {
+            for (JExpParser.Operator op : JExpParser.operators[l]) {
+                legacy.put(op.op + l + op.operands, op);
+            }
+        }
+        String[] terms = {"+", "-", "*", "/", "^", "=", "(", ",", ")"};
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Parser", "Operations per Second", "Percentage of String Key");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long start = System.nanoTime();
+            int rules = new JExpParser.SimpleBuilder(script).buildAll().size();
+            double parseSeconds = (System.nanoTime() - start) / 1e9;
+
+            int found = 0;
+            long probes = 0;
+            start = System.nanoTime();
+            for (int n = 0; n < 200000; ++n) {
+                for (String term : terms) {
+                    for (int l = 0; l < JExpParser.operators.length; ++l, ++probes) {
+                        if (legacy.get(term + l + 2) != null)
+                            found++;
+                    }
+                }
+            }
+            double legacySeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int n = 0; n < 200000; ++n) {
+                for (String term : terms) {
+                    JExpParser.OperatorTable table = JExpParser.getOperatorTable(term);
+                    for (int l = 0; l < JExpParser.operators.length; ++l) {
+                        if (table != null && table.levels[1][l] != null)
+                            found--;
+                    }
+                }
+            }
+            double tableSeconds = (System.nanoTime() - start) / 1e9;
+            assert found == 0;
+
+            fmt.format("| %-20s %d | %25.2f | %24s |%n", "parse rules", i, rules / parseSeconds, "");
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "string key lookup", i, probes / legacySeconds, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "table lookup", i, probes / tableSeconds, legacySeconds * 100 / tableSeconds);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testStreamingBuildBench() throws Exception {
+        // 256MB of rules produced on the fly, the script is never held in memory as a whole
+        String chunk = buildRuleScript(1024 * 1024);
+        Reader script = new Reader() {
+            private long remaining = 256L * chunk.length();
+            private int offset = 0;
+
+            @Override
+            public int read(char[] buf, int off, int len) {
+                if (remaining <= 0)
+                    return -1;
+                int n = (int) Math.min(Math.min(len, chunk.length() - offset), remaining);
+                chunk.getChars(offset, offset + n, buf, off);
+                offset = (offset + n) % chunk.length();
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        Runtime rt = Runtime.getRuntime();
+        long start = System.nanoTime();
+        long rules = 0;
+        long maxUsed = 0;
+        Iterator<IExpression> exps = Entry.buildExpressionBuilder(script).buildIncrementally();
+        while (exps.hasNext()) {
+            exps.next();
+            if (++rules % 100000 == 0)
+                maxUsed = Math.max(maxUsed, rt.totalMemory() - rt.freeMemory());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("streamed %d rules in %.2fs (%.2f rules per second), max heap used %dMB%n",
+                rules, seconds, rules / seconds, maxUsed / (1024 * 1024));
+    }
+
+    static String buildRuleScript(int size) {
+        Random rnd = new Random(42);
+        StringBuilder script = new StringBuilder(size + 128);
+        int n = 0;
+        while (script.length() < size) {
+            script.append("r").append(n++).append(" = ")
+                    .append(rnd.nextInt(100000)).append(" * x + ")
+                    .append(rnd.nextDouble()).append(" - pow(y, ")
+                    .append(rnd.nextInt(10)).append(") / 1.5e3\n");
+        }
+        return script.toString();
+    }
+
+    @Ignore
+    @Test
+    public void testCompiledBench() {
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Calculations per Second", "Percentage of Math");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+
+        double mathRate = (double) benchJavaMath() / (double) BENCH_TIME;
+        fmt.format("| %-22s | %25.2f | %22.2f %% |%n", "Java Math", mathRate, 100f);
+        for (int i = 1; i < 6; ++i) {
+            double treeRate = (double) benchDouble(EXPRESSION, false) / (double) BENCH_TIME;
+            double compiledRate = (double) benchDouble(Entry.compileExpression(EXPRESSION)) / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "tree-walker", i, treeRate, treeRate * 100 / mathRate);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "compiled", i, compiledRate, compiledRate * 100 / mathRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testNumericSpecializationBench() {
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Calculations per Second", "Percentage of Generic");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            double genericRate = (double) benchDouble(EXPRESSION, false) / (double) BENCH_TIME;
+            double typedRate = (double) benchDouble(EXPRESSION, true) / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "generic", i, genericRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "specialized", i, typedRate, typedRate * 100 / genericRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testBroadcastBench() {
+        IExpressionContext boxed = Entry.buildContext();
+        IExpressionContext dense = Entry.buildContext();
+        Value[] vs = new Value[1000000];
+        long[] ls = new long[vs.length];
+        for (int i = 0; i < vs.length; i++) {
+            vs[i] = Value.of(i);
+            ls[i] = i;
+        }
+        // a vector mixing integers and decimals keeps the boxed elements only
+        vs[vs.length - 1] = Value.of(0.5);
+        boxed.updateVariable("v", Value.of(vs));
+        dense.updateVariable("v", Value.of(ls));
+        IExpression expression = Entry.buildExpressionBuilder("max(v * 2 + 1)").build();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Evaluations per Second", "Percentage of Boxed");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            double boxedRate = benchVector(expression, boxed);
+            double denseRate = benchVector(expression, dense);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "boxed", i, boxedRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "dense", i, denseRate, denseRate * 100 / boxedRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    private double benchVector(IExpression expression, IExpressionContext context) {
+        long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+        int count = 0;
+        while (time > System.currentTimeMillis()) {
+            expression.evaluate(context);
+            count++;
+        }
+        return (double) count / (double) BENCH_TIME;
+    }
+
+    @Ignore
+    @Test
+    public void testJsonPathBench() throws Exception {
+        StringBuilder json = new StringBuilder("{\"orders\": [");
+        for (int i = 0; i < 10000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\": ").append(i)
+                    .append(", \"amount\": ").append(i * 0.5)
+                    .append(", \"note\": \"order ").append(i).append('"')
+                    .append(", \"customer\": {\"id\": ").append(i % 97)
+                    .append(", \"name\": \"customer ").append(i % 97).append("\", \"level\": ").append(i % 5).append("}}");
+        }
+        json.append("]}");
+        IExpressionContext context = Entry.buildContext(json.toString());
+        IExpression expression = Entry.buildExpressionBuilder("$.orders[].customer.id").build();
+        Value[] orders = context.getVariable(SimpleContext.CUR_VAR_NAME).getField("orders").asVector();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Lookups per Second", "Percentage of Copy");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            // how every property step looked up the fields before, copying the map first
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long copy = 0;
+            while (time > System.currentTimeMillis()) {
+                for (Value order : orders) {
+                    new HashMap<>(new HashMap<>(order.asMap()).get("customer").asMap()).get("id");
+                }
+                copy += orders.length;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long view = 0;
+            while (time > System.currentTimeMillis()) {
+                for (Value order : orders) {
+                    order.getField("customer").getField("id");
+                }
+                view += orders.length;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long path = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluate(context);
+                path += orders.length;
+            }
+
+            double copyRate = (double) copy / (double) BENCH_TIME;
+            double viewRate = (double) view / (double) BENCH_TIME;
+            double pathRate = (double) path / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "copied map", i, copyRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "getField", i, viewRate, viewRate * 100 / copyRate);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "json path", i, pathRate, pathRate * 100 / copyRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testLazyContextBench() throws Exception {
+        // about 200KB, of which the rule reads 3 fields
+        StringBuilder json = new StringBuilder("{\"event\": {\"type\": \"click\", \"score\": 42}, \"items\": [");
+        for (int i = 0; i < 2000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\": ").append(i)
+                    .append(", \"tags\": [\"a\", \"b\", \"c\"], \"price\": ").append(i * 0.25)
+                    .append(", \"attrs\": {\"w\": ").append(i % 7).append(", \"h\": ").append(i % 11).append("}}");
+        }
+        json.append("], \"user\": {\"level\": 3}}");
+        String document = json.toString();
+        IExpression expression = Entry.buildExpressionBuilder("$.event.type == \"click\" && $.event.score > 10 && $.user.level >= 2").build();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Events per Second", "Percentage of Eager");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            // how the context was built before, converting the whole document to values
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long eager = 0;
+            while (time > System.currentTimeMillis()) {
+                IExpressionContext context = Entry.buildContext();
+                context.updateVariable(SimpleContext.CUR_VAR_NAME, Value.of(new JSONParser().parse(document)));
+                expression.evaluate(context);
+                eager++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long lazy = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluate(Entry.buildContext(document));
+                lazy++;
+            }
+
+            double eagerRate = (double) eager / (double) BENCH_TIME;
+            double lazyRate = (double) lazy / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "eager", i, eagerRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "lazy", i, lazyRate, lazyRate * 100 / eagerRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testJsonReaderBench() throws Exception {
+        // an event payload of a few KB with a numeric series the rule sums
+        StringBuilder json = new StringBuilder("{\"event\": {\"type\": \"click\", \"score\": 42, \"source\": \"web\\/app\"}, \"metrics\": [");
+        for (int i = 0; i < 200; i++)
+            json.append(i == 0 ? "" : ", ").append(i * 0.5);
+        json.append("], \"items\": [");
+        for (int i = 0; i < 20; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\": ").append(i)
+                    .append(", \"tags\": [\"a\", \"b\"], \"price\": ").append(i * 0.25).append("}");
+        }
+        json.append("], \"user\": {\"level\": 3, \"name\": \"someone\"}}");
+        String document = json.toString();
+        char[] chars = document.toCharArray();
+        IExpression expression = Entry.buildExpressionBuilder("$.event.type == \"click\" && sum($.metrics) > 10 && $.user.level >= 2").build();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Events per Second", "Percentage of Simple");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long simple = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluate(Entry.buildContext(document));
+                simple++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long reader = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluate(Entry.buildContext(chars));
+                reader++;
+            }
+
+            double simpleRate = (double) simple / (double) BENCH_TIME;
+            double readerRate = (double) reader / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "json-simple", i, simpleRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "json reader", i, readerRate, readerRate * 100 / simpleRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testProjectedContextBench() {
+        // a wide payload of about 100KB, of which the rule reads 3 fields
+        StringBuilder json = new StringBuilder("{\"event\": {\"type\": \"click\", \"score\": 42}, \"items\": [");
+        for (int i = 0; i < 1000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\": ").append(i)
+                    .append(", \"tags\": [\"a\", \"b\", \"c\"], \"price\": ").append(i * 0.25)
+                    .append(", \"attrs\": {\"w\": ").append(i % 7).append(", \"h\": ").append(i % 11).append("}}");
+        }
+        json.append("], \"user\": {\"level\": 3}}");
+        char[] document = json.toString().toCharArray();
+        IExpression expression = Entry.buildExpressionBuilder("$.event.type == \"click\" && $.event.score > 10 && $.user.level >= 2").build();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Events per Second", "Percentage of Full");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long full = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluate(Entry.buildContext(document));
+                full++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long projected = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluate(Entry.buildContext(document, expression));
+                projected++;
+            }
+
+            double fullRate = (double) full / (double) BENCH_TIME;
+            double projectedRate = (double) projected / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "full", i, fullRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "projected", i, projectedRate, projectedRate * 100 / fullRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testNdjsonBench() throws Exception {
+        // 20000 records of about 300 bytes, evaluated by 3 rules
+        Path file = Files.createTempFile("bench", ".ndjson");
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            json.append("{\"event\": {\"type\": \"").append(i % 3 == 0 ? "click" : "view").append("\", \"score\": ").append(i % 100)
+                    .append("}, \"metrics\": [").append(i).append(", ").append(i + 1).append(", ").append(i + 2)
+                    .append("], \"tags\": [\"a\", \"b\", \"c\"], \"attrs\": {\"w\": ").append(i % 7).append(", \"h\": ").append(i % 11)
+                    .append(", \"note\": \"some text that the rules never read\"}, \"user\": {\"level\": ").append(i % 5).append("}}\n");
+        }
+        Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+        List<IExpression> expressions = Arrays.asList(
+                Entry.buildExpressionBuilder("$.event.type == \"click\" && $.event.score > 10").build(),
+                Entry.buildExpressionBuilder("sum($.metrics)").build(),
+                Entry.buildExpressionBuilder("$.user.level >= 2").build());
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicLong sink = new AtomicLong();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Records per Second", "Percentage of Lines");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        try {
+            for (int i = 1; i < 6; ++i) {
+                // how a backfill runs today, a String per line
+                long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+                long lines = 0;
+                while (time > System.currentTimeMillis()) {
+                    try (BufferedReader reader = Files.newBufferedReader(file)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            IExpressionContext context = Entry.buildContext(line);
+                            for (IExpression e : expressions)
+                                sink.addAndGet(e.evaluate(context).hashCode());
+                            lines++;
+                        }
+                    }
+                }
+
+                time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+                long mapped = 0;
+                while (time > System.currentTimeMillis())
+                    mapped += Entry.evaluateLines(file, expressions, 1, (offset, results) -> sink.addAndGet(results[0].hashCode()));
+
+                time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+                long parallel = 0;
+                while (time > System.currentTimeMillis())
+                    parallel += Entry.evaluateLines(file, expressions, threads, (offset, results) -> sink.addAndGet(results[0].hashCode()));
+
+                double linesRate = (double) lines / (double) BENCH_TIME;
+                double mappedRate = (double) mapped / (double) BENCH_TIME;
+                double parallelRate = (double) parallel / (double) BENCH_TIME;
+                fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "lines", i, linesRate, 100f);
+                fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "mapped", i, mappedRate, mappedRate * 100 / linesRate);
+                fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "mapped x" + threads, i, parallelRate, parallelRate * 100 / linesRate);
+            }
+        } finally {
+            Files.delete(file);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testWriteJsonBench() throws Exception {
+        // a filtered result of 2000 objects with strings, numbers and dates
+        Value[] items = new Value[2000];
+        for (int i = 0; i < items.length; i++) {
+            Map<String, Value> item = new HashMap<>();
+            item.put("id", Value.of(i));
+            item.put("name", Value.of("item/" + i));
+            item.put("price", Value.of(i * 0.25));
+            item.put("tags", Value.of(new Value[]{Value.of("a"), Value.of("b")}));
+            item.put("at", Value.of(new Value.DateWithFmt(LocalDateTime.of(2024, 5, 1, 10, i % 60), Value.DEFAULT_DATETIME_FMT)));
+            items[i] = Value.of(item);
+        }
+        Value result = Value.of(items);
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Results per Second", "Percentage of toString");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long string = 0;
+            while (time > System.currentTimeMillis()) {
+                out.write(result.toString().getBytes(StandardCharsets.UTF_8));
+                string++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long stream = 0;
+            while (time > System.currentTimeMillis()) {
+                result.writeJson(out);
+                stream++;
+            }
+
+            double stringRate = (double) string / (double) BENCH_TIME;
+            double streamRate = (double) stream / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "toString", i, stringRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "writeJson", i, streamRate, streamRate * 100 / stringRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testBinaryBench() throws Exception {
+        // a context of 500 objects as it is shipped to another JVM
+        Value[] items = new Value[500];
+        for (int i = 0; i < items.length; i++) {
+            Map<String, Value> item = new HashMap<>();
+            item.put("id", Value.of(i));
+            item.put("name", Value.of("item-" + i));
+            item.put("price", Value.of(i * 0.25));
+            item.put("tags", Value.of(new Value[]{Value.of("a"), Value.of("b")}));
+            item.put("series", Value.of(new long[]{i, i + 1, i + 2, i + 3}));
+            items[i] = Value.of(item);
+        }
+        Map<String, Value> root = new HashMap<>();
+        root.put("items", Value.of(items));
+        Value value = Value.of(root);
+        int jsonSize = value.toString().getBytes(StandardCharsets.UTF_8).length;
+        int binarySize = value.toBinary().length;
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("JSON %d bytes, binary %d bytes (%.2f %%)%n", jsonSize, binarySize, binarySize * 100.0 / jsonSize);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Round trips per Second", "Percentage of JSON");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long json = 0;
+            while (time > System.currentTimeMillis()) {
+                byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                Value.of(new JSONParser().parse(new String(bytes, StandardCharsets.UTF_8)));
+                json++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long binary = 0;
+            while (time > System.currentTimeMillis()) {
+                Value.fromBinary(ByteBuffer.wrap(value.toBinary()));
+                binary++;
+            }
+
+            double jsonRate = (double) json / (double) BENCH_TIME;
+            double binaryRate = (double) binary / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "json", i, jsonRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "binary", i, binaryRate, binaryRate * 100 / jsonRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testSavedExpressionsBench() {
+        // a rule set of 200 expressions as it is loaded at startup
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            script.append(String.format("choice($.items[%d].price * 1.2 > x + %d, sum($.items[].price) / %d, `item ${y}-%d`);", i % 7, i, i + 1, i));
+        String source = script.toString();
+        List<IExpression> built = Entry.buildExpressionBuilder(source, true).buildAll();
+        byte[] artifact = Entry.saveExpressions(built);
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("source %d chars, artifact %d bytes%n", source.length(), artifact.length);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Loads per Second", "Percentage of Parse");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long parse = 0;
+            while (time > System.currentTimeMillis()) {
+                Entry.buildExpressionBuilder(source, true).buildAll();
+                parse++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long load = 0;
+            while (time > System.currentTimeMillis()) {
+                Entry.loadExpressions(ByteBuffer.wrap(artifact));
+                load++;
+            }
+
+            double parseRate = (double) parse / (double) BENCH_TIME;
+            double loadRate = (double) load / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "parse", i, parseRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "load", i, loadRate, loadRate * 100 / parseRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testExpressionCacheBench() {
+        // jsonGet builds its path again for each of the 1000 elements
+        StringBuilder items = new StringBuilder("x = [");
+        for (int i = 0; i < 1000; i++)
+            items.append(i == 0 ? "" : ", ").append(String.format("{\"a\": {\"b\": [%d, %d]}}", i, i + 1));
+        List<IExpression> script = Entry.buildExpressionBuilder(items.append("]; sum(x.map(@{jsonGet(_, \"$.a.b[1]\")}))").toString()).buildAll();
+        IExpressionContext context = Entry.buildContext();
+        script.get(0).evaluate(context);
+        IExpression expression = script.get(1);
+        IExpressionCache cache = Entry.expressionCache();
+        int capacity = cache.capacity();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Calculations per Second", "Percentage of Uncached");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        try {
+            for (int i = 1; i < 6; ++i) {
+                cache.resize(0);
+                long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+                long uncached = 0;
+                while (time > System.currentTimeMillis()) {
+                    expression.evaluate(context);
+                    uncached++;
+                }
+
+                cache.resize(capacity);
+                time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+                long cached = 0;
+                while (time > System.currentTimeMillis()) {
+                    expression.evaluate(context);
+                    cached++;
+                }
+
+                double uncachedRate = (double) uncached / (double) BENCH_TIME;
+                double cachedRate = (double) cached / (double) BENCH_TIME;
+                fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "uncached", i, uncachedRate, 100f);
+                fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "cached", i, cachedRate, cachedRate * 100 / uncachedRate);
+            }
+        } finally {
+            cache.resize(capacity);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("hits %d, misses %d, evictions %d%n", cache.hits(), cache.misses(), cache.evictions());
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testRegexBench() {
+        // a broadcast regMatch over 10000 log lines, against compiling the pattern for each line as before
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            lines.add(i % 3 == 0 ? "ERROR code=" + i + " at worker-" + (i % 16) : "INFO request " + i + " done");
+        String regex = "ERROR code=\\\\d+ at worker-\\\\d+";
+        IExpression expression = Entry.buildExpressionBuilder("count(filter(regMatch(lines, \"" + regex + "\"), @{_}))").build();
+        IExpressionContext context = Entry.buildContext();
+        context.updateVariable("lines", lines);
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Batches per Second", "Percentage of Recompile");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long recompile = 0;
+            while (time > System.currentTimeMillis()) {
+                int n = 0;
+                for (String line : lines) {
+                    if (line.matches(regex.replaceAll("\\\\\\\\", "\\\\")))
+                        n++;
+                }
+                if (n == 0)
+                    throw new IllegalStateException();
+                recompile++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long precompiled = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluate(context);
+                precompiled++;
+            }
+
+            double recompileRate = (double) recompile / (double) BENCH_TIME;
+            double precompiledRate = (double) precompiled / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "recompile", i, recompileRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "precompiled", i, precompiledRate, precompiledRate * 100 / recompileRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testVariableSlotsBench() {
+        // binds four variables per event and evaluates a rule reading them, before any numeric specialization
+        IExpression expression = Entry.buildExpressionBuilder("choice(level > limit && user != \"root\", level - limit, total)").build();
+        String[] names = {"level", "limit", "user", "total"};
+        int[] slots = SimpleContext.slots(names);
+        Value[][] events = new Value[1024][];
+        for (int i = 0; i < events.length; i++)
+            events[i] = new Value[]{Value.of(i % 100), Value.of(50), Value.of(i % 7 == 0 ? "root" : "user" + i), Value.of(i)};
+        SimpleContext context = new SimpleContext();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Events per Second", "Percentage of Names");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long byName = 0;
+            while (time > System.currentTimeMillis()) {
+                Value[] event = events[(int) (byName & 1023)];
+                for (int j = 0; j < names.length; j++)
+                    context.updateVariable(names[j], event[j]);
+                expression.evaluate(context);
+                byName++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long bySlot = 0;
+            while (time > System.currentTimeMillis()) {
+                Value[] event = events[(int) (bySlot & 1023)];
+                for (int j = 0; j < slots.length; j++)
+                    context.setVariable(slots[j], event[j]);
+                expression.evaluate(context);
+                bySlot++;
+            }
+
+            double nameRate = (double) byName / (double) BENCH_TIME;
+            double slotRate = (double) bySlot / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "names", i, nameRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "slots", i, slotRate, slotRate * 100 / nameRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testScopedSortBench() {
+        // sorts 100k numbers with a lambda comparator, against copying the context for each comparison as before
+        Value[] numbers = new Value[100000];
+        Random random = new Random(42);
+        for (int i = 0; i < numbers.length; i++)
+            numbers[i] = Value.of(random.nextInt(1000000));
+        IExpressionContext context = Entry.buildContext();
+        for (int i = 0; i < 32; i++)
+            context.updateVariable("v" + i, i);
+        IExpression sort = Entry.buildExpressionBuilder("sort(xs, @{b <=> a})").build();
+        Value comparator = Entry.buildExpressionBuilder("@{b <=> a}").build().evaluate();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Sorts per Second", "Percentage of Copies");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long copies = 0;
+            while (time > System.currentTimeMillis()) {
+                Value.of(numbers.clone()).sort((a, b) -> {
+                    IExpressionContext copy = context.makeCopy();
+                    copy.updateVariable("a", a);
+                    copy.updateVariable("b", b);
+                    return (int) comparator.asExpression().evaluate(copy).asLong();
+                });
+                copies++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long scopes = 0;
+            while (time > System.currentTimeMillis()) {
+                context.updateVariable("xs", numbers.clone());
+                sort.evaluate(context);
+                scopes++;
+            }
+
+            double copyRate = (double) copies / (double) BENCH_TIME;
+            double scopeRate = (double) scopes / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "copies", i, copyRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "scopes", i, scopeRate, scopeRate * 100 / copyRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testContextPoolBench() {
+        // a request binds a small document and two variables then runs a rule, with a new or a pooled context
+        byte[] json = "{\"user\": \"u1\", \"level\": 7}".getBytes(StandardCharsets.UTF_8);
+        IExpression expression = Entry.buildExpressionBuilder("$.level > limit && $.user != banned").build();
+        Value limit = Value.of(5);
+        Value banned = Value.of("root");
+        IContextPool pool = Entry.buildContextPool(4);
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Requests per Second", "Percentage of New");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long created = 0;
+            while (time > System.currentTimeMillis()) {
+                IExpressionContext context = Entry.buildContext(json);
+                context.updateVariable("limit", limit);
+                context.updateVariable("banned", banned);
+                expression.evaluate(context);
+                created++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long pooled = 0;
+            while (time > System.currentTimeMillis()) {
+                IExpressionContext context = pool.acquire(json);
+                context.updateVariable("limit", limit);
+                context.updateVariable("banned", banned);
+                expression.evaluate(context);
+                pool.release(context);
+                pooled++;
+            }
+
+            double newRate = (double) created / (double) BENCH_TIME;
+            double pooledRate = (double) pooled / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "new", i, newRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "pooled", i, pooledRate, pooledRate * 100 / newRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("pool hits %d, misses %d%n", pool.hits(), pool.misses());
+
+        // the garbage of a request is what the pool saves, more than the time
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 100000; i++) {
+            IExpressionContext context = Entry.buildContext(json);
+            context.updateVariable("limit", limit);
+            context.updateVariable("banned", banned);
+            expression.evaluate(context);
+        }
+        long createdBytes = threads.getThreadAllocatedBytes(id) - before;
+        before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 100000; i++) {
+            IExpressionContext context = pool.acquire(json);
+            context.updateVariable("limit", limit);
+            context.updateVariable("banned", banned);
+            expression.evaluate(context);
+            pool.release(context);
+        }
+        long pooledBytes = threads.getThreadAllocatedBytes(id) - before;
+        fmt.format("bytes per request: new %d, pooled %d%n", createdBytes / 100000, pooledBytes / 100000);
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testSharedContextBench() {
+        // a reference table of a few thousand variables read by every request, copied per request or overlaid
+        IExpressionContext base = Entry.buildContext();
+        for (int i = 0; i < 5000; i++)
+            base.updateVariable("price" + i, Value.of(i * 1.5));
+        ISharedContext shared = Entry.buildSharedContext(base);
+        IExpression expression = Entry.buildExpressionBuilder("total = price42 * qty + price4999; total > 100").build();
+        Value qty = Value.of(3);
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Requests per Second", "Percentage of Copy");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long copied = 0;
+            while (time > System.currentTimeMillis()) {
+                IExpressionContext context = base.makeCopy();
+                context.updateVariable("qty", qty);
+                expression.evaluate(context);
+                copied++;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long overlaid = 0;
+            while (time > System.currentTimeMillis()) {
+                IExpressionContext context = shared.overlay();
+                context.updateVariable("qty", qty);
+                expression.evaluate(context);
+                overlaid++;
+            }
+
+            double copyRate = (double) copied / (double) BENCH_TIME;
+            double overlayRate = (double) overlaid / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "copy", i, copyRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "overlay", i, overlayRate, overlayRate * 100 / copyRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testEvaluateBatchBench() {
+        // a scoring rule over columns of 10000 rows, a row at a time in a context or all the rows at once
+        int rows = 10000;
+        Random random = new Random(42);
+        long[] x = new long[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = random.nextInt(100);
+            y[i] = random.nextDouble() * 200;
+        }
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("x", x);
+        columns.put("y", y);
+        IExpression expression = Entry.buildExpressionBuilder("x * 1.5 + y / 4 - abs(x - 50) > 10 && y < 150", true).build();
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Rows per Second", "Percentage of Rows");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long single = 0;
+            IExpressionContext context = Entry.buildContext();
+            while (time > System.currentTimeMillis()) {
+                for (int r = 0; r < rows; r++) {
+                    context.updateVariable("x", x[r]);
+                    context.updateVariable("y", y[r]);
+                    expression.evaluate(context);
+                }
+                single += rows;
+            }
+
+            time = System.currentTimeMillis() + (1000 * BENCH_TIME);
+            long batched = 0;
+            while (time > System.currentTimeMillis()) {
+                expression.evaluateBatch(columns);
+                batched += rows;
+            }
+
+            double singleRate = (double) single / (double) BENCH_TIME;
+            double batchRate = (double) batched / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "rows", i, singleRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "batch", i, batchRate, batchRate * 100 / singleRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testConstantFoldingBench() {
+        String expression = "2*3.14159265/(x+1) - pow(2,10)*y + sqrt(16)*(x^cos(0.5))";
+
+        StringBuffer sb = new StringBuffer();
+        Formatter fmt = new Formatter(sb);
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        fmt.format("| %-22s | %-25s | %-24s |%n", "Implementation", "Calculations per Second", "Percentage of Plain");
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        for (int i = 1; i < 6; ++i) {
+            double plainRate = (double) benchDouble(expression, false) / (double) BENCH_TIME;
+            double foldedRate = (double) benchDouble(expression, true) / (double) BENCH_TIME;
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "plain", i, plainRate, 100f);
+            fmt.format("| %-20s %d | %25.2f | %22.2f %% |%n", "folded", i, foldedRate, foldedRate * 100 / plainRate);
+        }
+        fmt.format("+------------------------+---------------------------+--------------------------+%n");
+        System.out.print(sb.toString());
+    }
+
     private int benchDouble() {
+        return benchDouble(EXPRESSION, false);
+    }
+
+    private int benchDouble(String exp, boolean optimize) {
+        return benchDouble(Entry.buildExpressionBuilder(exp, optimize).build());
+    }
+
+    private int benchDouble(IExpression expression) {
         IExpressionContext context = Entry.buildContext();
-        final IExpression expression = Entry.buildExpressionBuilder(EXPRESSION)
-                .build();
 
         Random rnd = new Random();
         long time = System.currentTimeMillis() + (1000 * BENCH_TIME);
@@ -1,8 +1,19 @@
 package org.my;
 
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -104,4 +115,374 @@ public class ValueTest {
         assertEquals("[12]", Entry.buildExpressionBuilder("([12])").build().evaluate().toString());
         assertEquals("[12]", Entry.buildExpressionBuilder("(([12]))").build().evaluate().toString());
     }
+
+    @Test
+    public void testConcurrentBoxing() throws Exception {
+        // the threads boxing a dense vector at once all get the one array, with every element in it
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 50; round++) {
+                long[] ls = new long[1000];
+                for (int i = 0; i < ls.length; i++)
+                    ls[i] = i;
+                Value v = Value.of(ls);
+                List<Future<Value[]>> futures = new ArrayList<>();
+                for (int i = 0; i < 4; i++)
+                    futures.add(executor.submit(v::asVector));
+                Value[] first = futures.get(0).get();
+                for (Future<Value[]> f : futures)
+                    assertSame(first, f.get());
+                assertEquals(Value.of(999), first[999]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDenseVector() {
+        Value ints = Value.of(Arrays.asList(3L, 1L, 2L));
+        assertArrayEquals(new long[]{3, 1, 2}, ints.asLongs());
+        assertEquals(Value.Type.IntegerT, ints.getHomogeneousType());
+        assertEquals("[3, 1, 2]", ints.toString());
+        assertEquals(Value.of(new Value[]{Value.of(3), Value.of(1), Value.of(2)}), ints);
+        assertEquals(Value.of(2L), ints.asVector()[2]);
+        assertArrayEquals(new long[]{1, 2, 3}, ints.sort(null).asLongs());
+        assertEquals("[1, 2, 3]", ints.toString());
+        assertEquals("[3, 2, 1]", ints.sort((a, b) -> b.compareTo(a)).toString());
+        assertArrayEquals(new long[]{3, 2, 1}, ints.asLongs());
+
+        Value decimals = Value.of(new Value[]{Value.of(1.5), Value.of(-0.5)});
+        assertArrayEquals(new double[]{1.5, -0.5}, decimals.asDoubles(), 0d);
+        assertEquals(Value.of(Arrays.asList(1.5, -0.5)), decimals);
+
+        // mixed, null or boxed only elements keep the boxed vector only
+        assertNull(Value.of(Arrays.asList(1L, 2.5)).asDoubles());
+        assertNull(Value.of(new Value[]{Value.of(1), Value.NULL}).asLongs());
+        assertNull(Value.of(new Value[0]).asLongs());
+    }
+
+    @Test
+    public void testDenseBroadcast() {
+        String[][] cases = {
+                {"[1, 2, 3] * 2", "[2, 4, 6]"},
+                {"2 - [1, 2, 3]", "[1, 0, -1]"},
+                {"[1, 2, 3] + 0.5", "[1.5, 2.5, 3.5]"},
+                {"[1, 2, 3] / 2", "[0.5, 1.0, 1.5]"},
+                {"[1.5, 2.5] * [2, 4]", "[3.0, 10.0]"},
+                {"[1, 2] ^ [2, 3]", "[1.0, 8.0]"},
+                {"[5, 7] % 3", "[2.0, 1.0]"},
+                {"-[1, 2]", "[-1, -2]"},
+                {"-[1.5, 2.0]", "[-1.5, -2.0]"},
+                {"[1, 2, 3]!", "[1, 2, 6]"},
+                {"[1, 2.5] * 2", "[2, 5.0]"},
+                {"[1, 2] + \"a\"", null},
+                {"[1, 2] * [1, 2, 3]", null},
+                {"sum([1, 2, 3] * 2)", "12"},
+                {"sum([0.5, 1.5])", "2.0"},
+                {"avg([1, 2])", "1.5"},
+                {"min([3, 1, 2])", "1"},
+                {"max([3.5, 1.0])", "3.5"},
+                {"sum([1, 2] - [1, 2])", "0"},
+        };
+        for (String[] c : cases) {
+            try {
+                assertEquals(c[0], c[1], Entry.buildExpressionBuilder(c[0]).build().evaluate().toString());
+            } catch (Exp4jException.EvaluationException e) {
+                assertNull(c[0], c[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testMapView() {
+        Map<String, Object> raw = new HashMap<>();
+        raw.put("id", 7L);
+        raw.put("name", "fox");
+        Value v = Value.of(raw);
+
+        Map<String, Value> view = v.asMap();
+        assertEquals(Value.of(7), view.get("id"));
+        assertSame(view.get("name"), v.getField("name"));
+        assertEquals(Value.NULL, v.getField("missing"));
+        try {
+            view.put("id", Value.of(8));
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+        assertEquals(Value.of(7), v.getField("id"));
+        assertEquals(Value.of("fox"), Value.enclosed(new Value[]{v}).getField("name"));
+    }
+
+    @Test(expected = Exp4jException.EvaluationException.class)
+    public void testGetFieldOfNonMap() {
+        Value.of("x").getField("id");
+    }
+
+    @Test
+    public void testLazyJson() throws Exception {
+        String json = "{\"a\": {\"b\": [1, 2, 3], \"c\": [1, 2.5, null, \"x\"], \"d\": [[0.5], {\"e\": true}]}, \"f\": null, \"g\": \"h\"}";
+        Object parsed = new JSONParser().parse(json);
+        Value lazy = Value.ofJson(parsed);
+        Value eager = Value.of(parsed);
+
+        assertEquals(eager.toString(), lazy.toString());
+        assertEquals(eager, lazy);
+        assertEquals(Value.of(2L), lazy.getField("a").getField("b").asVector()[1]);
+        assertArrayEquals(new long[]{1, 2, 3}, lazy.getField("a").getField("b").asLongs());
+        assertFalse(lazy.getField("a").getField("c").isHomogeneousVector());
+        assertEquals(Value.TRUE, lazy.getField("a").getField("d").asVector()[1].getField("e"));
+        assertSame(lazy.getField("a"), lazy.getField("a"));
+        assertEquals(Value.NULL, lazy.getField("f"));
+        assertTrue(lazy.asMap().containsKey("f"));
+        assertEquals(Value.NULL, lazy.getField("missing"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "f", "g")), lazy.asMap().keySet());
+
+        IExpressionContext context = Entry.buildContext(json);
+        assertEquals("[1, 2, 3]", Entry.buildExpressionBuilder("$.a.b").build().evaluate(context).toString());
+        assertEquals("6", Entry.buildExpressionBuilder("sum($.a.b)").build().evaluate(context).toString());
+        assertEquals("[\"b\", \"c\", \"d\"]", Entry.buildExpressionBuilder("sort(keys($.a))").build().evaluate(context).toString());
+    }
+
+    @Test
+    public void testJsonReader() throws Exception {
+        String[] docs = {
+                "{\"a\": {\"b\": [1, 2, 3], \"c\": [1, 2.5, null, \"x\"], \"d\": [[0.5], {\"e\": true}]}, \"f\": null, \"g\": \"h\"}",
+                "[1, 2.5, 3]", "[null, 1, \"x\"]", "[1, null, 2]", "[[1, 2], [3.5]]", "[]", "{}", "[true, false]",
+                " {\"s\": \"tab\\there \\u00e9\\\"q\\\" \\/ \\\\\", \"n\": -12.5e-1, \"neg\": -7} ",
+                "\"x\"", "42", "-0.25", "null",
+        };
+        for (String doc : docs) {
+            Value expected = Value.of(new JSONParser().parse(doc));
+            for (Value actual : new Value[]{
+                    new JsonReader(doc.toCharArray()).read(),
+                    new JsonReader(doc.getBytes(StandardCharsets.UTF_8)).read(),
+                    new JsonReader(new TrickleReader(doc)).read()}) {
+                assertSameJson(doc, expected, actual);
+            }
+        }
+
+        assertArrayEquals(new long[]{1, 2, 3}, new JsonReader("[1, 2, 3]".toCharArray()).read().asLongs());
+        assertArrayEquals(new double[]{0.5, 1.5}, new JsonReader("[0.5, 1.5]".toCharArray()).read().asDoubles(), 0);
+        assertNull(new JsonReader("[1, 1.5]".toCharArray()).read().asLongs());
+        assertEquals(Value.of(12345678901234567890.0), new JsonReader("12345678901234567890".toCharArray()).read());
+
+        for (String bad : new String[]{"{\"a\" 1}", "[1, 2", "[1 2]", "tru", "\"abc", "{\"a\": 1,}", "1 2", "\"\\x\"", "1.2.3", "",
+                "1.", "-.5", "[1.]", "01", "-", "1e", "1e+", "2.e3", "--1"}) {
+            try {
+                new JsonReader(bad.toCharArray()).read();
+                fail(bad);
+            } catch (Exp4jException.ParseException e) {
+                // expected
+            }
+        }
+
+        assertEquals(Value.of(-0.5), new JsonReader("-0.5".toCharArray()).read());
+        assertEquals(Value.of(1.5e-3), new JsonReader("15E-4".toCharArray()).read());
+
+        // nesting past the limit is a parse error, not a StackOverflowError
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < JsonReader.MAX_DEPTH; i++)
+            deep.append('[');
+        for (int i = 0; i < JsonReader.MAX_DEPTH; i++)
+            deep.append(']');
+        assertEquals(Value.Type.VectorT, new JsonReader(deep.toString().toCharArray()).read().getType());
+        String deeper = "[" + deep + "]";
+        deep.setLength(0);
+        for (int i = 0; i < 100000; i++)
+            deep.append(i % 2 == 0 ? "[" : "{\"a\":");
+        for (char[] doc : new char[][]{deeper.toCharArray(), deep.toString().toCharArray()}) {
+            try {
+                new JsonReader(doc).read();
+                fail();
+            } catch (Exp4jException.ParseException e) {
+                // expected
+            }
+        }
+
+        IExpressionContext context = Entry.buildContext(new StringReader("{\"a\": {\"b\": [1, 2, 3]}}"));
+        assertEquals("6", Entry.buildExpressionBuilder("sum($.a.b)").build().evaluate(context).toString());
+        assertEquals(Value.of(Math.PI), context.getVariable("pi"));
+        context = Entry.buildContext("{\"a\": [0.5, 1]}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("1.5", Entry.buildExpressionBuilder("sum($.a)").build().evaluate(context).toString());
+    }
+
+    private static void assertSameJson(String doc, Value expected, Value actual) {
+        assertEquals(doc, expected, actual);
+        assertEquals(doc, expected.toString(), actual.toString());
+        assertEquals(doc, expected.getType(), actual.getType());
+        if (expected.getType() == Value.Type.VectorT) {
+            assertEquals(doc, expected.isHomogeneousVector(), actual.isHomogeneousVector());
+            assertEquals(doc, expected.getHomogeneousType(), actual.getHomogeneousType());
+            assertArrayEquals(doc, expected.asLongs(), actual.asLongs());
+            for (int i = 0; i < expected.asVector().length; i++)
+                assertSameJson(doc, expected.asVector()[i], actual.asVector()[i]);
+        } else if (expected.getType() == Value.Type.MapT) {
+            assertEquals(doc, expected.asMap().keySet(), actual.asMap().keySet());
+            for (String key : expected.asMap().keySet())
+                assertSameJson(doc, expected.getField(key), actual.getField(key));
+        }
+    }
+
+    // hands out a few chars per read so values cross the reader buffer
+    private static class TrickleReader extends Reader {
+        private final String text;
+        private int pos;
+
+        TrickleReader(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (pos >= text.length())
+                return -1;
+            int n = Math.min(Math.min(len, 3), text.length() - pos);
+            text.getChars(pos, pos + n, buf, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+    @Test
+    public void testWriteJson() throws Exception {
+        String special = "q\"b\\s/\b\f\n\r\t\u0001\u007f\u2028 \u00e9\u4e2d\ud83d\ude00";
+        Map<String, Value> map = new LinkedHashMap<>();
+        map.put("k/" + special, Value.of(special));
+        map.put("n", Value.of(new long[]{1, -2, Long.MIN_VALUE}));
+        map.put("d", Value.of(new double[]{0.5, 1e20, -0.0}));
+        map.put("date", Value.of(new Value.DateWithFmt(LocalDateTime.of(2024, 5, 1, 10, 22, 25), "yyyy/MM/dd HH:mm")));
+        map.put("mixed", Value.of(new Value[]{Value.of(1), Value.of(2.5), Value.NULL, Value.TRUE, Value.of(new HashMap<>())}));
+        Value value = Value.of(map);
+
+        assertEquals(JSONValue.toJSONString(special), Value.of(special).toString());
+        assertEquals("\"2024/05/01 10:22\"", map.get("date").toString());
+        assertEquals("[1, -2, -9223372036854775808]", map.get("n").toString());
+        assertEquals("[0.5, 1.0E20, -0.0]", map.get("d").toString());
+        assertEquals("[1, 2.5, null, true, {}]", map.get("mixed").toString());
+
+        String expected = value.toString();
+        StringWriterAppendable appendable = new StringWriterAppendable();
+        value.writeJson(appendable);
+        assertEquals(expected, appendable.sb.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        value.writeJson(bytes);
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), bytes.toByteArray());
+
+        // a multiple value has no brackets, as toString gives it
+        Value multiple = Value.of(new Value[]{Value.of(1), Value.of("x")}, true);
+        bytes.reset();
+        multiple.writeJson(bytes);
+        assertEquals("1, \"x\"", bytes.toString("UTF-8"));
+    }
+
+    // an Appendable that is not a StringBuilder, for the generic path
+    private static class StringWriterAppendable implements Appendable {
+        final StringBuilder sb = new StringBuilder();
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            sb.append(csq);
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            sb.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            sb.append(c);
+            return this;
+        }
+    }
+    @Test
+    public void testBinary() {
+        Map<String, Value> map = new HashMap<>();
+        map.put("s", Value.of("h\u00e9llo \ud83d\ude00"));
+        map.put("i", Value.of(-1234567890123L));
+        map.put("d", Value.of(-0.5));
+        map.put("b", Value.FALSE);
+        map.put("n", Value.NULL);
+        map.put("longs", Value.of(new long[]{0, -1, Long.MAX_VALUE, Long.MIN_VALUE}));
+        map.put("doubles", Value.of(new double[]{1.5, Double.NaN, -0.0}));
+        map.put("mixed", Value.of(new Value[]{Value.of(1), Value.of(2.5), Value.NULL}));
+        map.put("multiple", Value.of(new Value[]{Value.of(1), Value.of(2)}, true));
+        map.put("strings", Value.of(new Value[]{Value.of("a"), Value.TRUE}, true));
+        map.put("date", Value.of(new Value.DateWithFmt(LocalDateTime.of(2024, 5, 1, 10, 22, 25, 123), "yyyy/MM/dd HH:mm")));
+        map.put("empty", Value.of(new Value[0]));
+        map.put("nested", Value.of(new HashMap<>(Collections.singletonMap("s", Value.of(new HashMap<>(Collections.singletonMap("s", Value.of(1))))))));
+        Value value = Value.of(map);
+
+        byte[] bytes = value.toBinary();
+        Value decoded = Value.fromBinary(ByteBuffer.wrap(bytes));
+        assertEquals(value.toString(), decoded.toString());
+        for (String key : map.keySet()) {
+            Value expected = map.get(key);
+            Value actual = decoded.getField(key);
+            assertEquals(key, expected.getType(), actual.getType());
+            assertEquals(key, expected.isMultiple(), actual.isMultiple());
+            if (expected.getType() == Value.Type.VectorT) {
+                assertEquals(key, expected.isHomogeneousVector(), actual.isHomogeneousVector());
+                assertEquals(key, expected.getHomogeneousType(), actual.getHomogeneousType());
+                assertArrayEquals(key, expected.asLongs(), actual.asLongs());
+            }
+        }
+        assertEquals(map.get("date").getFmt(), decoded.getField("date").getFmt());
+        assertEquals(map.get("date").asDateTime(), decoded.getField("date").asDateTime());
+        Value enclosed = Value.fromBinary(ByteBuffer.wrap(Value.enclosed(new Value[]{Value.of(1), Value.of("x")}).toBinary()));
+        assertEquals(Value.Type.EnclosedT, enclosed.getType());
+        assertEquals(Arrays.asList(Value.of(1), Value.of("x")), Arrays.asList(enclosed.enclosed()));
+
+        // a direct buffer at an offset, left behind the value
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+        direct.put((byte) 7).put(bytes).put((byte) 8).put((byte) 9);
+        direct.flip().position(1);
+        assertEquals(value.toString(), Value.fromBinary(direct).toString());
+        assertEquals(1 + bytes.length, direct.position());
+
+        // keys are written once
+        Value[] rows = new Value[100];
+        for (int r = 0; r < rows.length; r++)
+            rows[r] = Value.of(new HashMap<>(Collections.singletonMap("a_rather_long_key", Value.of(r))));
+        assertTrue(Value.of(rows).toBinary().length < 100 * 8);
+
+        IExpressionContext ctx = Entry.buildContext();
+        Value exp = Entry.buildExpressionBuilder("@{1+2;3*x}").build().evaluate();
+        ctx.updateVariable("f", Value.fromBinary(ByteBuffer.wrap(exp.toBinary())));
+        ctx.updateVariable("x", 3);
+        assertEquals(9, Entry.buildExpressionBuilder("f(1)").build().evaluate(ctx).asLong());
+        Value compiled = Value.of(Entry.compileExpression("x * 2"));
+        assertEquals(6, Value.fromBinary(ByteBuffer.wrap(compiled.toBinary())).asExpression().evaluate(ctx).asLong());
+
+        // expressions are kept as trees, of the same kind and shape
+        IExpression lambda = Value.fromBinary(ByteBuffer.wrap(exp.toBinary())).asExpression();
+        assertEquals(((JExpParser.ExpValueNode.JExp) exp.asExpression()).node.dump(), ((JExpParser.ExpValueNode.JExp) lambda).node.dump());
+        assertTrue(Value.fromBinary(ByteBuffer.wrap(compiled.toBinary())).asExpression() instanceof JExpCompiler.CompiledExpression);
+        Value template = Entry.buildExpressionBuilder("@{`${x}-${_}`}").build().evaluate();
+        ctx.updateVariable("g", Value.fromBinary(ByteBuffer.wrap(template.toBinary())));
+        assertEquals("3-7", Entry.buildExpressionBuilder("g(7)").build().evaluate(ctx).asString());
+        // an expression is only written as a tree, the source text tags are gone
+        try {
+            Value.fromBinary(ByteBuffer.wrap(new byte[]{ValueCodec.VERSION, 13, 0}));
+            fail();
+        } catch (Exp4jException.ParseException e) {
+            // expected
+        }
+
+        for (int n = 0; n < bytes.length; n++) {
+            try {
+                Value.fromBinary(ByteBuffer.wrap(Arrays.copyOf(bytes, n)));
+                fail("truncated at " + n);
+            } catch (Exp4jException.ParseException e) {
+                // expected
+            }
+        }
+    }
 }